@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.base.Charsets;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates the local and HDFS trees the benchmarks run against.
+ */
+public final class BenchmarkData {
+
+    public static final int FILES_PER_DIRECTORY = 100;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Writes <code>files</code> files of <code>fileSize</code> bytes of text below <code>root</code>,
+     * {@link #FILES_PER_DIRECTORY} to a directory.
+     */
+    public static void createLocalTree(final File root, final int files, final int fileSize) throws IOException {
+        final Random random = new Random(files);
+        for (int i = 0; i < files; i++) {
+            final File directory = new File(root, "dir-" + (i / FILES_PER_DIRECTORY));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create directory: " + directory);
+            }
+            final OutputStream out = new FileOutputStream(new File(directory, "part-" + i));
+            try {
+                writeLines(out, fileSize, random);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Creates <code>directories</code> directories below <code>root</code>, each nested
+     * <code>depth</code> levels deep and holding <code>filesPerDirectory</code> empty files.
+     */
+    public static void createHDFSTree(final FileSystem fileSystem, final Path root, final int directories, final int depth, final int filesPerDirectory) throws IOException {
+        for (int i = 0; i < directories; i++) {
+            Path directory = new Path(root, "dir-" + i);
+            for (int level = 0; level < depth; level++) {
+                directory = new Path(directory, "level-" + level);
+                for (int file = 0; file < filesPerDirectory; file++) {
+                    fileSystem.create(new Path(directory, "part-" + file)).close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes about <code>bytes</code> bytes of tab-separated lines to <code>path</code>.
+     */
+    public static void createHDFSFile(final FileSystem fileSystem, final Path path, final long bytes) throws IOException {
+        final FSDataOutputStream out = fileSystem.create(path);
+        try {
+            writeLines(out, bytes, new Random(bytes));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return <code>bytes</code> bytes of tab-separated lines
+     */
+    public static byte[] createLines(final int bytes) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes);
+        writeLines(out, bytes, new Random(bytes));
+        return out.toByteArray();
+    }
+
+    private static void writeLines(final OutputStream out, final long bytes, final Random random) throws IOException {
+        long written = 0;
+        while (written < bytes) {
+            final byte[] line = ("key-" + random.nextInt(1000000) + "\tsome value that looks like job output " + random.nextLong() + "\n")
+                .getBytes(Charsets.UTF_8);
+            final int length = (int) Math.min(line.length, bytes - written);
+            out.write(line, 0, length);
+            written += length;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.shopzilla.hadoop.repl.commands.util.ClusterStateManager;
+import com.shopzilla.hadoop.repl.commands.util.ParallelGZIPInputStream;
+import com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the single-stream gzip that session archives used to be written with against
+ * {@link ParallelGZIPOutputStream} and {@link ParallelGZIPInputStream}, over <code>size</code> bytes of text
+ * stored as a tar of <code>fileSize</code> byte files, the way {@link ClusterStateManager} writes a session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({"67108864"})
+    public int size;
+
+    @Param({"65536", "4194304"})
+    public int fileSize;
+
+    private byte[] data;
+    private byte[] singleStream;
+    private byte[] parallel;
+
+    @Setup(Level.Trial)
+    public void createData() throws IOException {
+        data = BenchmarkData.createLines(size);
+        final ByteArrayOutputStream singleStreamOut = new ByteArrayOutputStream();
+        compress(new GZIPOutputStream(singleStreamOut, BUFFER_SIZE));
+        singleStream = singleStreamOut.toByteArray();
+        final ByteArrayOutputStream parallelOut = new ByteArrayOutputStream();
+        compress(new ParallelGZIPOutputStream(parallelOut));
+        parallel = parallelOut.toByteArray();
+    }
+
+    @Benchmark
+    public long compressSingleStream() throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+        compress(new GZIPOutputStream(counter, BUFFER_SIZE));
+        return counter.getByteCount();
+    }
+
+    @Benchmark
+    public long compressParallel() throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+        compress(new ParallelGZIPOutputStream(counter));
+        return counter.getByteCount();
+    }
+
+    @Benchmark
+    public long decompressSingleStream() throws IOException {
+        return decompress(new GZIPInputStream(new ByteArrayInputStream(singleStream), BUFFER_SIZE));
+    }
+
+    @Benchmark
+    public long decompressParallel() throws IOException {
+        return decompress(new ParallelGZIPInputStream(new ByteArrayInputStream(parallel)));
+    }
+
+    private void compress(final OutputStream out) throws IOException {
+        final TarArchiveOutputStream taos = new TarArchiveOutputStream(out, Charsets.UTF_8.name());
+        try {
+            for (int file = 0; file * (long) fileSize < data.length; file++) {
+                final int start = file * fileSize;
+                final int end = Math.min(start + fileSize, data.length);
+                final TarArchiveEntry entry = new TarArchiveEntry("./hdfs/part-" + file);
+                entry.setSize(end - start);
+                taos.putArchiveEntry(entry);
+                for (int offset = start; offset < end; offset += BUFFER_SIZE) {
+                    taos.write(data, offset, Math.min(BUFFER_SIZE, end - offset));
+                }
+                taos.closeArchiveEntry();
+            }
+        } finally {
+            taos.close();
+        }
+    }
+
+    private static long decompress(final InputStream in) throws IOException {
+        final TarArchiveInputStream tais = new TarArchiveInputStream(in, Charsets.UTF_8.name());
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            while (tais.getNextTarEntry() != null) {
+                int read;
+                while ((read = tais.read(buffer)) != -1) {
+                    total += read;
+                }
+            }
+            return total;
+        } finally {
+            tais.close();
+        }
+    }
+}
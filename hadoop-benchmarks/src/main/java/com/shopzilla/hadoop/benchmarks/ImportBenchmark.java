@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.io.Files;
+import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
+import com.shopzilla.hadoop.testing.hdfs.HDFSImporter;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link HDFSImporter}, which backs {@link DFSCluster#importHDFSDirectory}, over different mixes of
+ * file count and size. Each invocation imports the whole tree into an empty namespace.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+    /**
+     * <code>&lt;files&gt;x&lt;bytes per file&gt;</code>
+     */
+    @Param({"10000x1024", "1000x65536", "16x16777216"})
+    public String mix;
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    private DFSCluster dfsCluster;
+    private File localRoot;
+    private HDFSImporter importer;
+
+    @Setup(Level.Trial)
+    public void startCluster() throws IOException {
+        final String[] parts = mix.split("x");
+        localRoot = Files.createTempDir();
+        BenchmarkData.createLocalTree(localRoot, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        dfsCluster = DFSCluster.builder().withDataNodes(1).build().start();
+        importer = HDFSImporter.builder()
+            .usingFileSystem(dfsCluster.getFileSystem())
+            .withThreads(threads)
+            .build();
+    }
+
+    @Setup(Level.Iteration)
+    public void clearNamespace() throws IOException {
+        for (final String child : localRoot.list()) {
+            dfsCluster.getFileSystem().delete(new Path("/" + child), true);
+        }
+    }
+
+    @Benchmark
+    public HDFSImporter.Statistics importTree() throws IOException {
+        return importer.importDirectory(new Path("/"), localRoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCluster() {
+        dfsCluster.stop();
+        FileUtils.deleteQuietly(localRoot);
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.shopzilla.hadoop.testing.AsyncDeleter;
+import com.shopzilla.hadoop.testing.MiniCluster;
+import com.shopzilla.hadoop.testing.ResourceProfile;
+import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Macro benchmark for whole-cluster lifecycles, which are too coarse and too stateful for JMH.
+ *
+ * <pre>
+ * java -cp benchmarks.jar com.shopzilla.hadoop.benchmarks.LifecycleBenchmark [--rounds=5] [--output=lifecycle.json] [--tree=&lt;local dir&gt;]
+ * </pre>
+ *
+ * Measures a cold {@link MiniCluster} start (with its per-phase timings) and stop, and cold versus warm starts of a
+ * {@link DFSCluster} on persistent storage, writing every sample and a min/mean/max summary as JSON. Also records
+ * the live heap and thread count of a started cluster for each {@link ResourceProfile}.
+ */
+public class LifecycleBenchmark {
+
+    private final int rounds;
+    private final File localRoot;
+    private final Map<String, Object> results = Maps.newLinkedHashMap();
+
+    public LifecycleBenchmark(final int rounds, final File localRoot) {
+        this.rounds = rounds;
+        this.localRoot = localRoot;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        int rounds = 5;
+        File output = new File("lifecycle.json");
+        File localRoot = null;
+        for (final String arg : args) {
+            if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else if (arg.startsWith("--output=")) {
+                output = new File(arg.substring("--output=".length()));
+            } else if (arg.startsWith("--tree=")) {
+                localRoot = new File(arg.substring("--tree=".length()));
+            } else {
+                System.err.println("Usage: LifecycleBenchmark [--rounds=N] [--output=<file.json>] [--tree=<local dir>]");
+                System.exit(1);
+            }
+        }
+        final Map<String, Object> report = new LifecycleBenchmark(rounds, localRoot).run();
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(output, report);
+        System.out.println("Wrote " + output.getAbsolutePath());
+        System.exit(0);
+    }
+
+    public Map<String, Object> run() throws Exception {
+        final Map<String, Object> report = Maps.newLinkedHashMap();
+        report.put("timestamp", new Date().getTime());
+        report.put("version", String.valueOf(MiniCluster.class.getPackage().getImplementationVersion()));
+        report.put("java", System.getProperty("java.version"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("rounds", rounds);
+        miniClusterLifecycle();
+        dfsClusterLifecycle();
+        for (final ResourceProfile resourceProfile : ResourceProfile.values()) {
+            footprint(resourceProfile);
+        }
+        report.put("results", results);
+        return report;
+    }
+
+    private void miniClusterLifecycle() throws Exception {
+        final List<Long> starts = Lists.newArrayList();
+        final List<Long> stops = Lists.newArrayList();
+        final List<Map<String, Long>> phases = Lists.newArrayList();
+        for (int round = 0; round < rounds; round++) {
+            final MiniCluster miniCluster = MiniCluster.builder().withInitialStructure(localRoot).build();
+            long start = System.nanoTime();
+            miniCluster.start();
+            starts.add(elapsedMillis(start));
+            phases.add(miniCluster.getStartupTimings());
+
+            start = System.nanoTime();
+            miniCluster.stop();
+            stops.add(elapsedMillis(start));
+            awaitCleanup();
+        }
+        record("minicluster.cold-start", starts).put("phases", phases);
+        record("minicluster.stop", stops);
+    }
+
+    private void dfsClusterLifecycle() throws Exception {
+        final File storage = Files.createTempDir();
+        try {
+            final List<Long> coldStarts = Lists.newArrayList();
+            final List<Long> warmStarts = Lists.newArrayList();
+            for (int round = 0; round < rounds; round++) {
+                FileUtils.deleteDirectory(storage);
+                coldStarts.add(timeDFSStart(storage));
+                warmStarts.add(timeDFSStart(storage));
+            }
+            record("dfs.cold-start", coldStarts);
+            record("dfs.warm-start", warmStarts);
+        } finally {
+            FileUtils.deleteQuietly(storage);
+        }
+    }
+
+    private long timeDFSStart(final File storage) throws Exception {
+        final long start = System.nanoTime();
+        final DFSCluster dfsCluster = DFSCluster.builder()
+            .withInitialStructure(localRoot)
+            .withPersistentStorage(storage)
+            .build()
+            .start();
+        final long elapsed = elapsedMillis(start);
+        dfsCluster.stop();
+        awaitCleanup();
+        return elapsed;
+    }
+
+    /**
+     * Heap is measured after a full collection, and both figures are also given relative to the JVM before startup,
+     * which is what the cluster itself costs.
+     */
+    private void footprint(final ResourceProfile resourceProfile) throws Exception {
+        final long baselineHeap = usedHeap();
+        final int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        final MiniCluster miniCluster = MiniCluster.builder()
+            .withInitialStructure(localRoot)
+            .withResourceProfile(resourceProfile)
+            .build();
+        final long start = System.nanoTime();
+        miniCluster.start();
+        final long startMillis = elapsedMillis(start);
+        try {
+            final long heap = usedHeap();
+            final int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            final Map<String, Object> result = Maps.newLinkedHashMap();
+            result.put("dataNodes", resourceProfile.getDataNodes());
+            result.put("taskTrackers", resourceProfile.getTaskTrackers());
+            result.put("startMillis", startMillis);
+            result.put("heapUsedBytes", heap);
+            result.put("clusterHeapBytes", heap - baselineHeap);
+            result.put("threads", threads);
+            result.put("clusterThreads", threads - baselineThreads);
+            results.put("footprint." + resourceProfile.name().toLowerCase(), result);
+        } finally {
+            miniCluster.stop();
+            awaitCleanup();
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private Map<String, Object> record(final String name, final List<Long> samples) {
+        final Map<String, Object> result = Maps.newLinkedHashMap();
+        long total = 0;
+        for (final long sample : samples) {
+            total += sample;
+        }
+        result.put("unit", "ms");
+        result.put("samples", samples);
+        result.put("min", samples.isEmpty() ? 0 : Collections.min(samples));
+        result.put("mean", samples.isEmpty() ? 0 : (double) total / samples.size());
+        result.put("max", samples.isEmpty() ? 0 : Collections.max(samples));
+        results.put(name, result);
+        return result;
+    }
+
+    private static long elapsedMillis(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void awaitCleanup() throws InterruptedException {
+        // Keep the background deletes of one round from competing with the next round's startup
+        if (!AsyncDeleter.awaitPending(1, TimeUnit.MINUTES)) {
+            System.err.println("Cleanup still running after a minute, results may be skewed");
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.base.Function;
+import com.shopzilla.hadoop.testing.hdfs.ByteSlice;
+import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
+import com.shopzilla.hadoop.testing.hdfs.ParallelDataProcessor;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the read paths of {@link DFSCluster} over <code>totalSize</code> bytes split evenly across <code>parts</code>
+ * files, so that runs with different part counts read the same amount of data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessDataBenchmark {
+
+    private static final Path ROOT = new Path("/benchmark/data");
+
+    @Param({"1", "16"})
+    public int parts;
+
+    @Param({"67108864"})
+    public long totalSize;
+
+    private DFSCluster dfsCluster;
+
+    @Setup(Level.Trial)
+    public void startCluster() throws IOException {
+        dfsCluster = DFSCluster.builder().withDataNodes(1).build().start();
+        for (int part = 0; part < parts; part++) {
+            BenchmarkData.createHDFSFile(dfsCluster.getFileSystem(), new Path(ROOT, String.format("part-%05d", part)), totalSize / parts);
+        }
+    }
+
+    @Benchmark
+    public long processDataRecursive() throws IOException {
+        final AtomicLong counter = new AtomicLong();
+        dfsCluster.processDataRecursive(ROOT, new Function<String, Void>() {
+            @Override
+            public Void apply(final String line) {
+                counter.addAndGet(line.length());
+                return null;
+            }
+        });
+        return counter.get();
+    }
+
+    @Benchmark
+    public long processBytesRecursive() throws IOException {
+        final AtomicLong counter = new AtomicLong();
+        dfsCluster.processBytesRecursive(ROOT, new Function<ByteSlice, Void>() {
+            @Override
+            public Void apply(final ByteSlice line) {
+                counter.addAndGet(line.length());
+                return null;
+            }
+        });
+        return counter.get();
+    }
+
+    @Benchmark
+    public long processDataRecursiveParallel() throws IOException {
+        final AtomicLong counter = new AtomicLong();
+        dfsCluster.processDataRecursiveParallel(ROOT, new Function<String, Void>() {
+            @Override
+            public Void apply(final String line) {
+                counter.addAndGet(line.length());
+                return null;
+            }
+        }, ParallelDataProcessor.Ordering.UNORDERED);
+        return counter.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCluster() {
+        dfsCluster.stop();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.benchmarks;
+
+import com.google.common.base.Function;
+import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
+import com.shopzilla.hadoop.testing.hdfs.TreeWalker;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the DFSCluster traversal methods over a tree of <code>directories</code> x <code>depth</code> directories,
+ * against the original recursive traversal that made three NameNode calls per path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TraversalBenchmark {
+
+    private static final Path ROOT = new Path("/traversal");
+
+    @Param({"50", "500"})
+    public int directories;
+
+    @Param({"4"})
+    public int depth;
+
+    @Param({"10"})
+    public int filesPerDirectory;
+
+    private DFSCluster dfsCluster;
+
+    @Setup(Level.Trial)
+    public void startCluster() throws IOException {
+        dfsCluster = DFSCluster.builder().withDataNodes(1).build().start();
+        BenchmarkData.createHDFSTree(dfsCluster.getFileSystem(), ROOT, directories, depth, filesPerDirectory);
+    }
+
+    @Benchmark
+    public long recursiveBaseline() throws IOException {
+        final AtomicLong count = new AtomicLong();
+        recurse(dfsCluster.getFileSystem(), ROOT, count);
+        return count.get();
+    }
+
+    /**
+     * The traversal <code>processPathsRecursive</code> used before {@link TreeWalker}: exists, isFile and, for
+     * directories, listStatus for every path.
+     */
+    private static void recurse(final FileSystem fileSystem, final Path path, final AtomicLong count) throws IOException {
+        if (!fileSystem.exists(path)) {
+            throw new IOException("Path does not exist: " + path);
+        }
+        if (fileSystem.isFile(path)) {
+            if (!path.toUri().getPath().startsWith("_")) {
+                count.incrementAndGet();
+            }
+        } else {
+            for (final FileStatus fileStatus : fileSystem.listStatus(path)) {
+                if (!fileStatus.getPath().toUri().getPath().startsWith("_")) {
+                    recurse(fileSystem, fileStatus.getPath(), count);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public long processPathsRecursiveParallel() throws IOException {
+        final AtomicLong count = new AtomicLong();
+        dfsCluster.processPathsRecursiveParallel(ROOT, new Function<Path, Void>() {
+            @Override
+            public Void apply(final Path path) {
+                count.incrementAndGet();
+                return null;
+            }
+        });
+        return count.get();
+    }
+
+    @Benchmark
+    public long walk() throws IOException {
+        final AtomicLong count = new AtomicLong();
+        dfsCluster.walk(ROOT, TreeWalker.HIDDEN_FILE_FILTER, new Function<FileStatus, Void>() {
+            @Override
+            public Void apply(final FileStatus status) {
+                count.incrementAndGet();
+                return null;
+            }
+        });
+        return count.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCluster() {
+        dfsCluster.stop();
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl;
+
+import com.shopzilla.hadoop.repl.commands.util.ProgressListener;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+
+/**
+ * A save, load or other long-running piece of work that {@link BackgroundTasks} runs off the REPL thread.
+ *
+ * The task is its own {@link ProgressListener}: the work reports progress to it, and once the task is cancelled
+ * the next report throws a {@link CancellationException} to unwind the work. Nothing is interrupted, since the
+ * work may share its <code>FileSystem</code> with the REPL.
+ */
+public abstract class BackgroundTask implements ProgressListener {
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final String description;
+    private volatile int id;
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelled = false;
+    private volatile long done = 0;
+    private volatile long total = -1;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    Future<?> future;
+
+    protected BackgroundTask(final String description) {
+        this.description = description;
+    }
+
+    /**
+     * Does the work, reporting progress to this task.
+     *
+     * @return a summary of what was done
+     */
+    protected abstract String execute() throws Exception;
+
+    @Override
+    public void progress(final long done, final long total) {
+        this.done = done;
+        this.total = total;
+        if (cancelled) {
+            throw new CancellationException(description + " was cancelled");
+        }
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return false if the task was cancelled before it started
+     */
+    synchronized boolean start() {
+        if (cancelled) {
+            return false;
+        }
+        startNanos = System.nanoTime();
+        state = State.RUNNING;
+        return true;
+    }
+
+    void finish(final State state) {
+        endNanos = System.nanoTime();
+        this.state = state;
+    }
+
+    /**
+     * @return the state the task was in when it was cancelled
+     */
+    synchronized State cancel() {
+        cancelled = true;
+        return state;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getDone() {
+        return done;
+    }
+
+    /**
+     * @return the bytes expected in all, or -1 if unknown
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return how long the task has been running, or ran for; 0 while it is queued
+     */
+    public long getElapsedNanos() {
+        switch (state) {
+            case QUEUED:
+                return 0;
+            case RUNNING:
+                return System.nanoTime() - startNanos;
+            default:
+                return endNanos - startNanos;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Runs {@link BackgroundTask}s one at a time, in the order they were submitted, on a single daemon thread.
+ * Running them one after another keeps a save from copying HDFS while a load is still rewriting it.
+ *
+ * A message is queued whenever a task finishes, fails or is cancelled; the REPL prints these between commands,
+ * the way a shell reports finished jobs.
+ */
+public class BackgroundTasks {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("repl-task-%d")
+        .setDaemon(true)
+        .build());
+    private final Map<Integer, BackgroundTask> tasks = Maps.newLinkedHashMap();
+    private final Queue<String> notices = new ConcurrentLinkedQueue<String>();
+    private int nextId = 1;
+
+    /**
+     * @return the id <code>task</code> can be cancelled by
+     */
+    public synchronized int submit(final BackgroundTask task) {
+        final int id = nextId++;
+        task.setId(id);
+        tasks.put(id, task);
+        task.future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                BackgroundTasks.this.run(task);
+            }
+        });
+        return id;
+    }
+
+    private void run(final BackgroundTask task) {
+        try {
+            if (!task.start()) {
+                return;
+            }
+            final String summary = task.execute();
+            task.finish(BackgroundTask.State.DONE);
+            notices.add(format("[%d] Done: %s\n%s", task.getId(), task.getDescription(), summary));
+        } catch (final Throwable t) {
+            if (task.isCancelled()) {
+                task.finish(BackgroundTask.State.CANCELLED);
+                notices.add(format("[%d] Cancelled: %s", task.getId(), task.getDescription()));
+            } else {
+                task.finish(BackgroundTask.State.FAILED);
+                notices.add(format("[%d] Failed: %s: %s", task.getId(), task.getDescription(), Throwables.getRootCause(t)));
+            }
+        } finally {
+            synchronized (this) {
+                tasks.remove(task.getId());
+            }
+        }
+    }
+
+    /**
+     * @return the tasks that are queued or running, in the order they will run
+     */
+    public synchronized List<BackgroundTask> list() {
+        return Lists.newArrayList(tasks.values());
+    }
+
+    /**
+     * Cancels task <code>id</code>. A queued task is dropped right away; a running one stops at its next progress
+     * report and cleans up after itself.
+     *
+     * @return false if there is no such task queued or running
+     */
+    public synchronized boolean cancel(final int id) {
+        final BackgroundTask task = tasks.get(id);
+        if (task == null) {
+            return false;
+        }
+        if (task.cancel() == BackgroundTask.State.QUEUED) {
+            task.future.cancel(false);
+            task.finish(BackgroundTask.State.CANCELLED);
+            tasks.remove(id);
+            notices.add(format("[%d] Cancelled: %s", id, task.getDescription()));
+        }
+        return true;
+    }
+
+    public synchronized void cancelAll() {
+        for (final Integer id : Lists.newArrayList(tasks.keySet())) {
+            cancel(id);
+        }
+    }
+
+    /**
+     * @return the messages queued since the last call
+     */
+    public List<String> drainNotices() {
+        final List<String> drained = Lists.newArrayList();
+        String notice;
+        while ((notice = notices.poll()) != null) {
+            drained.add(notice);
+        }
+        return drained;
+    }
+
+    /**
+     * Cancels every task and waits up to <code>timeout</code> for the running one to clean up.
+     *
+     * @return false if it was still running when the wait ended
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit) {
+        cancelAll();
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -51,9 +51,19 @@ public class HadoopREPL extends REPL {
 
     protected final Map<Call, Command> commandMappings;
 
+    protected final CommandProvider[] commandProviders;
+
     public HadoopREPL(final Configuration configuration) throws ExitSignal {
+        this(configuration, new CommandProvider[0]);
+    }
+
+    /**
+     * Offers the commands of <code>commandProviders</code> alongside the built-in ones.
+     */
+    public HadoopREPL(final Configuration configuration, final CommandProvider... commandProviders) throws ExitSignal {
         this.configuration = configuration;
         this.sessionState = new SessionState(configuration, this);
+        this.commandProviders = commandProviders;
         this.commandMappings = buildCommandMappings();
         resetCompletors();
     }
@@ -61,6 +71,7 @@ public class HadoopREPL extends REPL {
     public HadoopREPL(final Configuration configuration, final SessionState sessionState) throws ExitSignal {
         this.configuration = configuration;
         this.sessionState = sessionState;
+        this.commandProviders = new CommandProvider[0];
         this.commandMappings = buildCommandMappings();
         resetCompletors();
     }
@@ -68,15 +79,19 @@ public class HadoopREPL extends REPL {
     public HadoopREPL(final Configuration configuration, final SessionState sessionState, final Map<Call, Command> commandMappings) throws ExitSignal {
         this.configuration = configuration;
         this.sessionState = sessionState;
+        this.commandProviders = new CommandProvider[0];
         this.commandMappings = commandMappings;
         resetCompletors();
     }
 
     protected Map<Call, Command> buildCommandMappings() {
-        final Map<Call, Command> commands = ImmutableMap.<Call, Command>builder()
+        final ImmutableMap.Builder<Call, Command> builder = ImmutableMap.<Call, Command>builder()
             .putAll(new SessionCommandProvider().apply(sessionState))
-            .putAll(new FSShellCommandProvider().apply(sessionState))
-            .build();
+            .putAll(new FSShellCommandProvider().apply(sessionState));
+        for (final CommandProvider commandProvider : commandProviders) {
+            builder.putAll(commandProvider.apply(sessionState));
+        }
+        final Map<Call, Command> commands = builder.build();
         return ImmutableMap.<Call, Command>builder()
             .putAll(commands)
             .put(call("help", new DeferredStringsCompleter<Map<Call, Command>>(commandMappings, new Function<Map<Call, Command>, TreeSet<String>>() {
@@ -138,6 +153,7 @@ public class HadoopREPL extends REPL {
     @Override
     protected void evaluate(final String input) throws ExitSignal {
         popHistory();
+        sessionState.outputNotices();
         final Iterable<String> inputParts = ARG_SPLITTER.limit(2).split(input);
         if (Iterables.isEmpty(inputParts)) {
              // Do nothing
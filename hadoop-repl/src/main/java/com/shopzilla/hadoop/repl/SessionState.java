@@ -20,10 +20,18 @@ package com.shopzilla.hadoop.repl;
 
 import com.google.common.base.Joiner;
 import com.shopzilla.hadoop.repl.commands.Command;
+import com.shopzilla.hadoop.repl.commands.completers.HDFSListingCache;
+import com.shopzilla.hadoop.repl.commands.completers.HDFSListingPrefetcher;
 import com.shopzilla.hadoop.repl.commands.util.ClusterStateManager;
+import com.shopzilla.hadoop.repl.commands.util.IndexedArchive;
+import com.shopzilla.hadoop.repl.display.ProgressBar;
 import org.apache.hadoop.conf.Configuration;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
 
 /**
  * @author Jeremy Lucas
@@ -33,26 +41,152 @@ public class SessionState {
 
     protected static final Joiner SPACE_JOINER = Joiner.on(' ').skipNulls();
 
+    protected static final int PROGRESS_BAR_WIDTH = 50;
+
+    protected static final long TASK_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
     protected final Configuration configuration;
 
     private final REPL repl;
 
     private final ClusterStateManager clusterStateManager;
 
+    private final BackgroundTasks tasks = new BackgroundTasks();
+
+    private final HDFSListingCache listingCache;
+
+    private final HDFSListingPrefetcher listingPrefetcher;
+
     public SessionState(final Configuration configuration, final REPL repl) {
         this.configuration = configuration;
         this.repl = repl;
         this.clusterStateManager = new ClusterStateManager(configuration);
+        this.listingCache = new HDFSListingCache(configuration);
+        this.listingPrefetcher = new HDFSListingPrefetcher(listingCache);
     }
 
     public void saveClusterState(final String outputFileName) {
-        output("Saving current cluster state to file [%s]", outputFileName);
-        clusterStateManager.serialize(new File(outputFileName));
+        submit(new BackgroundTask(format("save %s", outputFileName)) {
+            @Override
+            protected String execute() {
+                return summarize(clusterStateManager.serialize(new File(outputFileName), this));
+            }
+        });
+    }
+
+    public void saveClusterState(final String outputFileName, final String parentFileName) {
+        submit(new BackgroundTask(format("save-incremental %s %s", parentFileName, outputFileName)) {
+            @Override
+            protected String execute() {
+                return summarize(clusterStateManager.serialize(new File(outputFileName), new File(parentFileName), this));
+            }
+        });
+    }
+
+    private static String summarize(final IndexedArchive.Statistics statistics) {
+        return statistics == null ? "Saved" : statistics.toString();
     }
 
     public void loadClusterState(final String archiveFile) {
-        output("Loading cluster state from file [%s]", archiveFile);
-        clusterStateManager.load(new File(archiveFile));
+        loadClusterState(archiveFile, "/");
+    }
+
+    public void loadClusterState(final String archiveFile, final String subpath) {
+        submit(new BackgroundTask(format("load %s %s", archiveFile, subpath)) {
+            @Override
+            protected String execute() {
+                try {
+                    return clusterStateManager.load(new File(archiveFile), subpath, this).toString();
+                } finally {
+                    listingCache.invalidateAll();
+                }
+            }
+        });
+    }
+
+    public void saveClusterStateToStore(final String store, final String name) {
+        submit(new BackgroundTask(format("store-save %s %s", store, name)) {
+            @Override
+            protected String execute() {
+                return clusterStateManager.serialize(new File(store), name, this).toString();
+            }
+        });
+    }
+
+    public void loadClusterStateFromStore(final String store, final String name, final String subpath) {
+        submit(new BackgroundTask(format("store-load %s %s %s", store, name, subpath)) {
+            @Override
+            protected String execute() {
+                try {
+                    return clusterStateManager.load(new File(store), name, subpath, this).toString();
+                } finally {
+                    listingCache.invalidateAll();
+                }
+            }
+        });
+    }
+
+    private void submit(final BackgroundTask task) {
+        final int queued = tasks.list().size();
+        final int id = tasks.submit(task);
+        if (queued == 0) {
+            output("[%d] Started: %s", id, task.getDescription());
+        } else {
+            output("[%d] Queued behind %d other task(s): %s", id, queued, task.getDescription());
+        }
+    }
+
+    /**
+     * Shows every queued and running task, with the progress of the running one.
+     */
+    public void outputStatus() {
+        final List<BackgroundTask> running = tasks.list();
+        if (running.isEmpty()) {
+            output("No background tasks");
+        }
+        for (final BackgroundTask task : running) {
+            output("[%d] %s: %s", task.getId(), task.getState().name().toLowerCase(), task.getDescription());
+            if (task.getState() == BackgroundTask.State.RUNNING) {
+                output("    %s", new ProgressBar(PROGRESS_BAR_WIDTH).progress(task.getDone(), task.getTotal(), task.getElapsedNanos()).trim());
+            }
+        }
+    }
+
+    public void cancelTask(final int id) {
+        if (tasks.cancel(id)) {
+            output("Cancelling [%d]", id);
+        } else {
+            error("No task [%d] is queued or running", id);
+        }
+    }
+
+    public void cancelAllTasks() {
+        tasks.cancelAll();
+    }
+
+    /**
+     * Prints the messages of the background tasks that have finished since the last call.
+     */
+    public void outputNotices() {
+        for (final String notice : tasks.drainNotices()) {
+            output("%s", notice);
+        }
+    }
+
+    public List<String> listStore(final String store) {
+        return clusterStateManager.sessions(new File(store));
+    }
+
+    public void deleteFromStore(final String store, final String name) {
+        output("Deleted session [%s], freeing %d bytes", name, clusterStateManager.deleteSession(new File(store), name));
+    }
+
+    public void collectStoreGarbage(final String store) {
+        output("Freed %d bytes of unreferenced chunks", clusterStateManager.gc(new File(store)));
+    }
+
+    public List<IndexedArchive.Entry> listClusterState(final String archiveFile, final String path) {
+        return clusterStateManager.list(new File(archiveFile), path);
     }
 
     public void output(final String message, final Object... args) {
@@ -73,6 +207,11 @@ public class SessionState {
 
     public void shutdown() {
         output("Disconnecting REPL");
+        if (!tasks.list().isEmpty()) {
+            output("Cancelling background tasks");
+            tasks.shutdown(TASK_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        listingPrefetcher.shutdown();
         repl.shutdown();
     }
 
@@ -95,4 +234,18 @@ public class SessionState {
     public Configuration configuration() {
         return configuration;
     }
+
+    /**
+     * @return the HDFS listings shared by every path completer of this session
+     */
+    public HDFSListingCache listingCache() {
+        return listingCache;
+    }
+
+    /**
+     * @return the background lister that fills {@link #listingCache()} ahead of completion
+     */
+    public HDFSListingPrefetcher listingPrefetcher() {
+        return listingPrefetcher;
+    }
 }
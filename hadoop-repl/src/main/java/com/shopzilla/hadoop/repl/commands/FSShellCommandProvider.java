@@ -27,6 +27,7 @@ import jline.console.completer.FileNameCompleter;
 import org.apache.hadoop.fs.FsShell;
 
 import java.util.Map;
+import java.util.Set;
 
 import static com.shopzilla.hadoop.repl.commands.Call.call;
 
@@ -36,37 +37,44 @@ import static com.shopzilla.hadoop.repl.commands.Call.call;
  */
 public class FSShellCommandProvider implements CommandProvider {  
 
+    /**
+     * Commands after which the cached HDFS listings used for completion may be stale.
+     */
+    private static final Set<String> MUTATING_COMMANDS = ImmutableSet.of(
+        "mv", "cp", "rm", "rmr", "expunge", "put", "movetolocal", "mkdir", "touchz", "copyfromlocal", "movefromlocal");
+
     @Override
     public Map<Call, Command> apply(final SessionState sessionState) {
+        final HDFSFileNameCompletor hdfsPaths = new HDFSFileNameCompletor(sessionState.listingCache(), sessionState.listingPrefetcher());
         final Iterable<Call> REPL_COMMANDS = ImmutableSet.<Call>builder()
-            .add(call("ls", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("lsr", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("df", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("du", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("dus", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("count", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("mv", new HDFSFileNameCompletor(sessionState.configuration()), new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("cp", new HDFSFileNameCompletor(sessionState.configuration()), new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("rm", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("rmr", new HDFSFileNameCompletor(sessionState.configuration())))
+            .add(call("ls", hdfsPaths))
+            .add(call("lsr", hdfsPaths))
+            .add(call("df", hdfsPaths))
+            .add(call("du", hdfsPaths))
+            .add(call("dus", hdfsPaths))
+            .add(call("count", hdfsPaths))
+            .add(call("mv", hdfsPaths, hdfsPaths))
+            .add(call("cp", hdfsPaths, hdfsPaths))
+            .add(call("rm", hdfsPaths))
+            .add(call("rmr", hdfsPaths))
             .add(call("expunge"))
-            .add(call("put", new FileNameCompleter(), new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("cat", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("text", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("copyToLocal", new HDFSFileNameCompletor(sessionState.configuration()), new FileNameCompleter()))
-            .add(call("moveToLocal", new HDFSFileNameCompletor(sessionState.configuration()), new FileNameCompleter()))
-            .add(call("mkdir", new HDFSFileNameCompletor(sessionState.configuration())))
+            .add(call("put", new FileNameCompleter(), hdfsPaths))
+            .add(call("cat", hdfsPaths))
+            .add(call("text", hdfsPaths))
+            .add(call("copyToLocal", hdfsPaths, new FileNameCompleter()))
+            .add(call("moveToLocal", hdfsPaths, new FileNameCompleter()))
+            .add(call("mkdir", hdfsPaths))
 //            .add(call("setrep"))
-            .add(call("touchz", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("stat", new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("tail", new HDFSFileNameCompletor(sessionState.configuration())))
+            .add(call("touchz", hdfsPaths))
+            .add(call("stat", hdfsPaths))
+            .add(call("tail", hdfsPaths))
 //            .add(call("chmod"))
 //            .add(call("chown"))
 //            .add(call("chgrp"))
-            .add(call("copyFromLocal", new FileNameCompleter(), new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("moveFromLocal", new FileNameCompleter(), new HDFSFileNameCompletor(sessionState.configuration())))
-            .add(call("get", new HDFSFileNameCompletor(sessionState.configuration()), new FileNameCompleter()))
-            .add(call("getmerge", new HDFSFileNameCompletor(sessionState.configuration()), new FileNameCompleter()))
+            .add(call("copyFromLocal", new FileNameCompleter(), hdfsPaths))
+            .add(call("moveFromLocal", new FileNameCompleter(), hdfsPaths))
+            .add(call("get", hdfsPaths, new FileNameCompleter()))
+            .add(call("getmerge", hdfsPaths, new FileNameCompleter()))
             .build();
         final ImmutableMap.Builder<Call, Command> commandMappingBuilder = new ImmutableMap.Builder<Call, Command>();
         for (final Call call : REPL_COMMANDS) {
@@ -77,6 +85,10 @@ public class FSShellCommandProvider implements CommandProvider {
                         new FsShell(sessionState.configuration()).run(Joiner.on(" ").join("-" + call.command, Joiner.on(" ").join(call.args)).split(" "));
                     } catch (final Exception ex) {
                         sessionState.error(ex);
+                    } finally {
+                        if (MUTATING_COMMANDS.contains(call.command.toLowerCase())) {
+                            sessionState.listingCache().invalidateAll();
+                        }
                     }
                 }
 
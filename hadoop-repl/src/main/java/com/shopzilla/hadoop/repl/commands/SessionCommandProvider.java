@@ -21,11 +21,13 @@ package com.shopzilla.hadoop.repl.commands;
 import com.google.common.collect.ImmutableMap;
 import com.shopzilla.hadoop.repl.REPL;
 import com.shopzilla.hadoop.repl.SessionState;
+import com.shopzilla.hadoop.repl.commands.util.IndexedArchive;
 import jline.console.completer.FileNameCompleter;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 import static com.shopzilla.hadoop.repl.commands.Call.call;
@@ -77,7 +79,7 @@ public class SessionCommandProvider implements CommandProvider {
             @Override
             public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
                 if (call.args.length == 0) {
-                    sessionState.saveClusterState(format("session-%s.tgz", DF.format(new Date())));
+                    sessionState.saveClusterState(format("session-%s%s", DF.format(new Date()), IndexedArchive.EXTENSION));
                 } else if (call.args.length == 1) {
                     sessionState.saveClusterState(call.args[0]);
                 } else {
@@ -89,27 +91,237 @@ public class SessionCommandProvider implements CommandProvider {
             public Usage usage(SessionState sessionState) {
                 return new Usage(
                     "save",
-                    "Saves the current session's cluster state to disk",
+                    "Saves the current session's cluster state to disk, as an indexed archive unless the path ends with .tgz or .tar.gz",
                     "<path-to-save-cluster-state>"
                 );
             }
         })
+        .put(call("save-incremental", new FileNameCompleter(), new FileNameCompleter()), new Command() {
+
+            private final DateFormat DF = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length == 1) {
+                    sessionState.saveClusterState(format("session-%s%s", DF.format(new Date()), IndexedArchive.EXTENSION), call.args[0]);
+                } else if (call.args.length == 2) {
+                    sessionState.saveClusterState(call.args[1], call.args[0]);
+                } else {
+                    sessionState.outputUsage(this);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "save-incremental",
+                    "Saves only what changed since an earlier indexed archive; loading the result also reads its parents",
+                    "<path-to-parent-cluster-state>",
+                    "[<path-to-save-cluster-state>]"
+                );
+            }
+        })
         .put(call("load", new FileNameCompleter()), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length == 1) {
+                    sessionState.loadClusterState(call.args[0]);
+                } else if (call.args.length == 2) {
+                    sessionState.loadClusterState(call.args[0], call.args[1]);
+                } else {
+                    sessionState.outputUsage(this);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "load",
+                    "Loads the current session's cluster state from disk, or only the given HDFS path within it",
+                    "<path-to-load-cluster-state>",
+                    "[<hdfs-path>]"
+                );
+            }
+        })
+        .put(call("ls-archive", new FileNameCompleter()), new Command() {
+
+            private final DateFormat DF = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length < 1 || call.args.length > 2) {
+                    sessionState.outputUsage(this);
+                    return;
+                }
+                final List<IndexedArchive.Entry> entries = sessionState.listClusterState(call.args[0], call.args.length == 2 ? call.args[1] : "/");
+                sessionState.output("Found %d items", entries.size());
+                for (final IndexedArchive.Entry entry : entries) {
+                    sessionState.output("%s%s %3s %-8s %-10s %10d %s %s",
+                        entry.isDirectory() ? "d" : "-",
+                        entry.getPermission(),
+                        entry.isDirectory() ? "-" : String.valueOf(entry.getReplication()),
+                        entry.getOwner(),
+                        entry.getGroup(),
+                        entry.getLength(),
+                        DF.format(new Date(entry.getModificationTime())),
+                        entry.getPath());
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "ls-archive",
+                    "Lists an HDFS directory inside an indexed archive written by save, without loading it",
+                    "<path-to-cluster-state>",
+                    "[<hdfs-path>]"
+                );
+            }
+        })
+        .put(call("store-save", new FileNameCompleter()), new Command() {
+
+            private final DateFormat DF = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length == 1) {
+                    sessionState.saveClusterStateToStore(call.args[0], format("session-%s", DF.format(new Date())));
+                } else if (call.args.length == 2) {
+                    sessionState.saveClusterStateToStore(call.args[0], call.args[1]);
+                } else {
+                    sessionState.outputUsage(this);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "store-save",
+                    "Saves the current session's cluster state into a chunk store, writing only the chunks it does not already hold",
+                    "<path-to-chunk-store>",
+                    "[<session-name>]"
+                );
+            }
+        })
+        .put(call("store-load", new FileNameCompleter()), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length == 2) {
+                    sessionState.loadClusterStateFromStore(call.args[0], call.args[1], "/");
+                } else if (call.args.length == 3) {
+                    sessionState.loadClusterStateFromStore(call.args[0], call.args[1], call.args[2]);
+                } else {
+                    sessionState.outputUsage(this);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "store-load",
+                    "Loads a session's cluster state from a chunk store, or only the given HDFS path within it",
+                    "<path-to-chunk-store>",
+                    "<session-name>",
+                    "[<hdfs-path>]"
+                );
+            }
+        })
+        .put(call("store-ls", new FileNameCompleter()), new Command() {
             @Override
             public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
                 if (call.args.length != 1) {
                     sessionState.outputUsage(this);
                 } else {
-                    sessionState.loadClusterState(call.args[0]);
+                    for (final String name : sessionState.listStore(call.args[0])) {
+                        sessionState.output("%s", name);
+                    }
                 }
             }
 
             @Override
             public Usage usage(SessionState sessionState) {
                 return new Usage(
-                    "load",
-                    "Loads the current session's cluster state from disk",
-                    "<path-to-load-cluster-state>"
+                    "store-ls",
+                    "Lists the sessions saved in a chunk store",
+                    "<path-to-chunk-store>"
+                );
+            }
+        })
+        .put(call("store-rm", new FileNameCompleter()), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length != 2) {
+                    sessionState.outputUsage(this);
+                } else {
+                    sessionState.deleteFromStore(call.args[0], call.args[1]);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "store-rm",
+                    "Deletes a session from a chunk store, along with the chunks no other session uses",
+                    "<path-to-chunk-store>",
+                    "<session-name>"
+                );
+            }
+        })
+        .put(call("store-gc", new FileNameCompleter()), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length != 1) {
+                    sessionState.outputUsage(this);
+                } else {
+                    sessionState.collectStoreGarbage(call.args[0]);
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "store-gc",
+                    "Deletes the chunks in a chunk store that no session references",
+                    "<path-to-chunk-store>"
+                );
+            }
+        })
+        .put(call("status"), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                sessionState.outputStatus();
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "status",
+                    "Shows the queued and running saves and loads, with the bytes done, throughput and time left of the running one"
+                );
+            }
+        })
+        .put(call("cancel"), new Command() {
+            @Override
+            public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                if (call.args.length != 1) {
+                    sessionState.outputUsage(this);
+                } else if (call.args[0].equals("all")) {
+                    sessionState.cancelAllTasks();
+                } else {
+                    try {
+                        sessionState.cancelTask(Integer.parseInt(call.args[0]));
+                    } catch (final NumberFormatException ex) {
+                        sessionState.outputUsage(this);
+                    }
+                }
+            }
+
+            @Override
+            public Usage usage(SessionState sessionState) {
+                return new Usage(
+                    "cancel",
+                    "Stops a queued or running save or load; a cancelled save leaves no partial archive behind",
+                    "<task-id> | all"
                 );
             }
         })
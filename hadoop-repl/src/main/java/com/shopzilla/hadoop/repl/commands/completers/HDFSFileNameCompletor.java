@@ -19,40 +19,65 @@
 
 package com.shopzilla.hadoop.repl.commands.completers;
 
-import com.google.common.base.Function;
 import com.google.common.collect.Lists;
 import jline.console.completer.Completer;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 /**
+ * Completes HDFS paths from the listings in an {@link HDFSListingCache}, telling files from directories by the
+ * listing itself so that a completion costs at most one NameNode RPC.
+ *
+ * In a directory with more matches than the candidate cap, the longest prefix the matches share is offered if it
+ * is longer than what was typed, and the first matches in name order otherwise.
+ *
+ * Given an {@link HDFSListingPrefetcher}, the directories among the matches are listed in the background, so
+ * that completing into one of them next needs no round trip.
+ *
  * @author Jeremy Lucas
  * @since 9/11/12
  */
 public class HDFSFileNameCompletor implements Completer {
 
+    public static final int DEFAULT_MAX_CANDIDATES = 500;
+
     private final Path root;
-    private final FileSystem fs;
+    private final HDFSListingCache listingCache;
+    private final HDFSListingPrefetcher prefetcher;
+    private final int maxCandidates;
 
     public HDFSFileNameCompletor(final Configuration conf) {
         this(conf, new Path("/"));
     }
 
     public HDFSFileNameCompletor(final Configuration conf, final Path root) {
-        try {
-            this.fs = FileSystem.get(conf);
-            this.root = root;
-        } catch (final IOException ex) {
-            throw new RuntimeException(ex);
-        }
+        this(new HDFSListingCache(conf), root, DEFAULT_MAX_CANDIDATES);
+    }
+
+    public HDFSFileNameCompletor(final HDFSListingCache listingCache) {
+        this(listingCache, null);
+    }
+
+    public HDFSFileNameCompletor(final HDFSListingCache listingCache, final HDFSListingPrefetcher prefetcher) {
+        this(listingCache, prefetcher, new Path("/"), DEFAULT_MAX_CANDIDATES);
+    }
+
+    public HDFSFileNameCompletor(final HDFSListingCache listingCache, final Path root, final int maxCandidates) {
+        this(listingCache, null, root, maxCandidates);
+    }
+
+    public HDFSFileNameCompletor(final HDFSListingCache listingCache, final HDFSListingPrefetcher prefetcher,
+                                 final Path root, final int maxCandidates) {
+        this.listingCache = listingCache;
+        this.prefetcher = prefetcher;
+        this.root = root;
+        this.maxCandidates = maxCandidates;
     }
 
     @Override
@@ -63,19 +88,21 @@ public class HDFSFileNameCompletor implements Completer {
                 return 0;
             }
 
-            final String translated = buffer;
-            final Path f = new Path(root, translated);
+            final Path f = buffer.isEmpty() ? root : new Path(root, buffer);
             final Path dir;
+            final String prefix;
 
-            if (translated.endsWith(File.separator)) {
+            if (buffer.isEmpty() || buffer.endsWith(File.separator)) {
                 dir = f;
+                prefix = "";
             } else {
                 dir = f.getParent();
+                prefix = f.getName();
             }
 
-            final Path[] entries = (dir == null) ? new Path[0] : listFiles(dir);
+            final FileStatus[] entries = (dir == null) ? new FileStatus[0] : listingCache.list(dir);
 
-            return matchFiles(buffer, translated, entries, candidates);
+            return matchFiles(buffer, prefix, entries, candidates);
         } catch (final Exception ex) {
             // Don't do anything
             return 0;
@@ -84,44 +111,53 @@ public class HDFSFileNameCompletor implements Completer {
         }
     }
 
-    protected Path[] listFiles(final Path d) throws IOException {
-        final FileStatus[] files = fs.listStatus(d);
-        if (files != null) {
-            return Lists.transform(Arrays.asList(files), new Function<FileStatus, Path>() {
-                @Override
-                public Path apply(final FileStatus fileStatus) {
-                    return fileStatus.getPath();
-                }
-            }).toArray(new Path[0]);
-        } else {
-            return new Path[0];
-        }
-    }
-
     protected void sortFileNames(final List fileNames) {
         Collections.sort(fileNames);
     }
 
-    public int matchFiles(final String buffer, final String translated, final Path[] entries, final List candidates) throws IOException {
+    /**
+     * Adds the names in <code>entries</code> that start with <code>prefix</code> to <code>candidates</code>.
+     *
+     * @return the position in <code>buffer</code> the candidates replace from
+     */
+    @SuppressWarnings("unchecked")
+    public int matchFiles(final String buffer, final String prefix, final FileStatus[] entries, final List candidates) throws IOException {
         if (entries == null) {
             return -1;
         }
 
-        int matches = 0;
-
-        for (int i = 0; i < entries.length; i++) {
-            if (entries[i].toUri().getPath().startsWith(translated)) {
-                matches++;
+        final List<FileStatus> matches = Lists.newArrayList();
+        final List<Path> directories = Lists.newArrayList();
+        for (final FileStatus entry : entries) {
+            if (entry.getPath().getName().startsWith(prefix)) {
+                matches.add(entry);
+                if (entry.isDir()) {
+                    directories.add(entry.getPath());
+                }
             }
         }
+        if (prefetcher != null) {
+            prefetcher.prefetch(directories);
+        }
 
-        for (int i = 0; i < entries.length; i++) {
-            if (entries[i].toUri().getPath().startsWith(translated)) {
-                String name =
-                    entries[i].getName()
-                        + (((matches == 1) && !fs.isFile(entries[i]))
-                        ? File.separator : " ");
-                candidates.add(name);
+        if (matches.size() == 1) {
+            final FileStatus match = matches.get(0);
+            candidates.add(match.getPath().getName() + (match.isDir() ? File.separator : " "));
+        } else if (matches.size() <= maxCandidates) {
+            for (final FileStatus match : matches) {
+                candidates.add(match.getPath().getName());
+            }
+        } else {
+            final String common = commonPrefix(matches);
+            if (common.length() > prefix.length()) {
+                candidates.add(common);
+            } else {
+                final List<String> names = Lists.newArrayList();
+                for (final FileStatus match : matches) {
+                    names.add(match.getPath().getName());
+                }
+                Collections.sort(names);
+                candidates.addAll(names.subList(0, maxCandidates));
             }
         }
 
@@ -129,4 +165,17 @@ public class HDFSFileNameCompletor implements Completer {
 
         return index + File.separator.length();
     }
+
+    private static String commonPrefix(final List<FileStatus> matches) {
+        String common = matches.get(0).getPath().getName();
+        for (final FileStatus match : matches) {
+            final String name = match.getPath().getName();
+            int i = 0;
+            while (i < common.length() && i < name.length() && common.charAt(i) == name.charAt(i)) {
+                i++;
+            }
+            common = common.substring(0, i);
+        }
+        return common;
+    }
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.completers;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory listings kept for tab completion, so that pressing Tab repeatedly in the same directory costs one
+ * NameNode RPC rather than one per press.
+ *
+ * A listing is dropped once it is older than the TTL, and the least recently used listings are dropped once all
+ * of them together hold more than a fixed number of entries. REPL commands that change HDFS invalidate it.
+ * The cache also tracks a moving average of how long the NameNode takes to list a directory, which
+ * {@link HDFSListingPrefetcher} backs off on.
+ */
+public class HDFSListingCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private static final FileStatus[] EMPTY = new FileStatus[0];
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final FileSystem fs;
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true);
+    private int entries = 0;
+    private long generation = 0;
+    private volatile long latencyNanos = 0;
+
+    public HDFSListingCache(final Configuration configuration) {
+        this(configuration, DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    public HDFSListingCache(final Configuration configuration, final long ttlMillis, final int maxEntries) {
+        try {
+            this.fs = FileSystem.get(configuration);
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public HDFSListingCache(final FileSystem fs, final long ttlMillis, final int maxEntries) {
+        this.fs = fs;
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the children of <code>directory</code>, from the cache if it holds a fresh listing; empty if
+     * <code>directory</code> does not exist
+     */
+    public FileStatus[] list(final Path directory) throws IOException {
+        final FileStatus[] cached = getIfPresent(directory);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = generation();
+        final FileStatus[] statuses = fetch(directory);
+        put(directory, statuses, generation);
+        return statuses;
+    }
+
+    /**
+     * Lists <code>directory</code> and caches the listing if all the cached listings together then hold no more
+     * than <code>budget</code> entries.
+     *
+     * @return false if the listing was not cached
+     */
+    public boolean prefetch(final Path directory, final int budget) throws IOException {
+        final long generation = generation();
+        final FileStatus[] statuses = fetch(directory);
+        synchronized (this) {
+            return entries + statuses.length <= budget && put(directory, statuses, generation);
+        }
+    }
+
+    /**
+     * Listed outside the lock, so that a slow NameNode does not hold up other lookups.
+     */
+    private FileStatus[] fetch(final Path directory) throws IOException {
+        final long start = System.nanoTime();
+        final FileStatus[] statuses = fs.listStatus(directory);
+        recordLatency(System.nanoTime() - start);
+        return statuses == null ? EMPTY : statuses;
+    }
+
+    private synchronized void recordLatency(final long nanos) {
+        latencyNanos = latencyNanos == 0 ? nanos : (long) (LATENCY_WEIGHT * nanos + (1 - LATENCY_WEIGHT) * latencyNanos);
+    }
+
+    /**
+     * @return the exponentially weighted moving average of the time taken to list a directory, or 0 before the first
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return the cached children of <code>directory</code>, or null if there is no fresh listing
+     */
+    public synchronized FileStatus[] getIfPresent(final Path directory) {
+        final String key = key(directory);
+        final Listing listing = listings.get(key);
+        if (listing == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - listing.listedMillis > ttlMillis) {
+            remove(key);
+            return null;
+        }
+        return listing.statuses;
+    }
+
+    /**
+     * Caches a listing started at <code>generation</code>, unless the cache has been invalidated since, in which
+     * case the listing may predate the change.
+     */
+    private synchronized boolean put(final Path directory, final FileStatus[] statuses, final long generation) {
+        if (generation != this.generation || statuses.length > maxEntries) {
+            return false;
+        }
+        final String key = key(directory);
+        remove(key);
+        listings.put(key, new Listing(statuses, System.currentTimeMillis()));
+        entries += statuses.length;
+        final Iterator<Map.Entry<String, Listing>> eldest = listings.entrySet().iterator();
+        while (entries > maxEntries && eldest.hasNext()) {
+            entries -= eldest.next().getValue().statuses.length;
+            eldest.remove();
+        }
+        return true;
+    }
+
+    public synchronized void invalidate(final Path directory) {
+        generation++;
+        remove(key(directory));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        listings.clear();
+        entries = 0;
+    }
+
+    /**
+     * @return the number of file statuses held across all listings
+     */
+    public synchronized int size() {
+        return entries;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private void remove(final String key) {
+        final Listing listing = listings.remove(key);
+        if (listing != null) {
+            entries -= listing.statuses.length;
+        }
+    }
+
+    private static String key(final Path directory) {
+        final String path = directory.toUri().getPath();
+        return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static class Listing {
+        private final FileStatus[] statuses;
+        private final long listedMillis;
+
+        private Listing(final FileStatus[] statuses, final long listedMillis) {
+            this.statuses = statuses;
+            this.listedMillis = listedMillis;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.completers;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists directories into an {@link HDFSListingCache} ahead of tab completion, so that the next Tab into them is
+ * answered from memory rather than with a round trip to the NameNode.
+ *
+ * Listings are fetched by a few low-priority daemon threads from a short queue; requests that do not fit are
+ * dropped. Prefetching stops once the cache holds its budget of entries, so that it never evicts listings the user
+ * has actually visited. The budget counts file statuses rather than bytes because that is the unit the cache is
+ * bounded and evicts by; a status is a few hundred bytes, mostly its path, so the count stays roughly proportional
+ * to memory without sizing every listing. Once the cache's average listing latency rises above a threshold each
+ * fetch is preceded by a pause that grows with the latency, and past ten times the threshold new requests are
+ * dropped altogether.
+ */
+public class HDFSListingPrefetcher {
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final long DEFAULT_BACKOFF_THRESHOLD_MILLIS = 100;
+    public static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final HDFSListingCache cache;
+    private final int budget;
+    private final long backoffThresholdNanos;
+    private final ThreadPoolExecutor executor;
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Prefetches into at most half of <code>cache</code>.
+     */
+    public HDFSListingPrefetcher(final HDFSListingCache cache) {
+        this(cache, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, cache.getMaxEntries() / 2,
+            DEFAULT_BACKOFF_THRESHOLD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public HDFSListingPrefetcher(final HDFSListingCache cache, final int threads, final int queueSize, final int budget,
+                                 final long backoffThreshold, final TimeUnit unit) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Prefetching requires at least one thread");
+        }
+        this.cache = cache;
+        this.budget = budget;
+        this.backoffThresholdNanos = unit.toNanos(backoffThreshold);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactoryBuilder()
+                .setNameFormat("listing-prefetch-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+    }
+
+    /**
+     * Queues <code>directories</code>, in order, for listing unless they are cached already, stopping at the first
+     * one the queue has no room for.
+     */
+    public void prefetch(final Iterable<Path> directories) {
+        for (final Path directory : directories) {
+            if (!prefetch(directory)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false if the request was dropped because the queue is full or the NameNode is too slow
+     */
+    public boolean prefetch(final Path directory) {
+        if (cache.getLatencyNanos() > 10 * backoffThresholdNanos || cache.size() >= budget) {
+            return false;
+        }
+        final String key = directory.toUri().getPath();
+        if (cache.getIfPresent(directory) != null || !pending.add(key)) {
+            return true;
+        }
+        try {
+            executor.execute(new Fetch(directory, key));
+            return true;
+        } catch (final RejectedExecutionException ex) {
+            pending.remove(key);
+            return false;
+        }
+    }
+
+    /**
+     * @return how long to pause before the next fetch: nothing while the average listing latency is under the
+     * threshold, and above it the latency scaled by how far over the threshold it is
+     */
+    long backoffMillis() {
+        final long latency = cache.getLatencyNanos();
+        if (latency <= backoffThresholdNanos) {
+            return 0;
+        }
+        return Math.min(MAX_BACKOFF_MILLIS, TimeUnit.NANOSECONDS.toMillis((long) ((double) latency * latency / backoffThresholdNanos)));
+    }
+
+    /**
+     * @return the number of listings queued or being fetched
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class Fetch implements Runnable {
+        private final Path directory;
+        private final String key;
+
+        private Fetch(final Path directory, final String key) {
+            this.directory = directory;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final long backoff = backoffMillis();
+                if (backoff > 0) {
+                    Thread.sleep(backoff);
+                }
+                if (cache.getIfPresent(directory) == null && cache.size() < budget) {
+                    cache.prefetch(directory, budget);
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException ex) {
+                // Only a guess at what comes next; the completion itself will list the directory if it needs it
+            } finally {
+                pending.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.String.format;
+
+/**
+ * Restores an archive written by {@link ClusterStateManager#serializePath} into HDFS without extracting it locally.
+ *
+ * The archive is read once, front to back. Directories are created as they are reached, which is always before
+ * any of their children, and each file body is cut into chunks and handed to a pool of writer threads. At most
+ * <code>bufferBytes</code> of chunks are held in memory at once; the reader waits for the writers beyond that.
+ * Permissions, modification times, replication and block size are restored; owners are not, since changing
+ * them needs superuser rights, so everything belongs to the loading user.
+ */
+public class ArchiveLoader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final long DEFAULT_BUFFER_BYTES = 64L * 1024 * 1024;
+
+    private static final String DATA_DIRECTORY = "./hdfs";
+    private static final byte[] END = new byte[0];
+    private static final Path ROOT = new Path("/");
+
+    private final FileSystem fs;
+    private final int threads;
+    private final int chunkSize;
+    private final long bufferBytes;
+
+    public ArchiveLoader(final FileSystem fs) {
+        this(fs, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, DEFAULT_BUFFER_BYTES);
+    }
+
+    public ArchiveLoader(final FileSystem fs, final int threads, final int chunkSize, final long bufferBytes) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Load requires at least one writer thread");
+        }
+        if (bufferBytes < chunkSize) {
+            throw new IllegalArgumentException("Buffer must hold at least one chunk");
+        }
+        this.fs = fs;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.bufferBytes = bufferBytes;
+    }
+
+    public Statistics load(final File archive, final Path target, final ProgressListener listener) throws IOException {
+        return load(archive, target, "/", listener);
+    }
+
+    /**
+     * Loads the entries of <code>archive</code> at or below <code>subpath</code>, a path within the archive, to the
+     * same place below <code>target</code>, reporting progress as compressed bytes read. The whole archive is still decompressed to find them.
+     */
+    public Statistics load(final File archive, final Path target, final String subpath, final ProgressListener listener) throws IOException {
+        final CountingInputStream counter = new CountingInputStream(new FileInputStream(archive));
+        final InputStream in = new ParallelGZIPInputStream(new BufferedInputStream(counter, chunkSize));
+        try {
+            return load(in, target, IndexedArchive.normalize(subpath), new Runnable() {
+                @Override
+                public void run() {
+                    listener.progress(counter.getByteCount(), archive.length());
+                }
+            });
+        } finally {
+            in.close();
+        }
+    }
+
+    private Statistics load(final InputStream in, final Path target, final String subpath, final Runnable onChunk) throws IOException {
+        final long start = System.nanoTime();
+        final TarArchiveInputStream tais = new TarArchiveInputStream(in, Charsets.UTF_8.name());
+        final Semaphore budget = new Semaphore((int) (bufferBytes / chunkSize));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Map<String, long[]> layouts = Maps.newHashMap();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("archive-load-%d")
+            .setDaemon(true)
+            .build());
+        int files = 0;
+        int directories = 0;
+        long bytes = 0;
+        Write current = null;
+        boolean finished = false;
+        try {
+            TarArchiveEntry entry;
+            while ((entry = tais.getNextTarEntry()) != null) {
+                final String name = trimSlash(entry.getName());
+                if (name.startsWith(ClusterStateManager.METADATA_DIRECTORY) && name.endsWith("/" + ClusterStateManager.LISTING_NAME)) {
+                    readListing(tais, name, layouts);
+                    continue;
+                }
+                // subpath is relative to the archive, not to the target it is loaded into
+                final Path source = toPath(name, ROOT);
+                if (source == null || !IndexedArchive.isWithin(source.toUri().getPath(), subpath)) {
+                    continue;
+                }
+                final Path path = toPath(name, target);
+                final FsPermission permission = new FsPermission((short) (entry.getMode() & 0777));
+                if (entry.isDirectory()) {
+                    if (!fs.mkdirs(path)) {
+                        throw new IOException("Unable to create directory: " + path);
+                    }
+                    fs.setPermission(path, permission);
+                    directories++;
+                } else {
+                    final long[] layout = layouts.remove(name);
+                    final Write write = new Write(path, permission, entry.getModTime().getTime(),
+                        layout == null ? fs.getDefaultReplication() : (short) layout[0],
+                        layout == null ? fs.getDefaultBlockSize() : layout[1],
+                        budget, failure);
+                    executor.execute(write);
+                    current = write;
+                    while (true) {
+                        checkFailure(failure);
+                        final byte[] chunk = readChunk(tais);
+                        if (chunk == null) {
+                            break;
+                        }
+                        budget.acquire();
+                        write.chunks.add(chunk);
+                        bytes += chunk.length;
+                        onChunk.run();
+                    }
+                    write.chunks.add(END);
+                    current = null;
+                    files++;
+                }
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                checkFailure(failure);
+            }
+            checkFailure(failure);
+            onChunk.run();
+            finished = true;
+            return new Statistics(files, directories, bytes, System.nanoTime() - start);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading");
+        } finally {
+            if (!finished) {
+                // the writers are told to give up rather than interrupted, since they share the caller's FileSystem
+                failure.compareAndSet(null, new IOException("Load abandoned"));
+                if (current != null) {
+                    current.chunks.add(END);
+                }
+            }
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Waits for the tasks left on <code>executor</code>, which has been shut down, to finish. Workers are never
+     * interrupted, so an interrupt only stops the wait.
+     */
+    static void awaitTermination(final ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // keep waiting; the workers stop at their next check
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] readChunk(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[chunkSize];
+        int filled = 0;
+        int read;
+        while (filled < chunkSize && (read = in.read(buffer, filled, chunkSize - filled)) != -1) {
+            filled += read;
+        }
+        if (filled == 0) {
+            return null;
+        }
+        if (filled < chunkSize) {
+            final byte[] chunk = new byte[filled];
+            System.arraycopy(buffer, 0, chunk, 0, filled);
+            return chunk;
+        }
+        return buffer;
+    }
+
+    /**
+     * Remembers the replication and block size of each child listed in a directory's metadata entry, keyed by
+     * the child's archive entry name, until the child itself is reached.
+     */
+    private void readListing(final InputStream in, final String name, final Map<String, long[]> layouts) throws IOException {
+        final String directory = DATA_DIRECTORY + name.substring(ClusterStateManager.METADATA_DIRECTORY.length() + "/hdfs".length(),
+            name.length() - ClusterStateManager.LISTING_NAME.length() - 1);
+        // Decoded as a whole, so that a multi-byte character split across reads is not mangled
+        final String listing = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        for (final String line : listing.split("\n")) {
+            final String[] fields = line.split("\t");
+            if (fields.length == 3) {
+                layouts.put(directory + "/" + fields[0], new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+            }
+        }
+    }
+
+    /**
+     * @return where the entry <code>name</code> belongs below <code>target</code>, or null if it is not HDFS data
+     */
+    static Path toPath(final String name, final Path target) {
+        final String normalized = name.startsWith("./") ? name : "./" + name;
+        if (!normalized.equals(DATA_DIRECTORY) && !normalized.startsWith(DATA_DIRECTORY + "/")) {
+            return null;
+        }
+        final String relative = normalized.substring(DATA_DIRECTORY.length());
+        return relative.isEmpty() ? target : new Path(target, relative.substring(1));
+    }
+
+    private static String trimSlash(final String name) {
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static void checkFailure(final AtomicReference<Throwable> failure) throws IOException {
+        final Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause != null) {
+            throw new IOException(cause);
+        }
+    }
+
+    private class Write implements Runnable {
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+        private final Path path;
+        private final FsPermission permission;
+        private final long modificationTime;
+        private final short replication;
+        private final long blockSize;
+        private final Semaphore budget;
+        private final AtomicReference<Throwable> failure;
+
+        private Write(final Path path, final FsPermission permission, final long modificationTime, final short replication,
+                      final long blockSize, final Semaphore budget, final AtomicReference<Throwable> failure) {
+            this.path = path;
+            this.permission = permission;
+            this.modificationTime = modificationTime;
+            this.replication = replication;
+            this.blockSize = blockSize;
+            this.budget = budget;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            FSDataOutputStream out = null;
+            try {
+                if (failure.get() != null) {
+                    drain();
+                    return;
+                }
+                out = fs.create(path, permission, true, chunkSize, replication, blockSize, null);
+                byte[] chunk;
+                while ((chunk = chunks.take()) != END) {
+                    if (failure.get() == null) {
+                        out.write(chunk);
+                    }
+                    budget.release();
+                }
+                if (failure.get() != null) {
+                    return;
+                }
+                out.close();
+                out = null;
+                fs.setPermission(path, permission);
+                fs.setTimes(path, modificationTime, -1);
+            } catch (final Throwable t) {
+                failure.compareAndSet(null, t);
+                drain();
+            } finally {
+                IOUtils.closeStream(out);
+            }
+        }
+
+        /**
+         * Gives back the budget held by chunks that will never be written, so the reader is not left waiting.
+         */
+        private void drain() {
+            try {
+                while (chunks.take() != END) {
+                    budget.release();
+                }
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class Statistics {
+        private final int files;
+        private final int directories;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        public Statistics(final int files, final int directories, final long bytes, final long elapsedNanos) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getDirectories() {
+            return directories;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return format("Loaded %d files (%d bytes) into %d directories in %d ms: %.1f bytes/sec",
+                files, bytes, directories, getElapsedMillis(), getBytesPerSecond());
+        }
+    }
+}
@@ -0,0 +1,632 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * A directory of sessions that share their file contents.
+ *
+ * Every HDFS file is cut into fixed-size chunks, and each chunk is stored once, gzipped, under the SHA-1 of its
+ * contents:
+ * <pre>
+ *   &lt;store&gt;/chunks/ab/ab12...ef
+ *   &lt;store&gt;/sessions/&lt;name&gt;.manifest
+ * </pre>
+ * A session is just a manifest listing each path with its metadata and the hashes of its chunks, so saving a
+ * session only writes the chunks the store does not already hold, and datasets common to many sessions take
+ * space once. Chunks start at fixed offsets, which deduplicates identical files and files that were appended to.
+ * {@link #gc} removes chunks that no manifest references any more. Saves and collections hold a lock on the store,
+ * so a collection never runs while a save is reusing chunks that nothing references yet.
+ */
+public class ChunkStore {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_GC_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String LOCK_NAME = ".lock";
+    private static final int MANIFEST_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    /**
+     * File locks are held by the whole JVM, so threads in it take turns through these, one per store.
+     */
+    private static final ConcurrentMap<File, ReentrantLock> LOCKS = new ConcurrentHashMap<File, ReentrantLock>();
+
+    private final File root;
+    private final File chunks;
+    private final File sessions;
+    private final FileSystem fs;
+    private final int threads;
+    private final int chunkSize;
+
+    public ChunkStore(final File root, final FileSystem fs) {
+        this(root, fs, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public ChunkStore(final File root, final FileSystem fs, final int threads, final int chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The chunk store requires at least one thread");
+        }
+        this.root = root;
+        this.chunks = new File(root, "chunks");
+        this.sessions = new File(root, "sessions");
+        this.fs = fs;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return the names of the sessions in the store
+     */
+    public List<String> sessions() {
+        final List<String> names = Lists.newArrayList();
+        final File[] manifests = sessions.listFiles();
+        if (manifests != null) {
+            for (final File manifest : manifests) {
+                if (manifest.getName().endsWith(MANIFEST_EXTENSION)) {
+                    names.add(manifest.getName().substring(0, manifest.getName().length() - MANIFEST_EXTENSION.length()));
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Saves <code>hdfsRoot</code> and everything below it as session <code>name</code>, replacing any session of that
+     * name. Chunks are hashed as they are read from HDFS; new ones are compressed and written on a pool of threads.
+     */
+    public Statistics save(final Path hdfsRoot, final String name, final ProgressListener listener) throws IOException {
+        checkName(name);
+        final Closeable lock = lock();
+        try {
+            return save(hdfsRoot, name, listener, System.nanoTime());
+        } finally {
+            lock.close();
+        }
+    }
+
+    private Statistics save(final Path hdfsRoot, final String name, final ProgressListener listener, final long start) throws IOException {
+        final long total = fs.getContentSummary(hdfsRoot).getLength();
+        final Set<String> claimed = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Semaphore inFlight = new Semaphore(threads * 2);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("chunk-store-%d")
+            .setDaemon(true)
+            .build());
+        if (!sessions.isDirectory() && !sessions.mkdirs()) {
+            throw new IOException("Unable to create directory: " + sessions);
+        }
+        final File manifest = new File(sessions, name + MANIFEST_EXTENSION);
+        final File tmp = new File(sessions, "." + name + "-" + UUID.randomUUID());
+        final DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)));
+        int files = 0;
+        int newChunks = 0;
+        int totalChunks = 0;
+        long bytes = 0;
+        try {
+            out.writeInt(MANIFEST_VERSION);
+            final Deque<FileStatus> pending = new ArrayDeque<FileStatus>();
+            pending.push(fs.getFileStatus(hdfsRoot));
+            while (!pending.isEmpty()) {
+                final FileStatus status = pending.pop();
+                out.writeBoolean(true);
+                out.writeUTF(status.getPath().toUri().getPath());
+                out.writeBoolean(status.isDir());
+                out.writeLong(status.getLen());
+                out.writeLong(status.getModificationTime());
+                out.writeShort(status.getPermission().toShort());
+                out.writeShort(status.getReplication());
+                out.writeLong(status.getBlockSize());
+                if (status.isDir()) {
+                    final FileStatus[] children = fs.listStatus(status.getPath());
+                    if (children == null) {
+                        throw new IOException("Unable to list directory: " + status.getPath());
+                    }
+                    for (int i = children.length - 1; i >= 0; i--) {
+                        pending.push(children[i]);
+                    }
+                    continue;
+                }
+                final List<String> hashes = Lists.newArrayList();
+                final InputStream in = fs.open(status.getPath(), BUFFER_SIZE);
+                try {
+                    byte[] chunk;
+                    while ((chunk = readChunk(in)) != null) {
+                        checkFailure(failure);
+                        final String hash = Hashing.sha1().hashBytes(chunk).toString();
+                        hashes.add(hash);
+                        totalChunks++;
+                        bytes += chunk.length;
+                        // touching a chunk that is reused keeps it clear of the grace period of a later gc
+                        if (claimed.add(hash) && !chunkFile(hash).setLastModified(System.currentTimeMillis())) {
+                            inFlight.acquire();
+                            executor.execute(new WriteChunk(hash, chunk, inFlight, failure));
+                            newChunks++;
+                        }
+                        listener.progress(bytes, total);
+                    }
+                } finally {
+                    in.close();
+                }
+                out.writeInt(hashes.size());
+                for (final String hash : hashes) {
+                    out.writeUTF(hash);
+                }
+                files++;
+            }
+            out.writeBoolean(false);
+            out.close();
+
+            // every chunk must be on disk before the manifest that references it is
+            inFlight.acquire(threads * 2);
+            checkFailure(failure);
+            if (manifest.exists() && !manifest.delete()) {
+                throw new IOException("Unable to replace session: " + manifest);
+            }
+            if (!tmp.renameTo(manifest)) {
+                throw new IOException("Unable to write session: " + manifest);
+            }
+            return new Statistics(files, totalChunks, newChunks, bytes, System.nanoTime() - start);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving");
+        } finally {
+            // chunk writes already queued are let finish; an unreferenced chunk is only left for gc
+            executor.shutdown();
+            ArchiveLoader.awaitTermination(executor);
+            out.close();
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Loads the entries at or below <code>subpath</code> in session <code>name</code> to the same place below
+     * <code>target</code>, restoring files in parallel from the chunks they reference; {@link ClusterStateManager#load}
+     * stages a load this way and then swaps it in. Every chunk is checked for before anything is written. Progress is
+     * reported as bytes restored, from the calling thread, and if the load fails or a report throws, the writers stop
+     * after their current chunk.
+     */
+    public ArchiveLoader.Statistics load(final String name, final Path target, final String subpath, final ProgressListener listener) throws IOException {
+        final long start = System.nanoTime();
+        final String root = IndexedArchive.normalize(subpath);
+        checkName(name);
+        final List<Entry> entries = readManifest(name);
+        final List<Entry> files = Lists.newArrayList();
+        final List<Entry> directories = Lists.newArrayList();
+        long total = 0;
+        for (final Entry entry : entries) {
+            if (IndexedArchive.isWithin(entry.path, root)) {
+                if (entry.directory) {
+                    directories.add(entry);
+                } else {
+                    files.add(entry);
+                    total += entry.length;
+                }
+            }
+        }
+        if (files.isEmpty() && directories.isEmpty()) {
+            throw new IOException(subpath + " is not in session " + name);
+        }
+        for (final Entry entry : files) {
+            for (final String hash : entry.hashes) {
+                if (!chunkFile(hash).isFile()) {
+                    throw new IOException(format("Chunk %s of %s is missing from the store", hash, entry.path));
+                }
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("chunk-store-%d")
+            .setDaemon(true)
+            .build());
+        final AtomicLong done = new AtomicLong();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            for (final Entry entry : directories) {
+                final Path path = IndexedArchive.toPath(target, entry.path);
+                if (!fs.mkdirs(path)) {
+                    throw new IOException("Unable to create directory: " + path);
+                }
+                fs.setPermission(path, new FsPermission(entry.permission));
+            }
+            final CompletionService<Entry> completionService = new ExecutorCompletionService<Entry>(executor);
+            for (final Entry entry : files) {
+                completionService.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws IOException {
+                        restore(entry, target, done, stopped);
+                        return entry;
+                    }
+                });
+            }
+            for (int completed = 0; completed < files.size(); ) {
+                final Future<Entry> file = completionService.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (file != null) {
+                    file.get();
+                    completed++;
+                }
+                listener.progress(done.get(), total);
+            }
+            return new ArchiveLoader.Statistics(files.size(), directories.size(), total, System.nanoTime() - start);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            stopped.set(true);
+            executor.shutdown();
+            ArchiveLoader.awaitTermination(executor);
+        }
+    }
+
+    public void delete(final String name) throws IOException {
+        checkName(name);
+        final File manifest = new File(sessions, name + MANIFEST_EXTENSION);
+        if (!manifest.delete()) {
+            throw new IOException("Unable to delete session: " + manifest);
+        }
+    }
+
+    /**
+     * Deletes every chunk that no session references, waiting for any save in progress to finish first. Chunks
+     * written or reused in the last <code>graceMillis</code> are kept all the same.
+     *
+     * @return the number of bytes freed
+     */
+    public long gc(final long graceMillis) throws IOException {
+        final Closeable lock = lock();
+        try {
+            return collect(graceMillis);
+        } finally {
+            lock.close();
+        }
+    }
+
+    private long collect(final long graceMillis) throws IOException {
+        final Set<String> referenced = Sets.newHashSet();
+        for (final String name : sessions()) {
+            for (final Entry entry : readManifest(name)) {
+                referenced.addAll(entry.hashes);
+            }
+        }
+        final long cutoff = System.currentTimeMillis() - graceMillis;
+        long freed = 0;
+        final File[] prefixes = chunks.listFiles();
+        if (prefixes == null) {
+            return 0;
+        }
+        for (final File prefix : prefixes) {
+            final File[] files = prefix.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (final File chunk : files) {
+                if (!referenced.contains(chunk.getName()) && chunk.lastModified() < cutoff) {
+                    final long length = chunk.length();
+                    if (chunk.delete()) {
+                        freed += length;
+                    }
+                }
+            }
+        }
+        return freed;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    private void restore(final Entry entry, final Path target, final AtomicLong done, final AtomicBoolean stopped) throws IOException {
+        if (stopped.get()) {
+            throw new IOException("Load abandoned");
+        }
+        final Path path = IndexedArchive.toPath(target, entry.path);
+        final FSDataOutputStream out = fs.create(path, new FsPermission(entry.permission), true, BUFFER_SIZE, entry.replication, entry.blockSize, null);
+        try {
+            for (final String hash : entry.hashes) {
+                final File chunk = chunkFile(hash);
+                if (!chunk.isFile()) {
+                    throw new IOException(format("Chunk %s of %s is missing from the store", hash, entry.path));
+                }
+                if (stopped.get()) {
+                    throw new IOException("Load abandoned");
+                }
+                final byte[] data = ParallelGZIPInputStream.inflate(Files.toByteArray(chunk));
+                out.write(data);
+                done.addAndGet(data.length);
+            }
+        } finally {
+            out.close();
+        }
+        fs.setPermission(path, new FsPermission(entry.permission));
+        fs.setTimes(path, entry.modificationTime, -1);
+    }
+
+    /**
+     * Takes the store for a save or a gc: a file lock keeps out other processes and a lock per store other threads.
+     */
+    private Closeable lock() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Unable to create directory: " + root);
+        }
+        final File key = root.getCanonicalFile();
+        LOCKS.putIfAbsent(key, new ReentrantLock());
+        final ReentrantLock lock = LOCKS.get(key);
+        try {
+            lock.lockInterruptibly();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the store lock");
+        }
+        try {
+            final RandomAccessFile file = new RandomAccessFile(new File(root, LOCK_NAME), "rw");
+            try {
+                final FileLock fileLock = file.getChannel().lock();
+                return new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            fileLock.release();
+                            file.close();
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                };
+            } catch (final IOException ex) {
+                file.close();
+                throw ex;
+            }
+        } catch (final IOException ex) {
+            lock.unlock();
+            throw ex;
+        }
+    }
+
+    /**
+     * Session names become file names in the store, so they may not reach outside it.
+     */
+    private static void checkName(final String name) {
+        if (name == null || name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+            throw new IllegalArgumentException("Invalid session name: " + name);
+        }
+    }
+
+    private List<Entry> readManifest(final String name) throws IOException {
+        final File manifest = new File(sessions, name + MANIFEST_EXTENSION);
+        if (!manifest.isFile()) {
+            throw new IOException(format("No session %s in %s", name, root));
+        }
+        final DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(manifest), BUFFER_SIZE)));
+        try {
+            if (in.readInt() != MANIFEST_VERSION) {
+                throw new IOException("Unsupported manifest version: " + manifest);
+            }
+            final List<Entry> entries = Lists.newArrayList();
+            while (in.readBoolean()) {
+                final Entry entry = new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(), in.readShort(),
+                    in.readShort(), in.readLong());
+                if (!entry.directory) {
+                    final int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        entry.hashes.add(in.readUTF());
+                    }
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    private File chunkFile(final String hash) {
+        return new File(new File(chunks, hash.substring(0, 2)), hash);
+    }
+
+    private byte[] readChunk(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[chunkSize];
+        int filled = 0;
+        int read;
+        while (filled < chunkSize && (read = in.read(buffer, filled, chunkSize - filled)) != -1) {
+            filled += read;
+        }
+        if (filled == 0) {
+            return null;
+        }
+        if (filled < chunkSize) {
+            final byte[] chunk = new byte[filled];
+            System.arraycopy(buffer, 0, chunk, 0, filled);
+            return chunk;
+        }
+        return buffer;
+    }
+
+    private static void checkFailure(final AtomicReference<Throwable> failure) throws IOException {
+        final Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause != null) {
+            throw new IOException(cause);
+        }
+    }
+
+    private class WriteChunk implements Runnable {
+        private final String hash;
+        private final byte[] chunk;
+        private final Semaphore inFlight;
+        private final AtomicReference<Throwable> failure;
+
+        private WriteChunk(final String hash, final byte[] chunk, final Semaphore inFlight, final AtomicReference<Throwable> failure) {
+            this.hash = hash;
+            this.chunk = chunk;
+            this.inFlight = inFlight;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final File file = chunkFile(hash);
+                final File directory = file.getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                    throw new IOException("Unable to create directory: " + directory);
+                }
+                // written aside and renamed, so a chunk file is either absent or complete
+                final File tmp = new File(directory, "." + hash + "-" + UUID.randomUUID());
+                Files.write(ParallelGZIPOutputStream.compress(chunk, chunk.length, Deflater.DEFAULT_COMPRESSION), tmp);
+                if (!tmp.renameTo(file) && !file.exists()) {
+                    throw new IOException("Unable to write chunk: " + file);
+                }
+                if (tmp.exists()) {
+                    tmp.delete();
+                }
+            } catch (final Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String path;
+        private final boolean directory;
+        private final long length;
+        private final long modificationTime;
+        private final short permission;
+        private final short replication;
+        private final long blockSize;
+        private final List<String> hashes = Lists.newArrayList();
+
+        private Entry(final String path, final boolean directory, final long length, final long modificationTime,
+                      final short permission, final short replication, final long blockSize) {
+            this.path = path;
+            this.directory = directory;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.permission = permission;
+            this.replication = replication;
+            this.blockSize = blockSize;
+        }
+    }
+
+    public static class Statistics {
+        private final int files;
+        private final int chunks;
+        private final int newChunks;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        public Statistics(final int files, final int chunks, final int newChunks, final long bytes, final long elapsedNanos) {
+            this.files = files;
+            this.chunks = chunks;
+            this.newChunks = newChunks;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getChunks() {
+            return chunks;
+        }
+
+        public int getNewChunks() {
+            return newChunks;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        @Override
+        public String toString() {
+            return format("Saved %d files (%d bytes) in %d ms as %d chunks, %d of them new to the store",
+                files, bytes, getElapsedMillis(), chunks, newChunks);
+        }
+    }
+}
@@ -19,20 +19,22 @@
 
 package com.shopzilla.hadoop.repl.commands.util;
 
-import com.google.common.io.Files;
+import com.google.common.base.Charsets;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FsShell;
 import org.apache.hadoop.fs.Path;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.zip.GZIPOutputStream;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * @author Jeremy Lucas
@@ -40,6 +42,15 @@ import java.util.zip.GZIPOutputStream;
  */
 public class ClusterStateManager {
 
+    public static final String METADATA_DIRECTORY = "./.hdfs-metadata";
+    public static final String LISTING_NAME = ".listing";
+
+    private static final String STAGING_PREFIX = ".load-";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int DIRECTORY_TYPE = 040000;
+    private static final int FILE_TYPE = 0100000;
+
     protected final FileSystem fs;
 
     public ClusterStateManager(final Configuration configuration) {
@@ -55,50 +66,302 @@ public class ClusterStateManager {
     }
 
     public void serialize(final File output) {
+        serialize(output, ProgressListener.NONE);
+    }
+
+    public IndexedArchive.Statistics serialize(final File output, final ProgressListener listener) {
+        return serialize(output, (File) null, listener);
+    }
+
+    /**
+     * Saves all of HDFS to <code>output</code>: a tar.gz if its name ends with <code>.tgz</code> or
+     * <code>.tar.gz</code>, and an {@link IndexedArchive} otherwise. Given a <code>parent</code> indexed archive,
+     * only the files that changed since it was saved are copied.
+     *
+     * The archive is written to a hidden file next to <code>output</code> and only renamed into place once it is
+     * complete, so a save that fails or is cancelled leaves neither a partial archive nor a damaged earlier one.
+     *
+     * @return what was saved, or null for a tar.gz
+     */
+    public IndexedArchive.Statistics serialize(final File output, final File parent, final ProgressListener listener) {
+        if (parent != null && isTarball(output)) {
+            throw new IllegalArgumentException("Incremental saves need an indexed archive, not " + output);
+        }
+        // same directory as the output, so that the rename stays on one filesystem and parent paths resolve alike
+        final File partial = new File(output.getAbsoluteFile().getParentFile(), "." + output.getName() + "-" + UUID.randomUUID());
         try {
-            serializePath(new Path("/"), output);
+            final IndexedArchive.Statistics statistics;
+            if (isTarball(output)) {
+                serializePath(new Path("/"), partial, listener);
+                statistics = null;
+            } else {
+                statistics = new IndexedArchive(fs).save(new Path("/"), partial, parent, listener);
+            }
+            if (output.exists() && !output.delete()) {
+                throw new IOException("Unable to replace archive: " + output);
+            }
+            if (!partial.renameTo(output)) {
+                throw new IOException("Unable to write archive: " + output);
+            }
+            return statistics;
         } catch (final Exception ex) {
             throw new RuntimeException(ex);
+        } finally {
+            if (partial.exists() && !partial.delete()) {
+                partial.deleteOnExit();
+            }
         }
     }
 
-    public void load(final File archive) {
+    public ArchiveLoader.Statistics load(final File archive) {
+        return load(archive, "/", ProgressListener.NONE);
+    }
+
+    /**
+     * Replaces <code>subpath</code> in HDFS, or everything for <code>/</code>, with its contents in <code>archive</code>.
+     * An {@link IndexedArchive} reads only the files being restored; a tar.gz is read in full by {@link ArchiveLoader}.
+     *
+     * Either way the archive is loaded into a hidden staging directory first and only swapped in once it has been
+     * read completely, so a truncated, corrupt or cancelled load leaves HDFS as it was.
+     */
+    public ArchiveLoader.Statistics load(final File archive, final String subpath, final ProgressListener listener) {
         try {
-            throw new UnsupportedOperationException("Not yet!");
-//            TODO: Untargz the archive, then load in!
-//            fs.delete(new Path("/"), true);
-//            importHDFSDirectory(new Path("/"), archive, archive);
+            final Path staging = new Path("/" + STAGING_PREFIX + UUID.randomUUID());
+            try {
+                final ArchiveLoader.Statistics statistics = IndexedArchive.isIndexed(archive)
+                    ? new IndexedArchive(fs).load(archive, staging, subpath, listener)
+                    : new ArchiveLoader(fs).load(archive, staging, subpath, listener);
+                swapIn(staging, IndexedArchive.normalize(subpath), archive.toString());
+                return statistics;
+            } finally {
+                fs.delete(staging, true);
+            }
         } catch (final Exception ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    private void importHDFSDirectory(final Path hdfsRoot, final File localRoot, final File file) throws IOException {
-        final Path path = new Path(hdfsRoot, File.separator + localRoot.toURI().relativize(file.toURI()).getPath());
-        if (file.isDirectory()) {
-            fs.mkdirs(path);
-            fs.makeQualified(path);
-            for (final File child : file.listFiles()) {
-                importHDFSDirectory(hdfsRoot, localRoot, child);
+    /**
+     * Replaces <code>subpath</code> with its loaded copy below <code>staging</code>.
+     */
+    private void swapIn(final Path staging, final String subpath, final String source) throws IOException {
+        if (subpath.equals("/")) {
+            clear(fs, subpath, staging);
+            for (final FileStatus child : fs.listStatus(staging)) {
+                rename(child.getPath(), new Path("/", child.getPath().getName()));
             }
+            fs.setPermission(new Path("/"), fs.getFileStatus(staging).getPermission());
+            return;
         }
-        else {
-            fs.copyFromLocalFile(false, true, new Path(file.getAbsolutePath()), path);
-            fs.makeQualified(path);
+        final Path staged = new Path(staging, subpath.substring(1));
+        if (!fs.exists(staged)) {
+            throw new IOException(source + " holds nothing at " + subpath);
+        }
+        final Path target = new Path(subpath);
+        clear(fs, subpath);
+        if (!fs.exists(target.getParent()) && !fs.mkdirs(target.getParent())) {
+            throw new IOException("Unable to create directory: " + target.getParent());
+        }
+        rename(staged, target);
+    }
+
+    private void rename(final Path source, final Path target) throws IOException {
+        if (!fs.rename(source, target)) {
+            throw new IOException("Unable to move " + source + " to " + target);
         }
     }
 
+    /**
+     * @return the entries of an {@link IndexedArchive} directly below <code>path</code>
+     */
+    public List<IndexedArchive.Entry> list(final File archive, final String path) {
+        try {
+            return IndexedArchive.list(archive, path);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Saves all of HDFS as session <code>name</code> in the {@link ChunkStore} at <code>store</code>.
+     */
+    public ChunkStore.Statistics serialize(final File store, final String name, final ProgressListener listener) {
+        try {
+            return new ChunkStore(store, fs).save(new Path("/"), name, listener);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Replaces <code>subpath</code> in HDFS with its contents in session <code>name</code> of the {@link ChunkStore}
+     * at <code>store</code>. Like an archive, the session is loaded into a hidden staging directory and swapped in
+     * once it is complete.
+     */
+    public ArchiveLoader.Statistics load(final File store, final String name, final String subpath, final ProgressListener listener) {
+        try {
+            final Path staging = new Path("/" + STAGING_PREFIX + UUID.randomUUID());
+            try {
+                final ArchiveLoader.Statistics statistics = new ChunkStore(store, fs).load(name, staging, subpath, listener);
+                swapIn(staging, IndexedArchive.normalize(subpath), "Session " + name);
+                return statistics;
+            } finally {
+                fs.delete(staging, true);
+            }
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public List<String> sessions(final File store) {
+        return new ChunkStore(store, fs).sessions();
+    }
+
+    /**
+     * Deletes session <code>name</code> from the {@link ChunkStore} at <code>store</code>, then every chunk no
+     * remaining session references.
+     *
+     * @return the number of bytes freed
+     */
+    public long deleteSession(final File store, final String name) {
+        try {
+            final ChunkStore chunkStore = new ChunkStore(store, fs);
+            chunkStore.delete(name);
+            return chunkStore.gc(ChunkStore.DEFAULT_GC_GRACE_MILLIS);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return the number of bytes freed by deleting the chunks no session in <code>store</code> references
+     */
+    public long gc(final File store) {
+        try {
+            return new ChunkStore(store, fs).gc(ChunkStore.DEFAULT_GC_GRACE_MILLIS);
+        } catch (final Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Deletes <code>subpath</code>, or everything below it if it is <code>/</code>.
+     */
+    static void clear(final FileSystem fs, final String subpath) throws IOException {
+        clear(fs, subpath, null);
+    }
+
+    /**
+     * As {@link #clear(FileSystem, String)}, sparing <code>keep</code> when clearing <code>/</code>.
+     */
+    static void clear(final FileSystem fs, final String subpath, final Path keep) throws IOException {
+        final Path root = new Path(IndexedArchive.normalize(subpath));
+        if (root.getParent() == null) {
+            for (final FileStatus child : fs.listStatus(root)) {
+                if (keep == null || !child.getPath().toUri().getPath().equals(keep.toUri().getPath())) {
+                    fs.delete(child.getPath(), true);
+                }
+            }
+        } else {
+            fs.delete(root, true);
+        }
+    }
+
+    public static boolean isTarball(final File archive) {
+        return archive.getName().endsWith(".tgz") || archive.getName().endsWith(".tar.gz");
+    }
+
+    /**
+     * Streams <code>path</code> and everything below it straight from HDFS into a tar.gz at <code>output</code>,
+     * one file at a time, without staging a local copy.
+     *
+     * Each entry is named <code>./hdfs/&lt;path relative to the root&gt;</code> and carries the HDFS permissions,
+     * owner, group and modification time. Replication and block size, which tar has no field for, are written
+     * to a <code>./.hdfs-metadata/&lt;directory&gt;/.listing</code> entry for each directory, with one
+     * <code>name\treplication\tblockSize</code> line per child.
+     */
     public void serializePath(final Path path, final File output) throws Exception {
-        final File tmpRoot = Files.createTempDir();
-        final File tmp = new File(tmpRoot, "hdfs");
-        FileUtils.forceMkdir(tmp);
-        new FsShell(fs.getConf()).run(new String[]{
-            "-copyToLocal",
-            path.toString(),
-            tmp.getAbsolutePath()
-        });
-        compressFile(tmp, output);
-        FileUtils.deleteQuietly(tmpRoot);
+        serializePath(path, output, ProgressListener.NONE);
+    }
+
+    /**
+     * As {@link #serializePath(Path, File)}, reporting progress as bytes of HDFS files copied.
+     */
+    public void serializePath(final Path path, final File output, final ProgressListener listener) throws Exception {
+        // Entry names in UTF-8, like the listings, rather than the platform encoding
+        final TarArchiveOutputStream taos = new TarArchiveOutputStream(
+            new ParallelGZIPOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE)), Charsets.UTF_8.name());
+        try {
+            taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+            taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+            addPathsToCompression(taos, fs.getFileStatus(path), "./hdfs", listener);
+        } finally {
+            taos.close();
+        }
+    }
+
+    protected void addPathsToCompression(final TarArchiveOutputStream taos, final FileStatus root, final String dir,
+                                         final ProgressListener listener) throws IOException {
+        final String rootPath = root.getPath().toUri().getPath();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final long total = fs.getContentSummary(root.getPath()).getLength();
+        long done = 0;
+        // Depth-first, so only the listings along the current branch are held in memory
+        final Deque<FileStatus> pending = new ArrayDeque<FileStatus>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            final FileStatus status = pending.pop();
+            final String relative = status.getPath().toUri().getPath().substring(rootPath.length());
+            final String name = dir + (relative.isEmpty() || relative.startsWith("/") ? relative : "/" + relative);
+            final TarArchiveEntry entry = new TarArchiveEntry(status.isDir() ? name + "/" : name);
+            entry.setModTime(status.getModificationTime());
+            entry.setMode((status.isDir() ? DIRECTORY_TYPE : FILE_TYPE) | status.getPermission().toShort());
+            entry.setUserName(status.getOwner());
+            entry.setGroupName(status.getGroup());
+            if (status.isDir()) {
+                taos.putArchiveEntry(entry);
+                taos.closeArchiveEntry();
+                final FileStatus[] children = fs.listStatus(status.getPath());
+                if (children == null) {
+                    throw new IOException("Unable to list directory: " + status.getPath());
+                }
+                addListingToCompression(taos, name, children);
+                for (int i = children.length - 1; i >= 0; i--) {
+                    pending.push(children[i]);
+                }
+            } else {
+                entry.setSize(status.getLen());
+                taos.putArchiveEntry(entry);
+                final InputStream in = fs.open(status.getPath(), BUFFER_SIZE);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        taos.write(buffer, 0, read);
+                        done += read;
+                        listener.progress(done, total);
+                    }
+                } finally {
+                    in.close();
+                }
+                taos.closeArchiveEntry();
+            }
+        }
+    }
+
+    private void addListingToCompression(final TarArchiveOutputStream taos, final String name, final FileStatus[] children)
+        throws IOException {
+        final StringBuilder listing = new StringBuilder();
+        for (final FileStatus child : children) {
+            listing.append(child.getPath().getName()).append('\t')
+                .append(child.getReplication()).append('\t')
+                .append(child.getBlockSize()).append('\n');
+        }
+        final byte[] bytes = listing.toString().getBytes(Charsets.UTF_8);
+        final TarArchiveEntry entry = new TarArchiveEntry(METADATA_DIRECTORY + name.substring(1) + "/" + LISTING_NAME);
+        entry.setSize(bytes.length);
+        taos.putArchiveEntry(entry);
+        taos.write(bytes);
+        taos.closeArchiveEntry();
     }
 
     public static void compressFile(File file, File output)
@@ -114,7 +377,7 @@ public class ClusterStateManager {
         FileOutputStream fos = new FileOutputStream(output);
         // Wrap the output file stream in streams that will tar and gzip everything
         TarArchiveOutputStream taos = new TarArchiveOutputStream(
-            new GZIPOutputStream(new BufferedOutputStream(fos)));
+            new ParallelGZIPOutputStream(new BufferedOutputStream(fos)));
         // TAR has an 8 gig file limit by default, this gets around that
         taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR); // to get past the 8 gig limit
         // TAR originally didn't support long file names, so enable the support for it
@@ -150,53 +413,4 @@ public class ClusterStateManager {
             }
         }
     }
-
-//    protected void compressFile(final Path path, File output)
-//        throws IOException {
-//        ArrayList<Path> list = new ArrayList<Path>(1);
-//        list.add(path);
-//        compressFiles(list, output);
-//    }
-//
-//    protected void compressFiles(final Collection<Path> paths, final File output)
-//        throws IOException {
-//        // Create the output stream for the output file
-//        FileOutputStream fos = new FileOutputStream(output);
-//        // Wrap the output file stream in streams that will tar and gzip everything
-//        TarArchiveOutputStream taos = new TarArchiveOutputStream(
-//            new GZIPOutputStream(new BufferedOutputStream(fos)));
-//        // TAR has an 8 gig file limit by default, this gets around that
-//        taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR); // to get past the 8 gig limit
-//        // TAR originally didn't support long file names, so enable the support for it
-//        taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-//
-//        // Get to putting all the files in the compressed output file
-//        for (final Path path : paths) {
-//            addPathsToCompression(taos, path, ".");
-//        }
-//
-//        // Close everything up
-//        taos.close();
-//        fos.close();
-//    }
-//
-//    protected void addPathsToCompression(final TarArchiveOutputStream taos, final Path path, final String dir)
-//        throws IOException {
-//        // Create an entry for the file
-//        taos.putArchiveEntry(new TarArchiveEntry(dir + "/" + path.getName()));
-//        if (fs.isFile(path)) {
-//            // Add the file to the archive
-//            BufferedInputStream bis = new BufferedInputStream(fs.open(path));
-//            IOUtils.copy(bis, taos);
-//            taos.closeArchiveEntry();
-//            bis.close();
-//        } else {
-//            // close the archive entry
-//            taos.closeArchiveEntry();
-//            // go through all the files in the directory and using recursion, add them to the archive
-//            for (FileStatus childFile : fs.listStatus(path)) {
-//                addPathsToCompression(taos, childFile.getPath(), path.getName());
-//            }
-//        }
-//    }
 }
@@ -0,0 +1,946 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.HEADER_SIZE;
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.getInt;
+import static java.lang.String.format;
+
+/**
+ * A session archive that can be listed and partially restored without decompressing all of it.
+ *
+ * The file holds the bodies of the HDFS files as runs of {@link ParallelGZIPOutputStream} members, followed by a
+ * gzipped index and a fixed-size footer:
+ * <pre>
+ *   [runs of members] [index] [index offset: long] [magic: int]
+ * </pre>
+ * A file of at least {@link #RUN_SIZE} bytes gets a run of its own; smaller files are stored one after another
+ * in shared runs of about that size, so that a tree of small files does not end up as a member per file.
+ * The index starts with the archive's id and, for an incremental save, the location and id of its parent.
+ * It then holds one {@link Entry} for every path that existed when the archive was written, with its metadata,
+ * checksum, where its run starts and how long it is in the archive, and where the body starts within the
+ * run's uncompressed data. A listing reads only the index and a restore of one subtree seeks straight to the
+ * runs holding its files.
+ *
+ * An incremental archive stores bodies only for files that are new or whose length, modification time or
+ * checksum changed since its parent; the entries of unchanged files point back at the parent instead, and
+ * deleted paths are simply absent. Checksums are only fetched for files whose length and modification time
+ * still match, so only inherited entries carry one. Loading follows the chain of parents to find each
+ * inherited body.
+ */
+public class IndexedArchive {
+
+    public static final String EXTENSION = ".hia";
+
+    /**
+     * Files smaller than this share runs, which are ended once they hold at least this many bytes.
+     */
+    public static final int RUN_SIZE = ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE;
+
+    private static final int MAGIC_V1 = 0x48494131;
+    private static final int MAGIC_V2 = 0x48494132;
+    private static final int MAGIC = 0x48494133;
+    private static final int FOOTER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long INHERITED = -1;
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    private static final Predicate<Entry> ALL = new Predicate<Entry>() {
+        @Override
+        public boolean apply(final Entry entry) {
+            return true;
+        }
+    };
+
+    private final FileSystem fs;
+    private final int threads;
+
+    public IndexedArchive(final FileSystem fs) {
+        this(fs, Runtime.getRuntime().availableProcessors());
+    }
+
+    public IndexedArchive(final FileSystem fs, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Indexed archives require at least one thread");
+        }
+        this.fs = fs;
+        this.threads = threads;
+    }
+
+    /**
+     * @return true if <code>archive</code> ends with an indexed archive footer
+     */
+    public static boolean isIndexed(final File archive) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            if (file.length() < FOOTER_SIZE) {
+                return false;
+            }
+            file.seek(file.length() - 4);
+            final int magic = file.readInt();
+            return magic == MAGIC || magic == MAGIC_V2 || magic == MAGIC_V1;
+        } finally {
+            file.close();
+        }
+    }
+
+    public Statistics save(final Path root, final File output, final ProgressListener listener) throws IOException {
+        return save(root, output, null, listener);
+    }
+
+    /**
+     * Writes <code>root</code> and everything below it to <code>output</code>, reporting progress as bytes of HDFS
+     * files covered. If <code>parent</code> is given, files that are unchanged since it was written are not copied.
+     */
+    public Statistics save(final Path root, final File output, final File parent, final ProgressListener listener) throws IOException {
+        final long start = System.nanoTime();
+        final Index previous = parent == null ? null : readIndex(parent, ALL);
+        final Map<String, Entry> previousEntries = Maps.newHashMap();
+        if (previous != null) {
+            for (final Entry entry : previous.entries) {
+                previousEntries.put(entry.path, entry);
+            }
+        }
+        final long total = fs.getContentSummary(root).getLength();
+        int stored = 0;
+        int inherited = 0;
+        long bytes = 0;
+
+        final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+        try {
+            final ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(new CloseShieldOutputStream(counter), threads,
+                ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+            final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            final DataOutputStream index = new DataOutputStream(new GZIPOutputStream(indexBytes));
+            final RunWriter run = new RunWriter(gzip, counter, index);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long done = 0;
+            try {
+                index.writeUTF(UUID.randomUUID().toString());
+                index.writeUTF(previous == null ? "" : relativize(output, parent));
+                index.writeUTF(previous == null ? "" : previous.id);
+
+                final Deque<FileStatus> pending = new ArrayDeque<FileStatus>();
+                pending.push(fs.getFileStatus(root));
+                while (!pending.isEmpty()) {
+                    final FileStatus status = pending.pop();
+                    final String path = status.getPath().toUri().getPath();
+                    final Entry before = previousEntries.remove(path);
+                    if (status.isDir()) {
+                        final FileStatus[] children = fs.listStatus(status.getPath());
+                        if (children == null) {
+                            throw new IOException("Unable to list directory: " + status.getPath());
+                        }
+                        for (int i = children.length - 1; i >= 0; i--) {
+                            pending.push(children[i]);
+                        }
+                        run.add(new Entry(status, null, 0, 0, 0));
+                    } else {
+                        // a checksum means reading every block's CRCs, so it is only fetched to confirm a likely match
+                        final boolean candidate = before != null && before.hasSameLengthAndTime(status);
+                        final FileChecksum checksum = candidate ? fs.getFileChecksum(status.getPath()) : null;
+                        if (candidate && before.hasSameChecksum(checksum)) {
+                            run.add(new Entry(status, checksum, INHERITED, 0, 0));
+                            inherited++;
+                            done += status.getLen();
+                            listener.progress(done, total);
+                        } else {
+                            final boolean large = status.getLen() >= RUN_SIZE;
+                            if (large) {
+                                run.finish();
+                            }
+                            final long runOffset = run.begin();
+                            final InputStream in = fs.open(status.getPath(), BUFFER_SIZE);
+                            try {
+                                int read;
+                                while ((read = in.read(buffer)) != -1) {
+                                    run.write(buffer, 0, read);
+                                    done += read;
+                                    listener.progress(done, total);
+                                }
+                            } finally {
+                                in.close();
+                            }
+                            run.store(status, checksum, runOffset);
+                            if (large || run.isFull()) {
+                                run.finish();
+                            }
+                            stored++;
+                            bytes += status.getLen();
+                        }
+                    }
+                }
+                run.finish();
+                index.writeBoolean(false);
+            } finally {
+                gzip.close();
+                index.close();
+            }
+            final long indexOffset = counter.getByteCount();
+            indexBytes.writeTo(counter);
+            final DataOutputStream footer = new DataOutputStream(counter);
+            footer.writeLong(indexOffset);
+            footer.writeInt(MAGIC);
+            footer.flush();
+        } finally {
+            counter.close();
+        }
+        return new Statistics(stored, inherited, previousEntries.size(), bytes, output.length(), System.nanoTime() - start);
+    }
+
+    /**
+     * @return the entries directly below <code>directory</code>, or the entry itself if it is a file
+     */
+    public static List<Entry> list(final File archive, final String directory) throws IOException {
+        final String parent = normalize(directory);
+        final List<Entry> entries = readIndex(archive, new Predicate<Entry>() {
+            @Override
+            public boolean apply(final Entry entry) {
+                return entry.getParent().equals(parent) && !entry.path.equals(parent);
+            }
+        }).entries;
+        if (entries.isEmpty()) {
+            entries.addAll(readIndex(archive, new Predicate<Entry>() {
+                @Override
+                public boolean apply(final Entry entry) {
+                    return entry.path.equals(parent) && !entry.directory;
+                }
+            }).entries);
+        }
+        return entries;
+    }
+
+    /**
+     * Loads the entries of <code>archive</code> at or below <code>subpath</code> to the same place below
+     * <code>target</code>, without removing anything already there; {@link ClusterStateManager#load} stages a load
+     * this way and then swaps it in. Only the indexes and the bodies of the selected files are read, following parent
+     * archives for the bodies of inherited files; the files are written by a pool of threads. Progress is reported as
+     * compressed bytes inflated, from the calling thread, and if the load fails or a report throws, the writers stop
+     * after their current member.
+     */
+    public ArchiveLoader.Statistics load(final File archive, final Path target, final String subpath, final ProgressListener listener) throws IOException {
+        final long start = System.nanoTime();
+        final String root = normalize(subpath);
+        final Index index = readIndex(archive, new Predicate<Entry>() {
+            @Override
+            public boolean apply(final Entry entry) {
+                return entry.isWithin(root);
+            }
+        });
+        if (index.entries.isEmpty()) {
+            throw new IOException(subpath + " is not in " + archive);
+        }
+        final List<Body> bodies = locateBodies(archive, index);
+        final Collection<Run> runs = toRuns(bodies);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("archive-load-%d")
+            .setDaemon(true)
+            .build());
+        final AtomicLong done = new AtomicLong();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            int directories = 0;
+            for (final Entry entry : index.entries) {
+                if (entry.directory) {
+                    // entries are in walk order, so a directory always comes before its children
+                    final Path path = toPath(target, entry.path);
+                    if (!fs.mkdirs(path)) {
+                        throw new IOException("Unable to create directory: " + path);
+                    }
+                    fs.setPermission(path, new FsPermission(entry.permission));
+                    directories++;
+                }
+            }
+            final CompletionService<Run> completionService = new ExecutorCompletionService<Run>(executor);
+            long total = 0;
+            long bytes = 0;
+            for (final Run run : runs) {
+                completionService.submit(new Callable<Run>() {
+                    @Override
+                    public Run call() throws IOException {
+                        restore(run, target, done, stopped);
+                        return run;
+                    }
+                });
+                total += run.compressedLength;
+            }
+            for (final Body body : bodies) {
+                bytes += body.entry.length;
+            }
+            for (int completed = 0; completed < runs.size(); ) {
+                final Future<Run> run = completionService.poll(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (run != null) {
+                    run.get();
+                    completed++;
+                }
+                listener.progress(done.get(), total);
+            }
+            return new ArchiveLoader.Statistics(bodies.size(), directories, bytes, System.nanoTime() - start);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            stopped.set(true);
+            executor.shutdown();
+            ArchiveLoader.awaitTermination(executor);
+        }
+    }
+
+    /**
+     * Finds the archive holding the body of each file in <code>index</code>, walking up the chain of parents for
+     * inherited files until every body is found.
+     */
+    private static List<Body> locateBodies(final File archive, final Index index) throws IOException {
+        final List<Body> bodies = Lists.newArrayList();
+        final Map<String, Entry> inherited = Maps.newHashMap();
+        for (final Entry entry : index.entries) {
+            if (!entry.directory) {
+                if (entry.offset == INHERITED) {
+                    inherited.put(entry.path, entry);
+                } else {
+                    bodies.add(new Body(archive, entry, entry.offset, entry.compressedLength, entry.runOffset));
+                }
+            }
+        }
+        File child = archive;
+        Index current = index;
+        while (!inherited.isEmpty()) {
+            if (current.parentPath.isEmpty()) {
+                throw new IOException(format("%s inherits %d files but has no parent archive", child, inherited.size()));
+            }
+            final File parent = resolve(child, current.parentPath);
+            final Index parentIndex = readIndex(parent, new Predicate<Entry>() {
+                @Override
+                public boolean apply(final Entry entry) {
+                    return inherited.containsKey(entry.path);
+                }
+            });
+            if (!parentIndex.id.equals(current.parentId)) {
+                throw new IOException(format("%s is not the archive %s was saved against", parent, child));
+            }
+            for (final Entry ancestor : parentIndex.entries) {
+                if (ancestor.offset != INHERITED) {
+                    bodies.add(new Body(parent, inherited.remove(ancestor.path), ancestor.offset, ancestor.compressedLength,
+                        ancestor.runOffset));
+                }
+            }
+            child = parent;
+            current = parentIndex;
+        }
+        return bodies;
+    }
+
+    /**
+     * Groups <code>bodies</code> by the run they are stored in, each run's bodies in the order they were written.
+     */
+    private static Collection<Run> toRuns(final List<Body> bodies) {
+        final Map<String, Run> runs = Maps.newLinkedHashMap();
+        for (final Body body : bodies) {
+            // a run holding only empty files has no members, so the next run can start at the same offset
+            final String key = body.archive.getPath() + ":" + body.offset + ":" + body.compressedLength;
+            Run run = runs.get(key);
+            if (run == null) {
+                run = new Run(body.archive, body.offset, body.compressedLength);
+                runs.put(key, run);
+            }
+            run.bodies.add(body);
+        }
+        for (final Run run : runs.values()) {
+            Collections.sort(run.bodies, new Comparator<Body>() {
+                @Override
+                public int compare(final Body first, final Body second) {
+                    return first.runOffset < second.runOffset ? -1 : first.runOffset == second.runOffset ? 0 : 1;
+                }
+            });
+        }
+        return runs.values();
+    }
+
+    /**
+     * Inflates <code>run</code> once, member by member, writing out the bodies that are being restored from it and
+     * skipping over those that are not.
+     */
+    private void restore(final Run run, final Path target, final AtomicLong done, final AtomicBoolean stopped) throws IOException {
+        final InputStream in = new RunInputStream(run, done, stopped);
+        try {
+            long position = 0;
+            for (final Body body : run.bodies) {
+                if (stopped.get()) {
+                    throw new IOException("Load abandoned");
+                }
+                ByteStreams.skipFully(in, body.runOffset - position);
+                final Entry entry = body.entry;
+                final Path path = toPath(target, entry.path);
+                final FSDataOutputStream out = fs.create(path, new FsPermission(entry.permission), true, BUFFER_SIZE, entry.replication, entry.blockSize, null);
+                try {
+                    if (IOUtils.copyLarge(in, out, 0, entry.length) != entry.length) {
+                        throw new EOFException("Truncated archive entry: " + entry.path);
+                    }
+                } finally {
+                    out.close();
+                }
+                fs.setPermission(path, new FsPermission(entry.permission));
+                fs.setTimes(path, entry.modificationTime, -1);
+                position = body.runOffset + entry.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Index readIndex(final File archive, final Predicate<Entry> filter) throws IOException {
+        final long indexOffset;
+        final long indexLength;
+        final int version;
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            if (file.length() < FOOTER_SIZE) {
+                throw new IOException(archive + " is not an indexed archive");
+            }
+            file.seek(file.length() - FOOTER_SIZE);
+            indexOffset = file.readLong();
+            final int magic = file.readInt();
+            if (magic == MAGIC) {
+                version = 3;
+            } else if (magic == MAGIC_V2) {
+                version = 2;
+            } else if (magic == MAGIC_V1) {
+                version = 1;
+            } else {
+                throw new IOException(archive + " is not an indexed archive");
+            }
+            indexLength = file.length() - FOOTER_SIZE - indexOffset;
+        } finally {
+            file.close();
+        }
+
+        final FileInputStream in = new FileInputStream(archive);
+        try {
+            if (in.skip(indexOffset) != indexOffset) {
+                throw new IOException("Truncated archive: " + archive);
+            }
+            final DataInputStream index = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new BoundedInputStream(in, indexLength), BUFFER_SIZE)));
+            final String id = version >= 2 ? index.readUTF() : "";
+            final String parentPath = version >= 2 ? index.readUTF() : "";
+            final String parentId = version >= 2 ? index.readUTF() : "";
+            final List<Entry> entries = Lists.newArrayList();
+            while (index.readBoolean()) {
+                final Entry entry = Entry.read(index, version);
+                if (filter.apply(entry)) {
+                    entries.add(entry);
+                }
+            }
+            return new Index(id, parentPath, parentId, entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return where <code>parent</code> is from the directory <code>archive</code> is in, so a chain of archives
+     * can be moved together
+     */
+    private static String relativize(final File archive, final File parent) {
+        final File directory = archive.getAbsoluteFile().getParentFile();
+        final File absoluteParent = parent.getAbsoluteFile();
+        return directory.equals(absoluteParent.getParentFile()) ? absoluteParent.getName() : absoluteParent.getPath();
+    }
+
+    private static File resolve(final File archive, final String parentPath) {
+        final File parent = new File(parentPath);
+        return parent.isAbsolute() ? parent : new File(archive.getAbsoluteFile().getParentFile(), parentPath);
+    }
+
+    /**
+     * @return <code>path</code> made absolute and without a trailing slash
+     */
+    static String normalize(final String path) {
+        final String absolute = path.startsWith("/") ? path : "/" + path;
+        return absolute.length() > 1 && absolute.endsWith("/") ? absolute.substring(0, absolute.length() - 1) : absolute;
+    }
+
+    /**
+     * @return where the HDFS path <code>path</code>, which must be normalized, belongs below <code>target</code>
+     */
+    static Path toPath(final Path target, final String path) {
+        return path.equals("/") ? target : new Path(target, path.substring(1));
+    }
+
+    /**
+     * @return true if <code>path</code> is <code>root</code> or below it; both must be normalized
+     */
+    static boolean isWithin(final String path, final String root) {
+        return root.equals("/") || path.equals(root) || path.startsWith(root + "/");
+    }
+
+    private static class Index {
+        private final String id;
+        private final String parentPath;
+        private final String parentId;
+        private final List<Entry> entries;
+
+        private Index(final String id, final String parentPath, final String parentId, final List<Entry> entries) {
+            this.id = id;
+            this.parentPath = parentPath;
+            this.parentId = parentId;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Where in which archive the body of a file is stored.
+     */
+    private static class Body {
+        private final File archive;
+        private final Entry entry;
+        private final long offset;
+        private final long compressedLength;
+        private final long runOffset;
+
+        private Body(final File archive, final Entry entry, final long offset, final long compressedLength, final long runOffset) {
+            this.archive = archive;
+            this.entry = entry;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.runOffset = runOffset;
+        }
+    }
+
+    /**
+     * A run of members in an archive and the bodies being restored from it.
+     */
+    private static class Run {
+        private final File archive;
+        private final long offset;
+        private final long compressedLength;
+        private final List<Body> bodies = Lists.newArrayList();
+
+        private Run(final File archive, final long offset, final long compressedLength) {
+            this.archive = archive;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+        }
+    }
+
+    /**
+     * The uncompressed data of a run, inflated one member at a time. Each member's compressed length is added to
+     * <code>done</code> as it is read, and once <code>stopped</code> is set no more members are.
+     */
+    private static class RunInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final String name;
+        private final AtomicLong done;
+        private final AtomicBoolean stopped;
+        private long remaining;
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        private RunInputStream(final Run run, final AtomicLong done, final AtomicBoolean stopped) throws IOException {
+            this.file = new RandomAccessFile(run.archive, "r");
+            this.name = run.archive.getName();
+            this.done = done;
+            this.stopped = stopped;
+            this.remaining = run.compressedLength;
+            file.seek(run.offset);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == current.length) {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                if (stopped.get()) {
+                    throw new IOException("Load abandoned");
+                }
+                final byte[] header = new byte[HEADER_SIZE];
+                file.readFully(header);
+                if (!ParallelGZIPInputStream.isParallelMember(header) || getInt(header, 16) > remaining) {
+                    throw new ZipException("Corrupt archive: " + name);
+                }
+                final byte[] member = new byte[getInt(header, 16)];
+                System.arraycopy(header, 0, member, 0, HEADER_SIZE);
+                file.readFully(member, HEADER_SIZE, member.length - HEADER_SIZE);
+                current = ParallelGZIPInputStream.inflate(member);
+                position = 0;
+                remaining -= member.length;
+                done.addAndGet(member.length);
+            }
+            final int length = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the index while files are stored into runs. The entries of a run's files, and of every path walked
+     * while it is open, are held back until the run is finished and its compressed length is known.
+     */
+    private static class RunWriter {
+        private final ParallelGZIPOutputStream gzip;
+        private final CountingOutputStream counter;
+        private final DataOutputStream index;
+        private final List<Entry> entries = Lists.newArrayList();
+        private boolean open = false;
+        private long offset;
+        private long bytes;
+
+        private RunWriter(final ParallelGZIPOutputStream gzip, final CountingOutputStream counter, final DataOutputStream index) {
+            this.gzip = gzip;
+            this.counter = counter;
+            this.index = index;
+        }
+
+        private void add(final Entry entry) throws IOException {
+            if (open) {
+                entries.add(entry);
+            } else {
+                index.writeBoolean(true);
+                entry.write(index);
+            }
+        }
+
+        /**
+         * @return where the next file starts within the run, starting a new run if none is open
+         */
+        private long begin() {
+            if (!open) {
+                // the previous run was finished, so everything compressed so far has reached the counter
+                open = true;
+                offset = counter.getByteCount();
+                bytes = 0;
+            }
+            return bytes;
+        }
+
+        private void write(final byte[] b, final int off, final int len) throws IOException {
+            gzip.write(b, off, len);
+            bytes += len;
+        }
+
+        private void store(final FileStatus status, final FileChecksum checksum, final long runOffset) {
+            // the compressed length is filled in by finish()
+            entries.add(new Entry(status, checksum, offset, 0, runOffset));
+        }
+
+        private boolean isFull() {
+            return bytes >= RUN_SIZE;
+        }
+
+        /**
+         * Ends the open run's last member and writes the entries held back for it.
+         */
+        private void finish() throws IOException {
+            if (!open) {
+                return;
+            }
+            gzip.finishMember();
+            final long compressedLength = counter.getByteCount() - offset;
+            for (final Entry entry : entries) {
+                index.writeBoolean(true);
+                (entry.offset == offset && !entry.directory ? entry.inRun(compressedLength) : entry).write(index);
+            }
+            entries.clear();
+            open = false;
+        }
+    }
+
+    public static class Entry {
+        private final String path;
+        private final boolean directory;
+        private final long length;
+        private final long modificationTime;
+        private final short permission;
+        private final String owner;
+        private final String group;
+        private final short replication;
+        private final long blockSize;
+        private final String checksumAlgorithm;
+        private final byte[] checksum;
+        private final long offset;
+        private final long compressedLength;
+        private final long runOffset;
+
+        private Entry(final String path, final boolean directory, final long length, final long modificationTime, final short permission,
+                      final String owner, final String group, final short replication, final long blockSize, final String checksumAlgorithm,
+                      final byte[] checksum, final long offset, final long compressedLength, final long runOffset) {
+            this.path = path;
+            this.directory = directory;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.permission = permission;
+            this.owner = owner;
+            this.group = group;
+            this.replication = replication;
+            this.blockSize = blockSize;
+            this.checksumAlgorithm = checksumAlgorithm;
+            this.checksum = checksum;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.runOffset = runOffset;
+        }
+
+        private Entry(final FileStatus status, final FileChecksum checksum, final long offset, final long compressedLength,
+                      final long runOffset) {
+            this(status.getPath().toUri().getPath(), status.isDir(), status.getLen(), status.getModificationTime(),
+                status.getPermission().toShort(), status.getOwner(), status.getGroup(), status.getReplication(),
+                status.getBlockSize(), checksum == null ? "" : checksum.getAlgorithmName(),
+                checksum == null ? new byte[0] : checksum.getBytes(), offset, compressedLength, runOffset);
+        }
+
+        private Entry inRun(final long runCompressedLength) {
+            return new Entry(path, directory, length, modificationTime, permission, owner, group, replication, blockSize,
+                checksumAlgorithm, checksum, offset, runCompressedLength, runOffset);
+        }
+
+        private void write(final DataOutput out) throws IOException {
+            out.writeUTF(path);
+            out.writeBoolean(directory);
+            out.writeLong(length);
+            out.writeLong(modificationTime);
+            out.writeShort(permission);
+            out.writeUTF(owner);
+            out.writeUTF(group);
+            out.writeShort(replication);
+            out.writeLong(blockSize);
+            out.writeUTF(checksumAlgorithm);
+            out.writeShort(checksum.length);
+            out.write(checksum);
+            out.writeLong(offset);
+            out.writeLong(compressedLength);
+            out.writeLong(runOffset);
+        }
+
+        private static Entry read(final DataInput in, final int version) throws IOException {
+            final String path = in.readUTF();
+            final boolean directory = in.readBoolean();
+            final long length = in.readLong();
+            final long modificationTime = in.readLong();
+            final short permission = in.readShort();
+            final String owner = in.readUTF();
+            final String group = in.readUTF();
+            final short replication = in.readShort();
+            final long blockSize = in.readLong();
+            String checksumAlgorithm = "";
+            byte[] checksum = new byte[0];
+            if (version >= 2) {
+                checksumAlgorithm = in.readUTF();
+                checksum = new byte[in.readUnsignedShort()];
+                in.readFully(checksum);
+            }
+            final long offset = in.readLong();
+            final long compressedLength = in.readLong();
+            // before version 3 every body had a run of its own
+            final long runOffset = version >= 3 ? in.readLong() : 0;
+            return new Entry(path, directory, length, modificationTime, permission, owner, group, replication, blockSize,
+                checksumAlgorithm, checksum, offset, compressedLength, runOffset);
+        }
+
+        private boolean hasSameLengthAndTime(final FileStatus status) {
+            return !directory && status.getLen() == length && status.getModificationTime() == modificationTime;
+        }
+
+        /**
+         * @return true if <code>current</code> matches this entry's checksum, or either side has none; only files
+         * that were unchanged when this entry was written have one
+         */
+        private boolean hasSameChecksum(final FileChecksum current) {
+            return current == null || checksum.length == 0
+                || (current.getAlgorithmName().equals(checksumAlgorithm) && Arrays.equals(current.getBytes(), checksum));
+        }
+
+        private String getParent() {
+            final int slash = path.lastIndexOf('/');
+            return slash <= 0 ? "/" : path.substring(0, slash);
+        }
+
+        private boolean isWithin(final String root) {
+            return IndexedArchive.isWithin(path, root);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getModificationTime() {
+            return modificationTime;
+        }
+
+        public FsPermission getPermission() {
+            return new FsPermission(permission);
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getGroup() {
+            return group;
+        }
+
+        public short getReplication() {
+            return replication;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getCompressedLength() {
+            return compressedLength;
+        }
+
+        long getRunOffset() {
+            return runOffset;
+        }
+    }
+
+    public static class Statistics {
+        private final int storedFiles;
+        private final int inheritedFiles;
+        private final int deletedPaths;
+        private final long storedBytes;
+        private final long archiveBytes;
+        private final long elapsedNanos;
+
+        public Statistics(final int storedFiles, final int inheritedFiles, final int deletedPaths, final long storedBytes,
+                          final long archiveBytes, final long elapsedNanos) {
+            this.storedFiles = storedFiles;
+            this.inheritedFiles = inheritedFiles;
+            this.deletedPaths = deletedPaths;
+            this.storedBytes = storedBytes;
+            this.archiveBytes = archiveBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getStoredFiles() {
+            return storedFiles;
+        }
+
+        public int getInheritedFiles() {
+            return inheritedFiles;
+        }
+
+        public int getDeletedPaths() {
+            return deletedPaths;
+        }
+
+        public long getStoredBytes() {
+            return storedBytes;
+        }
+
+        public long getArchiveBytes() {
+            return archiveBytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        @Override
+        public String toString() {
+            return format("Saved %d files (%d bytes, %d compressed) in %d ms; %d unchanged files kept in the parent, %d paths deleted since it",
+                storedFiles, storedBytes, archiveBytes, getElapsedMillis(), inheritedFiles, deletedPaths);
+        }
+    }
+}
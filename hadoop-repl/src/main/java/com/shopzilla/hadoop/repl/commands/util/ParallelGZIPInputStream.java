@@ -0,0 +1,225 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.HEADER_SIZE;
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.SUBFIELD_ID1;
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.SUBFIELD_ID2;
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.TRAILER_SIZE;
+import static com.shopzilla.hadoop.repl.commands.util.ParallelGZIPOutputStream.getInt;
+
+/**
+ * Reads gzip data, inflating the members written by {@link ParallelGZIPOutputStream} on several threads.
+ *
+ * Members are read ahead using the compressed length stored in their headers and inflated concurrently, then
+ * returned in order. As soon as a member without that length turns up, including at the very start of a gzip
+ * file written by anything else, the rest of the stream is read by a plain {@link GZIPInputStream}.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+    /**
+     * The most a deflate stream can expand its input, slightly rounded up from the 1032:1 of a run of one byte.
+     */
+    static final int MAX_EXPANSION = 1040;
+    /**
+     * Larger compressed lengths than any {@link ParallelGZIPOutputStream} block can produce are not trusted.
+     */
+    static final int MAX_MEMBER_SIZE = 2 * ParallelGZIPOutputStream.MAX_BLOCK_SIZE;
+
+    private final InputStream in;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pending = Lists.newLinkedList();
+    private InputStream fallback;
+    private boolean eof = false;
+    private byte[] current;
+    private int position = 0;
+
+    public ParallelGZIPInputStream(final InputStream in) {
+        this(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelGZIPInputStream(final InputStream in, final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Decompression requires at least one thread");
+        }
+        this.in = in;
+        this.maxPending = threads * 2;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("gunzip-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            fill();
+            if (pending.isEmpty()) {
+                return fallback == null ? -1 : fallback.read(b, off, len);
+            }
+            current = take();
+            position = 0;
+        }
+        final int length = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (fallback != null) {
+            fallback.close();
+        } else {
+            in.close();
+        }
+    }
+
+    private void fill() throws IOException {
+        while (!eof && pending.size() < maxPending) {
+            final byte[] header = new byte[HEADER_SIZE];
+            final int read = readFully(header, 0, HEADER_SIZE);
+            if (read == 0) {
+                eof = true;
+            } else if (read < HEADER_SIZE || !isParallelMember(header)) {
+                fallback = new GZIPInputStream(new SequenceInputStream(new ByteArrayInputStream(header, 0, read), in));
+                eof = true;
+            } else {
+                final byte[] member = new byte[getInt(header, 16)];
+                System.arraycopy(header, 0, member, 0, HEADER_SIZE);
+                if (readFully(member, HEADER_SIZE, member.length - HEADER_SIZE) < member.length - HEADER_SIZE) {
+                    throw new EOFException("Unexpected end of gzip member");
+                }
+                pending.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return inflate(member);
+                    }
+                }));
+            }
+        }
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private int readFully(final byte[] b, final int off, final int len) throws IOException {
+        int filled = 0;
+        int read;
+        while (filled < len && (read = in.read(b, off + filled, len - filled)) != -1) {
+            filled += read;
+        }
+        return filled;
+    }
+
+    static boolean isParallelMember(final byte[] header) {
+        return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && header[3] == 4
+            && header[10] == 8 && header[11] == 0
+            && header[12] == SUBFIELD_ID1 && header[13] == SUBFIELD_ID2 && header[14] == 4 && header[15] == 0
+            && getInt(header, 16) >= HEADER_SIZE + TRAILER_SIZE && getInt(header, 16) <= MAX_MEMBER_SIZE;
+    }
+
+    /**
+     * Inflates one member, checking its CRC and length. The length in the trailer is only trusted as far as
+     * deflate could have produced it, and the output grows with the data actually inflated rather than being
+     * allocated from the trailer up front.
+     */
+    static byte[] inflate(final byte[] member) throws IOException {
+        final int length = getInt(member, member.length - 4);
+        final int compressed = member.length - HEADER_SIZE - TRAILER_SIZE;
+        if (length < 0 || length > (long) compressed * MAX_EXPANSION + MAX_EXPANSION) {
+            throw new ZipException("Corrupt gzip member: implausible length " + (length & 0xffffffffL));
+        }
+        byte[] data = new byte[(int) Math.min(length, Math.max((long) compressed * 4, 64 * 1024))];
+        final Inflater inflater = new Inflater(true);
+        try {
+            // the trailer is left in the input, which gives the raw inflater the extra byte it may ask for
+            inflater.setInput(member, HEADER_SIZE, member.length - HEADER_SIZE);
+            int inflated = 0;
+            while (!inflater.finished()) {
+                if (inflated == data.length) {
+                    if (data.length == length) {
+                        break;
+                    }
+                    data = Arrays.copyOf(data, (int) Math.min(length, data.length * 2L));
+                }
+                final int read = inflater.inflate(data, inflated, data.length - inflated);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, inflated);
+            if (inflated != length || (int) crc.getValue() != getInt(member, member.length - TRAILER_SIZE)) {
+                throw new ZipException("Corrupt gzip member");
+            }
+            return data;
+        } catch (final DataFormatException ex) {
+            throw new ZipException(ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
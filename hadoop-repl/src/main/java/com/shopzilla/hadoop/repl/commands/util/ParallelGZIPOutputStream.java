@@ -0,0 +1,238 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip stream that deflates fixed-size blocks on several threads, pigz-style.
+ *
+ * Each block becomes a complete gzip member and the members are written in order, so the output is a
+ * standard multi-member gzip file that gunzip or {@link java.util.zip.GZIPInputStream} reads as one stream.
+ * Every member header also carries the member's compressed length in an extra field, which lets
+ * {@link ParallelGZIPInputStream} find member boundaries without inflating and decompress them in parallel too.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public static final int MAX_BLOCK_SIZE = 32 * 1024 * 1024;
+
+    static final int HEADER_SIZE = 20;
+    static final int TRAILER_SIZE = 8;
+    static final byte SUBFIELD_ID1 = 'P';
+    static final byte SUBFIELD_ID2 = 'Z';
+
+    private static final int FEXTRA = 4;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int level;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pending = Lists.newLinkedList();
+    private byte[] block;
+    private int filled = 0;
+    private boolean empty = true;
+    private boolean closed = false;
+
+    public ParallelGZIPOutputStream(final OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGZIPOutputStream(final OutputStream out, final int threads, final int blockSize, final int level) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Compression requires at least one thread");
+        }
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + " bytes");
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("gzip-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        block[filled++] = (byte) b;
+        if (filled == blockSize) {
+            submit();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final int length = Math.min(len, blockSize - filled);
+            System.arraycopy(b, off, block, filled, length);
+            filled += length;
+            off += length;
+            len -= length;
+            if (filled == blockSize) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Flushes only the underlying stream; buffered data stays in the current block, so callers that flush
+     * often, such as a tar stream, do not cut the output into tiny members.
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Ends the current member early and waits for every pending member to be written, so everything written
+     * so far is a self-contained run of members.
+     */
+    public void finishMember() throws IOException {
+        if (filled > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // gunzip rejects a file with no members at all, so an empty stream still gets one
+            if (filled > 0 || empty) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        } finally {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] data = block;
+        final int length = filled;
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return compress(data, length, level);
+            }
+        }));
+        block = new byte[blockSize];
+        filled = 0;
+        empty = false;
+        while (pending.size() > maxPending) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (final ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    static byte[] compress(final byte[] data, final int length, final int level) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            final ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + HEADER_SIZE + TRAILER_SIZE);
+            member.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+            final byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                member.write(buffer, 0, deflater.deflate(buffer));
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeInt(member, (int) crc.getValue());
+            writeInt(member, length);
+
+            final byte[] bytes = member.toByteArray();
+            bytes[0] = (byte) 0x1f;
+            bytes[1] = (byte) 0x8b;
+            bytes[2] = Deflater.DEFLATED;
+            bytes[3] = FEXTRA;
+            // bytes 4-8 (mtime and extra flags) stay zero
+            bytes[9] = (byte) 255;
+            bytes[10] = 8;
+            bytes[12] = SUBFIELD_ID1;
+            bytes[13] = SUBFIELD_ID2;
+            bytes[14] = 4;
+            putInt(bytes, 16, bytes.length);
+            return bytes;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeInt(final ByteArrayOutputStream out, final int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void putInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    static int getInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff)
+            | (bytes[offset + 1] & 0xff) << 8
+            | (bytes[offset + 2] & 0xff) << 16
+            | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
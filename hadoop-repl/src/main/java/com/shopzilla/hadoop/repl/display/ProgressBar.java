@@ -19,6 +19,9 @@
 package com.shopzilla.hadoop.repl.display;
 
 import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
 
 /**
  * @author Jeremy Lucas
@@ -26,6 +29,7 @@ import java.text.DecimalFormat;
  */
 public class ProgressBar {
     private static final DecimalFormat DF = new DecimalFormat("##%");
+    private static final String[] UNITS = {"B", "KB", "MB", "GB", "TB", "PB"};
 
     protected final int total;
 
@@ -44,4 +48,50 @@ public class ProgressBar {
         }
         return sb.append("] ").append(DF.format((double) i / total)).toString();
     }
+
+    /**
+     * Draws <code>done</code> of <code>total</code> bytes, followed by the byte counts, the throughput over
+     * <code>elapsedNanos</code> and the estimated time left. A <code>total</code> of -1 leaves the bar empty and
+     * the time left out.
+     */
+    public String progress(final long done, final long total, final long elapsedNanos) {
+        final int i = total <= 0 ? 0 : (int) Math.min(this.total, this.total * done / total);
+        final StringBuilder sb = new StringBuilder(progress(i)).append(' ').append(bytes(done));
+        if (total >= 0) {
+            sb.append(" of ").append(bytes(total));
+        }
+        final double seconds = elapsedNanos / 1e9;
+        if (seconds > 0) {
+            final double rate = done / seconds;
+            sb.append(", ").append(bytes((long) rate)).append("/s");
+            if (total >= 0 && rate > 0) {
+                sb.append(", ETA ").append(duration((long) ((total - done) / rate)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return <code>bytes</code> in the largest unit that keeps it at 1 or more, to one decimal place
+     */
+    public static String bytes(final long bytes) {
+        int unit = 0;
+        double value = bytes;
+        while (value >= 1024 && unit < UNITS.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return unit == 0 ? bytes + " B" : format("%.1f %s", value, UNITS[unit]);
+    }
+
+    /**
+     * @return <code>seconds</code> as <code>h:mm:ss</code>, or <code>m:ss</code> under an hour
+     */
+    public static String duration(final long seconds) {
+        final long hours = TimeUnit.SECONDS.toHours(seconds);
+        final long minutes = TimeUnit.SECONDS.toMinutes(seconds) % 60;
+        return hours > 0
+            ? format("%d:%02d:%02d", hours, minutes, seconds % 60)
+            : format("%d:%02d", minutes, seconds % 60);
+    }
 }
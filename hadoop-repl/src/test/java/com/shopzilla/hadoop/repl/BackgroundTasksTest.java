@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundTasksTest {
+
+    private final BackgroundTasks tasks = new BackgroundTasks();
+
+    @After
+    public void shutdown() {
+        tasks.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reports progress until it is cancelled, after <code>started</code> is counted down.
+     */
+    private static class Spinning extends BackgroundTask {
+        private final CountDownLatch started = new CountDownLatch(1);
+
+        private Spinning(final String description) {
+            super(description);
+        }
+
+        @Override
+        protected String execute() throws Exception {
+            started.countDown();
+            for (long done = 0; ; done++) {
+                progress(done, -1);
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private static BackgroundTask returning(final String description, final String summary) {
+        return new BackgroundTask(description) {
+            @Override
+            protected String execute() {
+                progress(50, 100);
+                return summary;
+            }
+        };
+    }
+
+    private List<String> awaitNotices(final int count) throws InterruptedException {
+        final List<String> notices = Lists.newArrayList();
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (notices.size() < count && System.currentTimeMillis() < deadline) {
+            notices.addAll(tasks.drainNotices());
+            Thread.sleep(5);
+        }
+        return notices;
+    }
+
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        final BackgroundTask first = returning("first", "one");
+        final BackgroundTask second = returning("second", "two");
+        assertEquals(1, tasks.submit(first));
+        assertEquals(2, tasks.submit(second));
+
+        assertEquals(Arrays.asList("[1] Done: first\none", "[2] Done: second\ntwo"), awaitNotices(2));
+        assertEquals(BackgroundTask.State.DONE, second.getState());
+        assertEquals(50, second.getDone());
+        assertEquals(100, second.getTotal());
+        assertTrue(tasks.shutdown(10, TimeUnit.SECONDS));
+        assertTrue(tasks.list().isEmpty());
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        final BackgroundTask task = new BackgroundTask("failing") {
+            @Override
+            protected String execute() throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        tasks.submit(task);
+
+        assertEquals(Arrays.asList("[1] Failed: failing: java.io.IOException: disk full"), awaitNotices(1));
+        assertEquals(BackgroundTask.State.FAILED, task.getState());
+    }
+
+    @Test
+    public void testCancelQueuedTask() throws Exception {
+        final Spinning running = new Spinning("running");
+        final BackgroundTask queued = returning("queued", "never");
+        tasks.submit(running);
+        tasks.submit(queued);
+        running.started.await();
+        assertEquals(BackgroundTask.State.QUEUED, queued.getState());
+        assertEquals(0, queued.getElapsedNanos());
+
+        assertTrue(tasks.cancel(2));
+        assertEquals(BackgroundTask.State.CANCELLED, queued.getState());
+        assertEquals(Arrays.asList("[2] Cancelled: queued"), tasks.drainNotices());
+        assertEquals(Arrays.<BackgroundTask>asList(running), tasks.list());
+        assertEquals(BackgroundTask.State.RUNNING, running.getState());
+    }
+
+    @Test
+    public void testCancelRunningTaskAtNextProgressReport() throws Exception {
+        final Spinning task = new Spinning("spinning");
+        tasks.submit(task);
+        task.started.await();
+
+        assertTrue(tasks.cancel(1));
+        assertEquals(Arrays.asList("[1] Cancelled: spinning"), awaitNotices(1));
+        assertEquals(BackgroundTask.State.CANCELLED, task.getState());
+        assertTrue(task.isCancelled());
+        assertTrue(tasks.shutdown(10, TimeUnit.SECONDS));
+        assertTrue(tasks.list().isEmpty());
+    }
+
+    @Test
+    public void testCancelUnknownTask() throws Exception {
+        assertFalse(tasks.cancel(42));
+    }
+
+    @Test
+    public void testShutdownCancelsEverything() throws Exception {
+        final Spinning task = new Spinning("spinning");
+        tasks.submit(task);
+        tasks.submit(returning("queued", "never"));
+        task.started.await();
+
+        assertTrue(tasks.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(BackgroundTask.State.CANCELLED, task.getState());
+        assertEquals(2, tasks.drainNotices().size());
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.completers;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class HDFSFileNameCompletorTest {
+
+    private static FileStatus status(final String path, final boolean directory) {
+        return new FileStatus(0, directory, 1, 1024, 0, new Path(path));
+    }
+
+    /**
+     * @return a mock FileSystem in which each of <code>statuses</code> is listed in its parent directory, and every
+     * other directory is empty
+     */
+    private static FileSystem fileSystem(final FileStatus... statuses) throws IOException {
+        final ListMultimap<Path, FileStatus> children = ArrayListMultimap.create();
+        for (final FileStatus status : statuses) {
+            children.put(status.getPath().getParent(), status);
+        }
+        final FileSystem fs = mock(FileSystem.class);
+        when(fs.listStatus(any(Path.class))).thenReturn(new FileStatus[0]);
+        for (final Path directory : children.keySet()) {
+            when(fs.listStatus(directory)).thenReturn(children.get(directory).toArray(new FileStatus[0]));
+        }
+        return fs;
+    }
+
+    private static FileSystem userDirectory() throws IOException {
+        return fileSystem(status("/user/data", true), status("/user/dump.txt", false), status("/user/logs", true));
+    }
+
+    @Test
+    public void testCompletesFromOneListing() throws Exception {
+        final FileSystem fs = userDirectory();
+        final HDFSFileNameCompletor completor = new HDFSFileNameCompletor(new HDFSListingCache(fs, 60000, 1000), new Path("/"), 10);
+
+        final List<CharSequence> candidates = Lists.newArrayList();
+        assertEquals(6, completor.complete("/user/d", 7, candidates));
+        assertEquals(Lists.newArrayList("data", "dump.txt"), candidates);
+
+        candidates.clear();
+        completor.complete("/user/da", 8, candidates);
+        assertEquals(Lists.newArrayList("data/"), candidates);
+
+        candidates.clear();
+        completor.complete("/user/du", 8, candidates);
+        assertEquals(Lists.newArrayList("dump.txt "), candidates);
+
+        verify(fs, times(1)).listStatus(new Path("/user"));
+        verify(fs, never()).isFile(any(Path.class));
+    }
+
+    @Test
+    public void testCapsCandidates() throws Exception {
+        final FileStatus[] children = new FileStatus[20];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = status(String.format("/big/part-%05d", i), false);
+        }
+        final FileSystem fs = fileSystem(children);
+        final HDFSFileNameCompletor completor = new HDFSFileNameCompletor(new HDFSListingCache(fs, 60000, 1000), new Path("/"), 5);
+
+        final List<CharSequence> candidates = Lists.newArrayList();
+        completor.complete("/big/p", 6, candidates);
+        assertEquals(Lists.newArrayList("part-000"), candidates);
+
+        candidates.clear();
+        completor.complete("/big/part-000", 13, candidates);
+        assertEquals(5, candidates.size());
+        assertEquals("part-00000", candidates.get(0));
+    }
+
+    @Test
+    public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+        final FileSystem fs = fileSystem(status("/a/1", false), status("/a/2", false), status("/b/1", false),
+            status("/b/2", false), status("/c/1", false), status("/c/2", false));
+        final HDFSListingCache cache = new HDFSListingCache(fs, 60000, 4);
+
+        cache.list(new Path("/a"));
+        cache.list(new Path("/b"));
+        cache.list(new Path("/a"));
+        cache.list(new Path("/c"));
+        assertEquals(4, cache.size());
+
+        cache.list(new Path("/a"));
+        cache.list(new Path("/b"));
+        verify(fs, times(1)).listStatus(new Path("/a"));
+        verify(fs, times(2)).listStatus(new Path("/b"));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPrefetchesMatchingDirectories() throws Exception {
+        final FileSystem fs = userDirectory();
+        final HDFSListingCache cache = new HDFSListingCache(fs, 60000, 1000);
+        final HDFSListingPrefetcher prefetcher = new HDFSListingPrefetcher(cache);
+        try {
+            final HDFSFileNameCompletor completor = new HDFSFileNameCompletor(cache, prefetcher);
+            completor.complete("/user/d", 7, Lists.<CharSequence>newArrayList());
+            while (prefetcher.getPending() > 0) {
+                Thread.sleep(10);
+            }
+            verify(fs, timeout(1000)).listStatus(new Path("/user/data"));
+            verify(fs, never()).listStatus(new Path("/user/logs"));
+
+            completor.complete("/user/data/", 11, Lists.<CharSequence>newArrayList());
+            verify(fs, times(1)).listStatus(new Path("/user/data"));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testBacksOffWhenListingIsSlow() throws Exception {
+        final FileSystem fs = fileSystem();
+        when(fs.listStatus(any(Path.class))).thenAnswer(new Answer<FileStatus[]>() {
+            @Override
+            public FileStatus[] answer(final InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(50);
+                return new FileStatus[0];
+            }
+        });
+        final HDFSListingCache cache = new HDFSListingCache(fs, 60000, 1000);
+        final HDFSListingPrefetcher prefetcher = new HDFSListingPrefetcher(cache, 1, 4, 500, 1, TimeUnit.MILLISECONDS);
+        try {
+            assertEquals(0, prefetcher.backoffMillis());
+            cache.list(new Path("/"));
+            assertTrue(prefetcher.backoffMillis() > 0);
+            assertFalse(prefetcher.prefetch(new Path("/user")));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+}
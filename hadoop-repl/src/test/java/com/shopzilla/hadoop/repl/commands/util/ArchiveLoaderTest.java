@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveLoaderTest {
+
+    @ClassRule
+    public static final TestDFS DFS = new TestDFS();
+
+    @Rule
+    public final TestRule clearing = DFS.clearing();
+
+    private final FileSystem fs = DFS.getFileSystem();
+    private final File directory = DFS.getDirectory();
+
+    @Test
+    public void testToPath() throws Exception {
+        final Path root = new Path("/");
+        assertEquals(root, ArchiveLoader.toPath("./hdfs", root));
+        assertEquals(new Path("/user/data"), ArchiveLoader.toPath("./hdfs/user/data", root));
+        assertEquals(new Path("/user/data"), ArchiveLoader.toPath("hdfs/user/data", root));
+        assertEquals(new Path("/restore/user"), ArchiveLoader.toPath("./hdfs/user", new Path("/restore")));
+    }
+
+    @Test
+    public void testToPathIgnoresOtherEntries() throws Exception {
+        assertNull(ArchiveLoader.toPath("./hdfs-other/file", new Path("/")));
+        assertNull(ArchiveLoader.toPath("./.hdfs-metadata/hdfs/.listing", new Path("/")));
+    }
+
+    private File saveTree() throws Exception {
+        TestDFS.write(fs, new Path("/a/b/c/deep.txt"), "deep", (short) 2, 1024 * 1024);
+        TestDFS.write(fs, new Path("/a/b/donn\u00e9es.txt"), "caf\u00e9 cr\u00e8me", (short) 1, 2 * 1024 * 1024);
+        TestDFS.write(fs, new Path("/a/empty"), "");
+        TestDFS.write(fs, new Path("/top.txt"), "top");
+        fs.mkdirs(new Path("/x/emptydir"));
+        final File archive = new File(directory, "state-" + System.nanoTime() + ".tgz");
+        new ClusterStateManager(fs).serialize(archive);
+        return archive;
+    }
+
+    private void assertFile(final String path, final String contents, final int replication, final long blockSize) throws Exception {
+        final FileStatus status = fs.getFileStatus(new Path(path));
+        assertEquals(contents, TestDFS.read(fs, status.getPath()));
+        assertEquals(replication, status.getReplication());
+        assertEquals(blockSize, status.getBlockSize());
+    }
+
+    private void assertNoStagingLeft() throws Exception {
+        for (final FileStatus child : fs.listStatus(new Path("/"))) {
+            assertFalse(child.getPath().getName(), child.getPath().getName().startsWith(".load-"));
+        }
+    }
+
+    @Test
+    public void testTarballRoundTrip() throws Exception {
+        final File archive = saveTree();
+        ClusterStateManager.clear(fs, "/");
+        TestDFS.write(fs, new Path("/junk"), "junk");
+
+        new ClusterStateManager(fs).load(archive);
+
+        assertFalse(fs.exists(new Path("/junk")));
+        assertFile("/a/b/c/deep.txt", "deep", 2, 1024 * 1024);
+        assertFile("/a/b/donn\u00e9es.txt", "caf\u00e9 cr\u00e8me", 1, 2 * 1024 * 1024);
+        assertEquals(0, fs.getFileStatus(new Path("/a/empty")).getLen());
+        assertEquals("top", TestDFS.read(fs, new Path("/top.txt")));
+        assertTrue(fs.getFileStatus(new Path("/x/emptydir")).isDir());
+        assertNoStagingLeft();
+    }
+
+    @Test
+    public void testSubpathLoadReplacesOnlySubpath() throws Exception {
+        final File archive = saveTree();
+        TestDFS.write(fs, new Path("/a/b/c/deep.txt"), "changed");
+        TestDFS.write(fs, new Path("/a/b/new"), "new");
+        TestDFS.write(fs, new Path("/top.txt"), "changed");
+
+        new ClusterStateManager(fs).load(archive, "/a/b", ProgressListener.NONE);
+
+        assertFile("/a/b/c/deep.txt", "deep", 2, 1024 * 1024);
+        assertFalse(fs.exists(new Path("/a/b/new")));
+        assertEquals(0, fs.getFileStatus(new Path("/a/empty")).getLen());
+        assertEquals("changed", TestDFS.read(fs, new Path("/top.txt")));
+        assertNoStagingLeft();
+    }
+
+    @Test
+    public void testDamagedArchiveLeavesHDFSUntouched() throws Exception {
+        final File archive = saveTree();
+        final RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.setLength(file.length() / 2);
+        } finally {
+            file.close();
+        }
+        TestDFS.write(fs, new Path("/top.txt"), "current");
+
+        try {
+            new ClusterStateManager(fs).load(archive);
+            fail("Expected a truncated archive to fail");
+        } catch (final RuntimeException ex) {
+            // expected
+        }
+
+        assertEquals("current", TestDFS.read(fs, new Path("/top.txt")));
+        assertEquals("deep", TestDFS.read(fs, new Path("/a/b/c/deep.txt")));
+        assertNoStagingLeft();
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkStoreTest {
+
+    private static final int CHUNK_SIZE = 4;
+
+    @ClassRule
+    public static final TestDFS DFS = new TestDFS();
+
+    @Rule
+    public final TestRule clearing = DFS.clearing();
+
+    private final FileSystem fs = DFS.getFileSystem();
+    private final File directory = DFS.getDirectory();
+
+    private ChunkStore store;
+
+    @Before
+    public void createStore() throws Exception {
+        store = new ChunkStore(new File(directory, "store-" + System.nanoTime()), fs, 2, CHUNK_SIZE);
+    }
+
+    private List<File> chunks() {
+        final List<File> chunks = Lists.newArrayList();
+        final File[] prefixes = new File(store.getRoot(), "chunks").listFiles();
+        for (final File prefix : prefixes == null ? new File[0] : prefixes) {
+            chunks.addAll(Arrays.asList(prefix.listFiles()));
+        }
+        return chunks;
+    }
+
+    private void load(final String name, final String subpath) {
+        new ClusterStateManager(fs).load(store.getRoot(), name, subpath, ProgressListener.NONE);
+    }
+
+    @Test
+    public void testIdenticalChunksAreStoredOnce() throws Exception {
+        TestDFS.write(fs, new Path("/a"), "aaaabbbb");
+        TestDFS.write(fs, new Path("/b"), "aaaabbbbcc");
+        final ChunkStore.Statistics first = store.save(new Path("/"), "first", ProgressListener.NONE);
+        assertEquals(5, first.getChunks());
+        assertEquals(3, first.getNewChunks());
+        assertEquals(3, chunks().size());
+
+        TestDFS.write(fs, new Path("/c"), "bbbbcc");
+        final ChunkStore.Statistics second = store.save(new Path("/"), "second", ProgressListener.NONE);
+        assertEquals(0, second.getNewChunks());
+        assertEquals(Arrays.asList("first", "second"), store.sessions());
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        TestDFS.write(fs, new Path("/a/b/one"), "one, and then some");
+        TestDFS.write(fs, new Path("/a/empty"), "");
+        TestDFS.write(fs, new Path("/top.txt"), "top");
+        fs.mkdirs(new Path("/x/emptydir"));
+        store.save(new Path("/"), "session", ProgressListener.NONE);
+        TestDFS.write(fs, new Path("/a/b/one"), "changed");
+        TestDFS.write(fs, new Path("/a/b/new"), "new");
+        TestDFS.write(fs, new Path("/top.txt"), "changed");
+
+        load("session", "/a");
+        assertEquals("one, and then some", TestDFS.read(fs, new Path("/a/b/one")));
+        assertFalse(fs.exists(new Path("/a/b/new")));
+        assertEquals("", TestDFS.read(fs, new Path("/a/empty")));
+        assertEquals("changed", TestDFS.read(fs, new Path("/top.txt")));
+
+        load("session", "/");
+        assertEquals("top", TestDFS.read(fs, new Path("/top.txt")));
+        assertTrue(fs.getFileStatus(new Path("/x/emptydir")).isDir());
+    }
+
+    @Test
+    public void testMissingChunkLeavesHDFSUntouched() throws Exception {
+        TestDFS.write(fs, new Path("/a"), "aaaabbbb");
+        store.save(new Path("/"), "session", ProgressListener.NONE);
+        TestDFS.write(fs, new Path("/a"), "current");
+        assertTrue(chunks().get(0).delete());
+
+        try {
+            load("session", "/");
+            fail("Expected a load with a missing chunk to fail");
+        } catch (final RuntimeException ex) {
+            assertTrue(ex.getMessage(), ex.getCause().getMessage().contains("is missing from the store"));
+        }
+        assertEquals("current", TestDFS.read(fs, new Path("/a")));
+        assertEquals(1, fs.listStatus(new Path("/")).length);
+    }
+
+    @Test
+    public void testGcKeepsReferencedChunks() throws Exception {
+        TestDFS.write(fs, new Path("/shared"), "aaaa");
+        store.save(new Path("/"), "kept", ProgressListener.NONE);
+        TestDFS.write(fs, new Path("/only"), "bbbb");
+        store.save(new Path("/"), "deleted", ProgressListener.NONE);
+        assertEquals(2, chunks().size());
+
+        store.delete("deleted");
+        assertTrue(store.gc(0) > 0);
+        assertEquals(1, chunks().size());
+
+        ClusterStateManager.clear(fs, "/");
+        load("kept", "/");
+        assertEquals("aaaa", TestDFS.read(fs, new Path("/shared")));
+    }
+
+    @Test
+    public void testReusedChunksAreTouched() throws Exception {
+        TestDFS.write(fs, new Path("/a"), "aaaa");
+        store.save(new Path("/"), "first", ProgressListener.NONE);
+        final File chunk = chunks().get(0);
+        assertTrue(chunk.setLastModified(System.currentTimeMillis() - 2 * ChunkStore.DEFAULT_GC_GRACE_MILLIS));
+
+        store.save(new Path("/"), "second", ProgressListener.NONE);
+        store.delete("first");
+        store.delete("second");
+        // unreferenced, but reused within the grace period
+        assertEquals(0, store.gc(ChunkStore.DEFAULT_GC_GRACE_MILLIS));
+        assertTrue(chunk.isFile());
+    }
+
+    @Test
+    public void testRejectsNamesOutsideTheStore() throws Exception {
+        for (final String name : new String[] {"", "..", "../escape", "a/b", ".hidden", "a\\b"}) {
+            try {
+                store.save(new Path("/"), name, ProgressListener.NONE);
+                fail("Expected " + name + " to be rejected");
+            } catch (final IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        assertFalse(new File(store.getRoot().getParentFile(), "escape.manifest").exists());
+    }
+}
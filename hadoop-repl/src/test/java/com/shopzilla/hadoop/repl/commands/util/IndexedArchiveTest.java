@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexedArchiveTest {
+
+    private static final String LARGE = Strings.repeat("0123456789abcdef", IndexedArchive.RUN_SIZE / 16 + 1);
+
+    @ClassRule
+    public static final TestDFS DFS = new TestDFS();
+
+    @Rule
+    public final TestRule clearing = DFS.clearing();
+
+    private final FileSystem fs = DFS.getFileSystem();
+    private final File directory = DFS.getDirectory();
+
+    private File save() throws Exception {
+        TestDFS.write(fs, new Path("/a/b/one"), "one");
+        TestDFS.write(fs, new Path("/a/b/two"), "two!");
+        TestDFS.write(fs, new Path("/a/b/empty"), "");
+        TestDFS.write(fs, new Path("/a/large"), LARGE);
+        TestDFS.write(fs, new Path("/top.txt"), "top");
+        fs.mkdirs(new Path("/x/emptydir"));
+        final File archive = new File(directory, "state-" + System.nanoTime() + IndexedArchive.EXTENSION);
+        new IndexedArchive(fs, 2).save(new Path("/"), archive, ProgressListener.NONE);
+        return archive;
+    }
+
+    private static Map<String, IndexedArchive.Entry> list(final File archive, final String path) throws Exception {
+        final Map<String, IndexedArchive.Entry> entries = Maps.newTreeMap();
+        for (final IndexedArchive.Entry entry : IndexedArchive.list(archive, path)) {
+            entries.put(entry.getPath(), entry);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testFooterPointsAtGzippedIndex() throws Exception {
+        final File archive = save();
+        assertTrue(IndexedArchive.isIndexed(archive));
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            file.seek(file.length() - 12);
+            final long indexOffset = file.readLong();
+            assertEquals(0x48494133, file.readInt());
+            assertTrue(indexOffset > 0 && indexOffset < file.length() - 12);
+            file.seek(indexOffset);
+            assertEquals(0x1f, file.read());
+            assertEquals(0x8b, file.read());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testSmallFilesShareARun() throws Exception {
+        final File archive = save();
+        final Map<String, IndexedArchive.Entry> small = list(archive, "/a/b");
+        final IndexedArchive.Entry one = small.get("/a/b/one");
+        final IndexedArchive.Entry two = small.get("/a/b/two");
+        final IndexedArchive.Entry empty = small.get("/a/b/empty");
+        assertEquals(one.getOffset(), two.getOffset());
+        assertEquals(one.getOffset(), empty.getOffset());
+        assertEquals(one.getCompressedLength(), two.getCompressedLength());
+        // stored in walk order, which is listing order
+        assertEquals(0, empty.getRunOffset());
+        assertEquals(0, one.getRunOffset());
+        assertEquals(3, two.getRunOffset());
+
+        final IndexedArchive.Entry large = list(archive, "/a").get("/a/large");
+        assertEquals(0, large.getRunOffset());
+        assertTrue(large.getOffset() >= one.getOffset() + one.getCompressedLength());
+
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            for (final IndexedArchive.Entry entry : new IndexedArchive.Entry[] {one, large}) {
+                final byte[] header = new byte[ParallelGZIPOutputStream.HEADER_SIZE];
+                file.seek(entry.getOffset());
+                file.readFully(header);
+                assertTrue(entry.getPath(), ParallelGZIPInputStream.isParallelMember(header));
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testList() throws Exception {
+        final File archive = save();
+        assertEquals("[/a, /top.txt, /x]", list(archive, "/").keySet().toString());
+        assertEquals("[/a/b, /a/large]", list(archive, "a/").keySet().toString());
+        final List<IndexedArchive.Entry> file = IndexedArchive.list(archive, "/a/b/two");
+        assertEquals(1, file.size());
+        assertEquals(4, file.get(0).getLength());
+        assertFalse(file.get(0).isDirectory());
+        assertTrue(IndexedArchive.list(archive, "/missing").isEmpty());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File archive = save();
+        ClusterStateManager.clear(fs, "/");
+        TestDFS.write(fs, new Path("/junk"), "junk");
+
+        new ClusterStateManager(fs).load(archive, "/", ProgressListener.NONE);
+
+        assertFalse(fs.exists(new Path("/junk")));
+        assertEquals("one", TestDFS.read(fs, new Path("/a/b/one")));
+        assertEquals("two!", TestDFS.read(fs, new Path("/a/b/two")));
+        assertEquals("", TestDFS.read(fs, new Path("/a/b/empty")));
+        assertEquals(LARGE, TestDFS.read(fs, new Path("/a/large")));
+        assertEquals("top", TestDFS.read(fs, new Path("/top.txt")));
+        assertTrue(fs.getFileStatus(new Path("/x/emptydir")).isDir());
+    }
+
+    @Test
+    public void testPartialRestore() throws Exception {
+        final File archive = save();
+        TestDFS.write(fs, new Path("/a/b/two"), "changed");
+        TestDFS.write(fs, new Path("/a/b/new"), "new");
+        TestDFS.write(fs, new Path("/a/large"), "changed");
+        TestDFS.write(fs, new Path("/top.txt"), "changed");
+
+        new ClusterStateManager(fs).load(archive, "/a/b/", ProgressListener.NONE);
+
+        assertEquals("one", TestDFS.read(fs, new Path("/a/b/one")));
+        assertEquals("two!", TestDFS.read(fs, new Path("/a/b/two")));
+        assertFalse(fs.exists(new Path("/a/b/new")));
+        assertEquals("changed", TestDFS.read(fs, new Path("/a/large")));
+        assertEquals("changed", TestDFS.read(fs, new Path("/top.txt")));
+    }
+
+    private File saveAgainst(final File parent) throws Exception {
+        final File archive = new File(parent.getParentFile(), "state-" + System.nanoTime() + IndexedArchive.EXTENSION);
+        new IndexedArchive(fs, 2).save(new Path("/"), archive, parent, ProgressListener.NONE);
+        return archive;
+    }
+
+    @Test
+    public void testUnchangedFilesAreInherited() throws Exception {
+        final File base = save();
+        TestDFS.write(fs, new Path("/a/b/one"), "one, changed");
+        fs.delete(new Path("/top.txt"), false);
+        final File child = saveAgainst(base);
+
+        final Map<String, IndexedArchive.Entry> entries = list(child, "/a/b");
+        assertTrue(entries.get("/a/b/one").getOffset() >= 0);
+        assertEquals(-1, entries.get("/a/b/two").getOffset());
+        assertEquals(-1, list(child, "/a").get("/a/large").getOffset());
+        assertFalse(list(child, "/").containsKey("/top.txt"));
+    }
+
+    @Test
+    public void testChecksumCatchesRewriteWithSameLengthAndTime() throws Exception {
+        final File base = save();
+        // the base stored every file, so it has no checksums yet; the child records them for the inherited files
+        final File child = saveAgainst(base);
+        final long modificationTime = fs.getFileStatus(new Path("/a/b/two")).getModificationTime();
+        TestDFS.write(fs, new Path("/a/b/two"), "TWO!");
+        fs.setTimes(new Path("/a/b/two"), modificationTime, -1);
+        final File grandchild = saveAgainst(child);
+
+        assertTrue(list(grandchild, "/a/b").get("/a/b/two").getOffset() >= 0);
+        assertEquals(-1, list(grandchild, "/a/b").get("/a/b/one").getOffset());
+    }
+
+    @Test
+    public void testLoadResolvesParentChain() throws Exception {
+        final File base = save();
+        TestDFS.write(fs, new Path("/a/b/one"), "one, changed");
+        final File child = saveAgainst(base);
+        TestDFS.write(fs, new Path("/a/b/three"), "three");
+        final File grandchild = saveAgainst(child);
+
+        // parents are found relative to the archive, so the chain can be moved as a whole
+        final File moved = Files.createTempDir();
+        try {
+            for (final File archive : new File[] {base, child, grandchild}) {
+                Files.move(archive, new File(moved, archive.getName()));
+            }
+            ClusterStateManager.clear(fs, "/");
+            new ClusterStateManager(fs).load(new File(moved, grandchild.getName()), "/", ProgressListener.NONE);
+        } finally {
+            FileUtils.deleteQuietly(moved);
+        }
+
+        assertEquals("one, changed", TestDFS.read(fs, new Path("/a/b/one")));
+        assertEquals("two!", TestDFS.read(fs, new Path("/a/b/two")));
+        assertEquals("three", TestDFS.read(fs, new Path("/a/b/three")));
+        assertEquals(LARGE, TestDFS.read(fs, new Path("/a/large")));
+        assertEquals("top", TestDFS.read(fs, new Path("/top.txt")));
+    }
+
+    @Test
+    public void testLoadRejectsReplacedParent() throws Exception {
+        final File base = save();
+        TestDFS.write(fs, new Path("/a/b/one"), "one, changed");
+        final File child = saveAgainst(base);
+        new IndexedArchive(fs, 2).save(new Path("/"), base, ProgressListener.NONE);
+        TestDFS.write(fs, new Path("/top.txt"), "current");
+
+        try {
+            new ClusterStateManager(fs).load(child, "/", ProgressListener.NONE);
+            fail("Expected a load against a different parent to fail");
+        } catch (final RuntimeException ex) {
+            assertTrue(ex.getMessage(), ex.getCause().getMessage().contains("was saved against"));
+        }
+        assertEquals("current", TestDFS.read(fs, new Path("/top.txt")));
+    }
+
+    @Test
+    public void testLoadToTarget() throws Exception {
+        final File archive = save();
+
+        new IndexedArchive(fs, 2).load(archive, new Path("/restore"), "/a/b", ProgressListener.NONE);
+
+        assertEquals("one", TestDFS.read(fs, new Path("/restore/a/b/one")));
+        assertEquals("two!", TestDFS.read(fs, new Path("/restore/a/b/two")));
+        assertFalse(fs.exists(new Path("/restore/a/large")));
+        assertEquals("one", TestDFS.read(fs, new Path("/a/b/one")));
+    }
+
+    @Test
+    public void testCancelledLoadLeavesHDFSUntouched() throws Exception {
+        final File archive = save();
+        TestDFS.write(fs, new Path("/a/b/one"), "current");
+        TestDFS.write(fs, new Path("/junk"), "junk");
+
+        try {
+            new ClusterStateManager(fs).load(archive, "/", new ProgressListener() {
+                @Override
+                public void progress(final long done, final long total) {
+                    throw new CancellationException();
+                }
+            });
+            fail("Expected the load to be cancelled");
+        } catch (final RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+        }
+
+        assertEquals("current", TestDFS.read(fs, new Path("/a/b/one")));
+        assertEquals("junk", TestDFS.read(fs, new Path("/junk")));
+        for (final FileStatus child : fs.listStatus(new Path("/"))) {
+            assertFalse(child.getPath().getName(), child.getPath().getName().startsWith(".load-"));
+        }
+    }
+
+    @Test
+    public void testCancelledLoadWaitsForWriters() throws Exception {
+        final File archive = save();
+        try {
+            new IndexedArchive(fs, 2).load(archive, new Path("/restore"), "/", new ProgressListener() {
+                @Override
+                public void progress(final long done, final long total) {
+                    throw new CancellationException();
+                }
+            });
+            fail("Expected the load to be cancelled");
+        } catch (final CancellationException ex) {
+            // expected
+        }
+        // the pool has terminated, so its threads are at most on their way out
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("archive-load-")) {
+                thread.join(1000);
+                assertFalse(thread.getName(), thread.isAlive());
+            }
+        }
+    }
+}
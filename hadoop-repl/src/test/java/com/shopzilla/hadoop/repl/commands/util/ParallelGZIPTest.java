@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGZIPTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    @Test
+    public void testReadableByGZIPInputStream() throws Exception {
+        for (final int size : new int[] {0, 1, BLOCK_SIZE, 5 * BLOCK_SIZE + 7}) {
+            final byte[] data = data(size);
+            assertArrayEquals(data, read(new GZIPInputStream(new ByteArrayInputStream(compress(data)))));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (final int size : new int[] {0, 1, BLOCK_SIZE, 5 * BLOCK_SIZE + 7}) {
+            final byte[] data = data(size);
+            assertArrayEquals(data, read(new ParallelGZIPInputStream(new ByteArrayInputStream(compress(data)), 3)));
+        }
+    }
+
+    @Test
+    public void testReadsPlainGZIP() throws Exception {
+        final byte[] data = data(3 * BLOCK_SIZE);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new GZIPOutputStream(compressed);
+        out.write(data);
+        out.close();
+        assertArrayEquals(data, read(new ParallelGZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()), 3)));
+    }
+
+    @Test
+    public void testRoundTripHighlyCompressible() throws Exception {
+        final byte[] data = new byte[5 * BLOCK_SIZE];
+        assertArrayEquals(data, read(new ParallelGZIPInputStream(new ByteArrayInputStream(compress(data)), 3)));
+    }
+
+    @Test
+    public void testFlushDoesNotEndMember() throws Exception {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(compressed, 4, BLOCK_SIZE, 6);
+        out.write(data(100));
+        out.flush();
+        assertEquals(0, compressed.size());
+        out.finishMember();
+        final int member = compressed.size();
+        assertTrue(member > 0);
+        out.write(data(100));
+        out.close();
+        assertEquals(2 * member, compressed.size());
+    }
+
+    @Test(expected = ZipException.class)
+    public void testRejectsImplausibleLength() throws Exception {
+        final byte[] member = compress(data(100));
+        // claims 2 GB of output from a 100 byte input
+        member[member.length - 1] = 0x7f;
+        ParallelGZIPInputStream.inflate(member);
+    }
+
+    private static byte[] data(final int size) {
+        final Random random = new Random(size);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(6));
+        }
+        return data;
+    }
+
+    private static byte[] compress(final byte[] data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final OutputStream out = new ParallelGZIPOutputStream(compressed, 4, BLOCK_SIZE, 6);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[777];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2004 - 2013 Shopzilla, Inc. 
+ * All rights reserved. Unauthorized disclosure or distribution is prohibited.
+ */
+
+package com.shopzilla.hadoop.repl.commands.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A one-DataNode MiniDFSCluster for the archive tests, and helpers to write and read small files in it.
+ *
+ * Used as a <code>&#64;ClassRule</code>, the cluster is started in a temporary directory before the first test of
+ * the class and stopped, with the directory deleted, after the last. The rule from {@link #clearing()} empties HDFS
+ * after each test.
+ */
+final class TestDFS extends ExternalResource {
+
+    private File directory;
+    private MiniDFSCluster cluster;
+
+    @Override
+    protected void before() throws IOException {
+        directory = Files.createTempDir();
+        System.setProperty("test.build.data", directory.getAbsolutePath());
+        cluster = new MiniDFSCluster(new Configuration(), 1, true, null);
+    }
+
+    @Override
+    protected void after() {
+        cluster.shutdown();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * @return a <code>&#64;Rule</code> that deletes everything in HDFS once each test finishes
+     */
+    TestRule clearing() {
+        return new ExternalResource() {
+            @Override
+            protected void after() {
+                try {
+                    ClusterStateManager.clear(getFileSystem(), "/");
+                } catch (final IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+    }
+
+    FileSystem getFileSystem() {
+        try {
+            return cluster.getFileSystem();
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return a local directory, deleted with the cluster, for archives and stores
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    static void write(final FileSystem fs, final Path path, final String contents) throws IOException {
+        write(fs, path, contents, fs.getDefaultReplication(), fs.getDefaultBlockSize());
+    }
+
+    static void write(final FileSystem fs, final Path path, final String contents, final short replication,
+                      final long blockSize) throws IOException {
+        final FSDataOutputStream out = fs.create(path, FsPermission.getDefault(), true, 4096, replication, blockSize, null);
+        try {
+            out.write(contents.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    static String read(final FileSystem fs, final Path path) throws IOException {
+        final InputStream in = fs.open(path);
+        try {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
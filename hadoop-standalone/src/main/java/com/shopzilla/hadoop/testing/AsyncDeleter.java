@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deletes directory trees off the calling thread.
+ *
+ * A tree is first renamed to a sibling <code>&lt;name&gt;.deleting-&lt;uuid&gt;</code>, which frees the original
+ * path immediately, and is then deleted by a background daemon thread. Trees left behind by a JVM that exited
+ * before its deletes finished are removed by {@link #sweep(File)}, so a directory can be swept while other
+ * processes are still using their own, differently named, entries in it.
+ *
+ * A shutdown hook gives deletes still queued when the JVM exits up to {@link #SHUTDOWN_TIMEOUT_SECONDS} to finish.
+ * Deletes requested after that hook has started run on the calling thread.
+ */
+public final class AsyncDeleter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncDeleter.class);
+
+    private static final String TRASH_INFIX = ".deleting-";
+
+    public static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("async-delete")
+        .setDaemon(true)
+        .build());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                EXECUTOR.shutdown();
+                try {
+                    if (!EXECUTOR.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        LOG.warn("Pending deletes did not finish within {} seconds of shutdown", SHUTDOWN_TIMEOUT_SECONDS);
+                    }
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "async-delete-shutdown"));
+    }
+
+    private AsyncDeleter() {
+    }
+
+    /**
+     * Moves <code>file</code> aside and deletes it in the background. Deletes it in place if it cannot be renamed.
+     */
+    public static void delete(final File file) {
+        if (!file.exists()) {
+            return;
+        }
+        final File trash = new File(file.getAbsoluteFile().getParentFile(), file.getName() + TRASH_INFIX + UUID.randomUUID());
+        if (file.renameTo(trash)) {
+            deleteInBackground(trash);
+        } else {
+            LOG.debug("Unable to rename {} aside, deleting it in place", file);
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Deletes, in the background, any entries of <code>directory</code> that an earlier {@link #delete(File)}
+     * moved aside but never finished deleting.
+     */
+    public static void sweep(final File directory) {
+        final File[] leftovers = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File directory, final String name) {
+                return name.contains(TRASH_INFIX);
+            }
+        });
+        if (leftovers != null) {
+            for (final File leftover : leftovers) {
+                LOG.info("Removing leftover {}", leftover);
+                deleteInBackground(leftover);
+            }
+        }
+    }
+
+    /**
+     * Waits for every delete requested so far to finish.
+     *
+     * @return false if they did not finish within <code>timeout</code>
+     */
+    public static boolean awaitPending(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (EXECUTOR.isShutdown()) {
+            return EXECUTOR.awaitTermination(timeout, unit);
+        }
+        try {
+            EXECUTOR.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    return null;
+                }
+            }).get(timeout, unit);
+            return true;
+        } catch (final ExecutionException ex) {
+            throw new IllegalStateException(ex.getCause());
+        } catch (final TimeoutException ex) {
+            return false;
+        } catch (final RejectedExecutionException ex) {
+            return EXECUTOR.awaitTermination(timeout, unit);
+        }
+    }
+
+    private static void deleteInBackground(final File file) {
+        final Runnable delete = new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.currentTimeMillis();
+                FileUtils.deleteQuietly(file);
+                LOG.debug("Deleted {} in {} ms", file, System.currentTimeMillis() - start);
+            }
+        };
+        try {
+            EXECUTOR.submit(delete);
+        } catch (final RejectedExecutionException ex) {
+            // The JVM is shutting down, so a queued delete might never run
+            delete.run();
+        }
+    }
+}
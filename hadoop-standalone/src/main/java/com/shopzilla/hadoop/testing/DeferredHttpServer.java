@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import org.apache.hadoop.http.HttpServer;
+import org.mortbay.jetty.Connector;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+/**
+ * Takes a Hadoop daemon's info server offline, and brings it back on its original port when it is first needed.
+ *
+ * Hadoop 0.20 daemons always build their Jetty info server while starting, and fail to start without one,
+ * so the server cannot be skipped outright. Stopping it straight away frees its port and Jetty threads, and
+ * keeping the port means addresses the daemons have already handed out, like DataNode info ports, stay valid
+ * once it is restarted.
+ */
+public class DeferredHttpServer {
+
+    private final HttpServer httpServer;
+    private final int port;
+    private boolean running = true;
+
+    private DeferredHttpServer(final HttpServer httpServer) {
+        this.httpServer = httpServer;
+        this.port = httpServer.getPort();
+    }
+
+    /**
+     * Stops the info server held in the <code>fieldName</code> field of <code>daemon</code>, such as
+     * <code>httpServer</code> of a NameNode or <code>infoServer</code> of a DataNode or JobTracker.
+     */
+    public static DeferredHttpServer suspend(final Object daemon, final String fieldName) throws IOException {
+        final DeferredHttpServer server = new DeferredHttpServer((HttpServer) readField(daemon, fieldName));
+        server.stop();
+        return server;
+    }
+
+    /**
+     * @return the port, after starting the server again if it is stopped
+     */
+    public synchronized int ensureStarted() throws IOException {
+        if (!running) {
+            // HttpServer reopens on the port its listener was configured with, which is 0 for test clusters
+            ((Connector) readField(httpServer, "listener")).setPort(port);
+            httpServer.start();
+            running = true;
+        }
+        return port;
+    }
+
+    /**
+     * @return the port the server listens on while running, without starting it
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void stop() throws IOException {
+        if (running) {
+            try {
+                httpServer.stop();
+            } catch (final Exception ex) {
+                throw new IOException("Unable to stop info server on port " + port, ex);
+            }
+            running = false;
+        }
+    }
+
+    private static Object readField(final Object target, final String fieldName) throws IOException {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                final Field field = type.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (final NoSuchFieldException ex) {
+                // Keep looking in the superclass
+            } catch (final IllegalAccessException ex) {
+                throw new IOException("Unable to read " + fieldName + " of " + target.getClass().getName(), ex);
+            }
+        }
+        throw new IOException(target.getClass().getName() + " has no field " + fieldName);
+    }
+}
@@ -21,9 +21,11 @@ package com.shopzilla.hadoop.testing;
 
 import com.shopzilla.hadoop.repl.HadoopREPL;
 import com.shopzilla.hadoop.repl.REPL;
+import com.google.common.collect.Lists;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Jeremy Lucas
@@ -31,21 +33,46 @@ import java.io.IOException;
  */
 public class HadoopStandaloneCLI {
 
+    private static final String USAGE = "Usage: ./hadoop-standalone [--profile=default|host_sized|minimal] [--headless] [--restore=<snapshot-directory>] [<path-to-hadoop-core-site-file>] [<local-root-directory>]";
+
     public static void main(final String[] args) {
         int exitCode = 0;
         try {
             File localRoot = null;
             File configurationFile = MiniCluster.DEFAULT_CORE_SITE;
-            if (args.length >= 1) {
-                configurationFile = new File(args[0]);
+            ResourceProfile resourceProfile = ResourceProfile.DEFAULT;
+            boolean headless = false;
+            File snapshot = null;
+            final List<String> arguments = Lists.newArrayList();
+            for (final String arg : args) {
+                if (arg.startsWith("--profile=")) {
+                    resourceProfile = parseProfile(arg.substring("--profile=".length()));
+                } else if (arg.equals("--headless")) {
+                    headless = true;
+                } else if (arg.startsWith("--restore=")) {
+                    snapshot = new File(arg.substring("--restore=".length()));
+                } else if (arg.startsWith("--")) {
+                    throw new REPL.ExitSignal(1, USAGE);
+                } else {
+                    arguments.add(arg);
+                }
+            }
+            if (arguments.size() >= 1) {
+                configurationFile = new File(arguments.get(0));
             }
-            if (args.length == 2) {
-                localRoot = new File(args[1]);
+            if (arguments.size() == 2) {
+                localRoot = new File(arguments.get(1));
             }
-            if (args.length > 2) {
-                throw new REPL.ExitSignal(1, "Usage: ./hadoop-standalone [<path-to-hadoop-core-site-file>] [<local-root-directory>]");
+            if (arguments.size() > 2) {
+                throw new REPL.ExitSignal(1, USAGE);
             }
-            final MiniCluster miniCluster = new MiniCluster(configurationFile, localRoot);
+            final MiniCluster miniCluster = MiniCluster.builder()
+                .withConfigurationFile(configurationFile)
+                .withInitialStructure(localRoot)
+                .withResourceProfile(resourceProfile)
+                .withHeadless(headless)
+                .withSnapshot(snapshot)
+                .build();
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 @Override
                 public void run() {
@@ -53,9 +80,16 @@ public class HadoopStandaloneCLI {
                 }
             }));
             miniCluster.start();
-            System.out.println("DFS HTTP: " + miniCluster.getDfsCluster().getHttpAddress());
-            System.out.println("JobTracker HTTP: " + miniCluster.getJobTracker().getHttpAddress());
-            new HadoopREPL(miniCluster.getConfiguration()).loop("hadoop-in-a-box> ");
+            if (headless) {
+                System.out.println("Web UIs are off (--headless)");
+            } else {
+                System.out.println("DFS HTTP: " + miniCluster.getDfsCluster().getHttpAddress());
+                System.out.println("JobTracker HTTP: " + miniCluster.getJobTracker().getHttpAddress());
+            }
+            if (miniCluster.getDfsCluster().getImportStatistics() != null) {
+                System.out.println(miniCluster.getDfsCluster().getImportStatistics());
+            }
+            new HadoopREPL(miniCluster.getConfiguration(), new SnapshotCommandProvider(miniCluster.getDfsCluster())).loop("hadoop-in-a-box> ");
         } catch (final IOException ex) {
             exitCode = 100;
             System.err.println(ex.getMessage());
@@ -69,4 +103,12 @@ public class HadoopStandaloneCLI {
         }
         System.exit(exitCode);
     }
+
+    private static ResourceProfile parseProfile(final String name) {
+        try {
+            return ResourceProfile.valueOf(name.toUpperCase().replace('-', '_'));
+        } catch (final IllegalArgumentException ex) {
+            throw new REPL.ExitSignal(1, "Unknown profile: " + name + "\n" + USAGE);
+        }
+    }
 }
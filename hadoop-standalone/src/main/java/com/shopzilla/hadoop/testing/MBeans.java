@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+package com.shopzilla.hadoop.testing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registers the cluster MXBeans with the platform MBean server under <code>com.shopzilla.hadoop.testing:type=&lt;type&gt;,id=&lt;n&gt;</code>.
+ *
+ * Registration failures are logged rather than thrown, since monitoring must never keep a cluster from starting.
+ */
+public final class MBeans {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBeans.class);
+
+    public static final String DOMAIN = "com.shopzilla.hadoop.testing";
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private MBeans() {
+    }
+
+    /**
+     * @return the name <code>mbean</code> was registered under, or null if it could not be registered
+     */
+    public static ObjectName register(final String type, final Object mbean) {
+        try {
+            final ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",id=" + SEQUENCE.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (final JMException ex) {
+            LOG.warn("Unable to register " + type + " MBean", ex);
+            return null;
+        }
+    }
+
+    public static void unregister(final ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (final JMException ex) {
+            LOG.warn("Unable to unregister MBean " + name, ex);
+        }
+    }
+}
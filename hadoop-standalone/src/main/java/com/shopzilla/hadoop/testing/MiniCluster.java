@@ -20,67 +20,482 @@ package com.shopzilla.hadoop.testing;
 
 import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
 import com.shopzilla.hadoop.testing.mapreduce.JobTracker;
+import com.shopzilla.hadoop.testing.mapreduce.LazyJobTracker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author jlucas
  * @since 4/1/13
  */
-public class MiniCluster {
+public class MiniCluster implements MiniClusterMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(MiniCluster.class);
+
+    public static final long DEFAULT_STARTUP_TIMEOUT_MILLIS = 120000;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 10000;
     public static final File DEFAULT_CORE_SITE = new File(System.getProperty("user.dir"), "core-site.xml");
+    /**
+     * @deprecated each cluster now logs to <code>logs</code> below its base directory
+     */
+    @Deprecated
     public static final File DEFAULT_MR_LOGS = new File(System.getProperty("user.dir"), "minimrcluster-logs");
 
     private final File localRoot;
-    private final File logDirectory = DEFAULT_MR_LOGS;
     private final Configuration configuration;
     private final File configurationFile;
+    private final File baseDirectory;
+    private final RamStorage ramStorage;
+    private final long startupTimeoutMillis;
+    private final long shutdownTimeoutMillis;
+    private final boolean lazyMapReduce;
+    private final ResourceProfile resourceProfile;
+    private final boolean headless;
+    private final long mapReduceIdleTimeoutMillis;
+    private final File snapshot;
+    private final Map<String, Long> startupTimings = Maps.newLinkedHashMap();
+    private final Map<String, Long> shutdownTimings = Maps.newLinkedHashMap();
+    private ObjectName mbeanName;
+    private File logDirectory;
     private DFSCluster dfsCluster;
     private JobTracker jobTracker;
+    private LazyJobTracker lazyJobTracker;
+
+    public static class Builder {
+        private File configurationFile;
+        private File baseDirectory;
+        private File localRoot;
+        private RamStorage ramStorage;
+        private long startupTimeoutMillis = DEFAULT_STARTUP_TIMEOUT_MILLIS;
+        private long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+        private boolean lazyMapReduce = false;
+        private ResourceProfile resourceProfile = ResourceProfile.DEFAULT;
+        private boolean headless = false;
+        private long mapReduceIdleTimeoutMillis = 0;
+        private File snapshot;
+
+        public Builder withConfigurationFile(final File configurationFile) {
+            this.configurationFile = configurationFile;
+            return this;
+        }
+
+        /**
+         * Keeps all storage, logs and, unless set explicitly, the configuration file of this cluster under
+         * <code>baseDirectory</code>, which is deleted on {@link MiniCluster#stop()}. Defaults to a fresh
+         * <code>build/minicluster-&lt;uuid&gt;</code> below the working directory.
+         */
+        public Builder withBaseDirectory(final File baseDirectory) {
+            this.baseDirectory = baseDirectory;
+            return this;
+        }
+
+        public Builder withInitialStructure(final File localRoot) {
+            this.localRoot = localRoot;
+            return this;
+        }
+
+        /**
+         * Puts the DFS storage, MapReduce local directories and logs on the RAM-backed <code>directory</code>,
+         * using at most <code>maxBytes</code> there. A quarter of the cap is set aside for MapReduce scratch
+         * space and logs, and HDFS block storage is limited to the rest. Whatever does not fit stays on disk.
+         *
+         * DataNodes write past their share to a disk volume. MiniMRCluster only takes a single local directory,
+         * so TaskTrackers cannot fall back the same way; instead they stop taking new tasks while the cluster uses
+         * more than <code>maxBytes</code> of the RAM filesystem.
+         */
+        public Builder withRamStorage(final File directory, final long maxBytes) {
+            this.ramStorage = new RamStorage(directory, maxBytes);
+            return this;
+        }
+
+        /**
+         * Sets how long {@link MiniCluster#start()} waits for the cluster to become ready.
+         */
+        public Builder withStartupTimeout(final long timeout, final TimeUnit unit) {
+            this.startupTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets how long {@link MiniCluster#stop()} waits for each of DFS and MapReduce before abandoning its daemons.
+         */
+        public Builder withShutdownTimeout(final long timeout, final TimeUnit unit) {
+            this.shutdownTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sizes daemon counts, thread pools and heartbeats; see {@link ResourceProfile}.
+         */
+        public Builder withResourceProfile(final ResourceProfile resourceProfile) {
+            this.resourceProfile = resourceProfile;
+            return this;
+        }
+
+        /**
+         * Keeps the NameNode, DataNode and JobTracker web UIs offline until their <code>getHttpAddress()</code> is called.
+         */
+        public Builder withHeadless(final boolean headless) {
+            this.headless = headless;
+            return this;
+        }
+
+        /**
+         * Defers starting MapReduce until {@link MiniCluster#getJobTracker()} is called or a client connects to
+         * <code>mapred.job.tracker</code>, and stops it again after <code>idleTimeout</code> without jobs or client
+         * traffic (0 keeps it running once started). See {@link LazyJobTracker}.
+         */
+        public Builder withLazyMapReduce(final long idleTimeout, final TimeUnit unit) {
+            this.lazyMapReduce = true;
+            this.mapReduceIdleTimeoutMillis = unit.toMillis(idleTimeout);
+            return this;
+        }
+
+        /**
+         * Boots DFS on a copy of a snapshot taken with {@link DFSCluster#snapshot(File)}, rather than on a freshly
+         * formatted namespace. The snapshot decides the number of DataNodes; see {@link DFSCluster.Builder#withSnapshot(File)}.
+         */
+        public Builder withSnapshot(final File snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public MiniCluster build() {
+            return new MiniCluster(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
 
     public MiniCluster() {
-        this(null, DEFAULT_CORE_SITE);
+        this(builder());
     }
 
     public MiniCluster(final File configurationFile, final File localRoot) {
+        this(builder()
+            .withConfigurationFile(configurationFile)
+            .withInitialStructure(localRoot));
+    }
+
+    private MiniCluster(final Builder builder) {
         this.configuration = new Configuration();
-        this.configurationFile = configurationFile;
-        this.localRoot = localRoot;
-        System.setProperty("hadoop.log.dir", logDirectory.getAbsolutePath());
+        this.baseDirectory = builder.baseDirectory != null
+            ? builder.baseDirectory
+            : new File(new File(System.getProperty("user.dir"), "build"), "minicluster-" + UUID.randomUUID());
+        this.configurationFile = builder.configurationFile != null
+            ? builder.configurationFile
+            : new File(baseDirectory, "core-site.xml");
+        this.logDirectory = new File(baseDirectory, "logs");
+        this.localRoot = builder.localRoot;
+        this.ramStorage = builder.ramStorage;
+        this.startupTimeoutMillis = builder.startupTimeoutMillis;
+        this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+        this.lazyMapReduce = builder.lazyMapReduce;
+        this.resourceProfile = builder.resourceProfile;
+        this.headless = builder.headless;
+        this.mapReduceIdleTimeoutMillis = builder.mapReduceIdleTimeoutMillis;
+        this.snapshot = builder.snapshot;
     }
 
+    /**
+     * Starts DFS and then MapReduce as soon as the NameNode accepts RPCs, importing the initial structure
+     * in the background meanwhile. Returns once the import has finished and {@link #isReady()} holds.
+     */
     @PostConstruct
     public void start() throws IOException {
+        final long start = System.nanoTime();
+        AsyncDeleter.sweep(baseDirectory.getAbsoluteFile().getParentFile());
+        File mapReduceDirectory = new File(baseDirectory, "mapred");
+        long minimumFreeRam = -1;
+        if (ramStorage != null) {
+            final long usable = ramStorage.getUsableSpace();
+            final File reserved = ramStorage.reserve("mapred", ramStorage.getCapacity() / 4);
+            if (reserved != null) {
+                mapReduceDirectory = reserved;
+                logDirectory = new File(mapReduceDirectory, "logs");
+                minimumFreeRam = Math.max(0, usable - ramStorage.getCapacity());
+            }
+        }
+        // TaskLog reads this once per JVM, so task logs of clusters sharing a JVM all land below the first one's
+        System.setProperty("hadoop.log.dir", logDirectory.getAbsolutePath());
+
+        resourceProfile.configure(configuration);
+        final Configuration mapReduceOverrides = new Configuration(false);
+        resourceProfile.configure(mapReduceOverrides);
+        if (minimumFreeRam >= 0 && configuration.get("mapred.local.dir.minspacestart") == null) {
+            // TaskTrackers take no new tasks once this cluster's DFS and MapReduce data together use up the cap.
+            // DFS blocks are capped at the rest of it, so MapReduce can always use at least its quarter.
+            mapReduceOverrides.setLong("mapred.local.dir.minspacestart", minimumFreeRam);
+        }
+
+        long phase = System.nanoTime();
         dfsCluster = DFSCluster.builder()
             .usingConfiguration(configuration)
+            .withDataNodes(resourceProfile.getDataNodes())
             .withInitialStructure(localRoot)
+            .withBaseDirectory(new File(baseDirectory, "dfs"))
+            .withRamStorage(ramStorage)
+            .withSnapshot(snapshot)
+            .withHeadless(headless)
+            .withShutdownTimeout(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)
             .build()
-            .start();
+            .startDaemons();
+        recordTiming("dfs", phase);
 
-        jobTracker = JobTracker.builder()
-            .withNameNode(dfsCluster.getFileSystem().getUri().toString())
-            .build()
-            .start();
+        boolean started = false;
+        try {
+            startMapReduceAndImport(mapReduceDirectory, mapReduceOverrides);
 
+            phase = System.nanoTime();
+            awaitReady(startupTimeoutMillis, TimeUnit.MILLISECONDS);
+            recordTiming("ready", phase);
+            started = true;
+        } finally {
+            if (!started) {
+                // Do not leave the JobTracker, TaskTrackers and DataNodes running behind a failed start
+                LOG.warn("MiniCluster failed to start, stopping what was started");
+                stop();
+            }
+        }
+
+        FileUtils.forceMkdir(configurationFile.getAbsoluteFile().getParentFile());
         configuration.writeXml(new FileOutputStream(configurationFile));
+        recordTiming("total", start);
+        mbeanName = MBeans.register("MiniCluster", this);
+        LOG.info("Started MiniCluster, phase timings (ms): {}", getStartupTimings());
     }
 
+    private void startMapReduceAndImport(final File mapReduceDirectory, final Configuration mapReduceOverrides) throws IOException {
+        final ExecutorService importExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("minicluster-import")
+            .setDaemon(true)
+            .build());
+        try {
+            final Future<Void> initialImport = importExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final long phase = System.nanoTime();
+                    dfsCluster.importInitialStructure();
+                    recordTiming("import", phase);
+                    return null;
+                }
+            });
+
+            long phase = System.nanoTime();
+            final JobTracker.Builder jobTrackerBuilder = JobTracker.builder()
+                .withNameNode(dfsCluster.getFileSystem().getUri().toString())
+                .withTastkTrackers(resourceProfile.getTaskTrackers())
+                .withLocalDirectory(mapReduceDirectory)
+                .usingConfiguration(mapReduceOverrides)
+                .withHeadless(headless)
+                .withShutdownTimeout(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (lazyMapReduce) {
+                lazyJobTracker = LazyJobTracker.builder()
+                    .usingJobTracker(jobTrackerBuilder)
+                    .withIdleTimeout(mapReduceIdleTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .withStartupTimeout(startupTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .build()
+                    .start();
+                configuration.set("mapred.job.tracker", lazyJobTracker.getAddress());
+            } else {
+                jobTracker = jobTrackerBuilder.build().start();
+                configuration.set("mapred.job.tracker", jobTracker.getMiniMrCluster().createJobConf().get("mapred.job.tracker"));
+            }
+            recordTiming("jobtracker", phase);
+
+            phase = System.nanoTime();
+            initialImport.get();
+            recordTiming("import-wait", phase);
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing the initial structure");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            importExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true when all DataNodes have registered, the NameNode is out of safe mode and every TaskTracker is
+     * heartbeating. With lazy MapReduce, only DFS is checked until MapReduce is started.
+     */
+    public boolean isReady() throws IOException {
+        return dfsCluster != null && dfsCluster.isReady() && isMapReduceReady();
+    }
+
+    private boolean isMapReduceReady() throws IOException {
+        if (lazyJobTracker != null) {
+            return true;
+        }
+        return jobTracker != null && jobTracker.isReady();
+    }
+
+    /**
+     * Blocks until {@link #isReady()} holds, throwing an IOException naming the lagging side after <code>timeout</code>.
+     */
+    public void awaitReady(final long timeout, final TimeUnit unit) throws IOException {
+        final long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        try {
+            while (!isReady()) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException(String.format("Cluster not ready after %d ms (DFS ready: %s, MapReduce ready: %s)",
+                        unit.toMillis(timeout), dfsCluster != null && dfsCluster.isReady(), isMapReduceReady()));
+                }
+                Thread.sleep(100);
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the cluster to become ready");
+        }
+    }
+
+    /**
+     * @return how long each startup phase took, in milliseconds, in the order the phases finished
+     */
+    @Override
+    public Map<String, Long> getStartupTimings() {
+        synchronized (startupTimings) {
+            return ImmutableMap.copyOf(startupTimings);
+        }
+    }
+
+    /**
+     * @return how long the last {@link #stop()} took for each of MapReduce, DFS and the whole cluster, in milliseconds
+     */
+    @Override
+    public Map<String, Long> getShutdownTimings() {
+        synchronized (shutdownTimings) {
+            return ImmutableMap.copyOf(shutdownTimings);
+        }
+    }
+
+    private void recordTiming(final String phase, final long startNanos) {
+        synchronized (startupTimings) {
+            startupTimings.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    private void recordShutdownTiming(final String phase, final long millis) {
+        synchronized (shutdownTimings) {
+            shutdownTimings.put(phase, millis);
+        }
+    }
+
+    /**
+     * Stops MapReduce and DFS together, unless jobs are still running, in which case MapReduce is stopped first
+     * so that its tasks are not left retrying against a dead NameNode. Storage and logs are deleted in the background.
+     */
     @PreDestroy
     public void stop() {
-        if (jobTracker != null) {
-            jobTracker.stop();
+        final long start = System.currentTimeMillis();
+        MBeans.unregister(mbeanName);
+        mbeanName = null;
+        boolean stopped = true;
+        final boolean mapReduce = jobTracker != null || lazyJobTracker != null;
+        if (mapReduce && (dfsCluster == null || hasRunningJobs())) {
+            stopped = stopMapReduce();
+            if (dfsCluster != null) {
+                stopped &= dfsCluster.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } else if (mapReduce) {
+            final FutureTask<Boolean> mapReduceShutdown = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return stopMapReduce();
+                }
+            });
+            new Thread(mapReduceShutdown, "minicluster-shutdown").start();
+            stopped = dfsCluster.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                stopped &= mapReduceShutdown.get();
+            } catch (final InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } catch (final ExecutionException ex) {
+                throw new RuntimeException(ex.getCause());
+            }
+        } else if (dfsCluster != null) {
+            stopped = dfsCluster.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        AsyncDeleter.delete(logDirectory);
+        FileUtils.deleteQuietly(configurationFile);
+        AsyncDeleter.delete(baseDirectory);
+        if (ramStorage != null) {
+            ramStorage.release();
+        }
+        if (lazyJobTracker != null) {
+            recordShutdownTiming("jobtracker", lazyJobTracker.getShutdownMillis());
+        } else if (jobTracker != null) {
+            recordShutdownTiming("jobtracker", jobTracker.getShutdownMillis());
         }
         if (dfsCluster != null) {
-            dfsCluster.stop();
+            recordShutdownTiming("dfs", dfsCluster.getShutdownMillis());
         }
-        FileUtils.deleteQuietly(logDirectory);
-        FileUtils.deleteQuietly(configurationFile);
+        recordShutdownTiming("total", System.currentTimeMillis() - start);
+        if (stopped) {
+            LOG.info("Stopped MiniCluster, phase timings (ms): {}", getShutdownTimings());
+        } else {
+            LOG.warn("Stopped MiniCluster in {} ms, abandoning daemons that missed the {} ms deadline",
+                System.currentTimeMillis() - start, shutdownTimeoutMillis);
+        }
+    }
+
+    private boolean hasRunningJobs() {
+        return lazyJobTracker != null ? lazyJobTracker.hasRunningJobs() : jobTracker.hasRunningJobs();
+    }
+
+    private boolean stopMapReduce() {
+        if (lazyJobTracker != null) {
+            return lazyJobTracker.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return jobTracker.stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public ResourceProfile getResourceProfile() {
+        return resourceProfile;
+    }
+
+    public File getBaseDirectory() {
+        return baseDirectory;
+    }
+
+    @Override
+    public String getBaseDirectoryPath() {
+        return baseDirectory.getAbsolutePath();
+    }
+
+    public File getConfigurationFile() {
+        return configurationFile;
+    }
+
+    @Override
+    public String getConfigurationFilePath() {
+        return configurationFile.getAbsolutePath();
     }
 
     public Configuration getConfiguration() {
@@ -91,7 +506,24 @@ public class MiniCluster {
         return dfsCluster;
     }
 
+    /**
+     * @return the JobTracker, first starting it if MapReduce is lazy and not currently running
+     */
     public JobTracker getJobTracker() {
-        return jobTracker;
+        if (lazyJobTracker == null) {
+            return jobTracker;
+        }
+        try {
+            return lazyJobTracker.getJobTracker();
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return false while lazy MapReduce has not been started, or has been stopped for being idle
+     */
+    public boolean isMapReduceRunning() {
+        return lazyJobTracker == null ? jobTracker != null : lazyJobTracker.peekJobTracker() != null;
     }
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+package com.shopzilla.hadoop.testing;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link MiniCluster}; timings are in milliseconds.
+ */
+public interface MiniClusterMXBean {
+
+    Map<String, Long> getStartupTimings();
+
+    Map<String, Long> getShutdownTimings();
+
+    String getBaseDirectoryPath();
+
+    String getConfigurationFilePath();
+}
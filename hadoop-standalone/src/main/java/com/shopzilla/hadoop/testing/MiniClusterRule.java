@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each test its own HDFS root on the JVM-wide {@link SharedMiniCluster}.
+ *
+ * <pre>
+ * &#64;Rule
+ * public final MiniClusterRule cluster = new MiniClusterRule();
+ *
+ * &#64;Test
+ * public void test() throws Exception {
+ *     final Path input = cluster.path("input");
+ *     final JobConf jobConf = new JobConf(cluster.getConfiguration());
+ *     ...
+ * }
+ * </pre>
+ *
+ * The root is <code>/tests/&lt;class&gt;/&lt;method&gt;-&lt;n&gt;</code> and is deleted recursively once the test
+ * finishes. Used as a <code>&#64;ClassRule</code>, the root is shared by every test in the class instead.
+ */
+public class MiniClusterRule implements TestRule {
+
+    public static final Path TESTS_ROOT = new Path("/tests");
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private MiniCluster miniCluster;
+    private Configuration configuration;
+    private Path root;
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                before(description);
+                try {
+                    base.evaluate();
+                } finally {
+                    after();
+                }
+            }
+        };
+    }
+
+    private void before(final Description description) throws IOException {
+        miniCluster = SharedMiniCluster.acquire();
+        boolean ready = false;
+        try {
+            final String name = description.getMethodName() == null ? "class" : description.getMethodName();
+            root = new Path(new Path(TESTS_ROOT, description.getTestClass().getSimpleName()), name + "-" + SEQUENCE.incrementAndGet());
+            configuration = new Configuration(miniCluster.getConfiguration());
+            configuration.set("mapred.working.dir", root.toString());
+            getFileSystem().mkdirs(root);
+            ready = true;
+        } finally {
+            if (!ready) {
+                // after() never runs when before() fails, so give back the reference here
+                miniCluster = null;
+                configuration = null;
+                SharedMiniCluster.release();
+            }
+        }
+    }
+
+    private void after() throws IOException {
+        try {
+            getFileSystem().delete(root, true);
+        } finally {
+            miniCluster = null;
+            configuration = null;
+            SharedMiniCluster.release();
+        }
+    }
+
+    public MiniCluster getMiniCluster() {
+        return miniCluster;
+    }
+
+    /**
+     * @return a copy of the cluster configuration whose MapReduce working directory is this test's root
+     */
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public FileSystem getFileSystem() {
+        return miniCluster.getDfsCluster().getFileSystem();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @return <code>relative</code> resolved against this test's root
+     */
+    public Path path(final String relative) {
+        return new Path(root, relative);
+    }
+}
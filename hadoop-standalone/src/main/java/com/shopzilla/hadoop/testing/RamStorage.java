@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Hands out directories on a RAM-backed filesystem such as <code>/dev/shm</code>, up to a fixed total size.
+ *
+ * A reservation that would exceed the cap, or that the filesystem does not have room for, is refused
+ * and the caller falls back to its usual on-disk location. Storage is deleted synchronously on release, since
+ * anything a background delete has not reached when the JVM exits keeps holding memory until reboot.
+ */
+public class RamStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RamStorage.class);
+
+    public static final File DEFAULT_DIRECTORY = new File("/dev/shm");
+
+    private final File root;
+    private final long capacity;
+    private long reserved = 0;
+
+    public RamStorage(final File directory, final long capacity) {
+        this.root = new File(directory, "hadoop-in-a-box-" + UUID.randomUUID());
+        this.capacity = capacity;
+        // Clears out storage that was moved aside for deletion by a JVM that exited before deleting it
+        AsyncDeleter.sweep(directory);
+    }
+
+    /**
+     * @return a directory for up to <code>bytes</code> of data, or null if it does not fit
+     */
+    public synchronized File reserve(final String name, final long bytes) {
+        final File directory = root.getParentFile();
+        if (!directory.isDirectory() || !directory.canWrite()) {
+            LOG.warn("RAM storage {} is not a writable directory, falling back to disk for {}", directory, name);
+            return null;
+        }
+        if (reserved + bytes > capacity) {
+            LOG.warn("Reserving {} bytes for {} would exceed the {} byte RAM storage cap, falling back to disk", new Object[] {bytes, name, capacity});
+            return null;
+        }
+        if (directory.getUsableSpace() < bytes) {
+            LOG.warn("Only {} bytes free in {}, falling back to disk for {}", new Object[] {directory.getUsableSpace(), directory, name});
+            return null;
+        }
+        reserved += bytes;
+        return new File(root, name);
+    }
+
+    public synchronized long getRemaining() {
+        return capacity - reserved;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the size of the filesystem backing this storage
+     */
+    public long getTotalSpace() {
+        return root.getParentFile().getTotalSpace();
+    }
+
+    /**
+     * @return the space currently free on the filesystem backing this storage
+     */
+    public long getUsableSpace() {
+        return root.getParentFile().getUsableSpace();
+    }
+
+    public void release() {
+        FileUtils.deleteQuietly(root);
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Sizes the daemons, thread pools and heartbeats of a {@link MiniCluster}.
+ *
+ * <ul>
+ * <li>{@link #DEFAULT} keeps the historical four DataNodes and four TaskTrackers with Hadoop's defaults.</li>
+ * <li>{@link #HOST_SIZED} scales daemon, slot and handler counts to the cores and heap of this JVM.</li>
+ * <li>{@link #MINIMAL} runs one DataNode and one TaskTracker with the smallest pools that still work, for
+ * running several sessions on one machine.</li>
+ * </ul>
+ *
+ * Both non-default profiles turn off the DataNode block scanner and lengthen block reports, neither of which
+ * a throwaway cluster benefits from. The <code>LifecycleBenchmark</code> in hadoop-benchmarks reports the heap
+ * and thread footprint of each profile.
+ */
+public enum ResourceProfile {
+
+    DEFAULT {
+        @Override
+        public int getDataNodes() {
+            return 4;
+        }
+
+        @Override
+        public int getTaskTrackers() {
+            return 4;
+        }
+
+        @Override
+        public void configure(final Configuration configuration) {
+        }
+    },
+
+    HOST_SIZED {
+        @Override
+        public int getDataNodes() {
+            return clamp(cores() / 4, 1, 4);
+        }
+
+        @Override
+        public int getTaskTrackers() {
+            // Leave each TaskTracker room for a couple of 200 MB child JVMs worth of bookkeeping
+            return clamp(Math.min(cores() / 2, (int) (Runtime.getRuntime().maxMemory() / (256L * MB))), 1, 4);
+        }
+
+        @Override
+        public void configure(final Configuration configuration) {
+            final int slots = Math.max(1, cores() / getTaskTrackers());
+            configuration.setInt("dfs.namenode.handler.count", clamp(cores(), 2, 10));
+            configuration.setInt("dfs.datanode.handler.count", 2);
+            configuration.setInt("mapred.job.tracker.handler.count", clamp(cores(), 2, 10));
+            configuration.setInt("tasktracker.http.threads", clamp(2 * cores(), 4, 40));
+            configuration.setInt("mapred.tasktracker.map.tasks.maximum", slots);
+            configuration.setInt("mapred.tasktracker.reduce.tasks.maximum", Math.max(1, slots / 2));
+            quietStorage(configuration);
+        }
+    },
+
+    MINIMAL {
+        @Override
+        public int getDataNodes() {
+            return 1;
+        }
+
+        @Override
+        public int getTaskTrackers() {
+            return 1;
+        }
+
+        @Override
+        public void configure(final Configuration configuration) {
+            configuration.setInt("dfs.replication", 1);
+            configuration.setInt("dfs.namenode.handler.count", 2);
+            configuration.setInt("dfs.datanode.handler.count", 1);
+            configuration.setInt("dfs.datanode.max.xcievers", 64);
+            configuration.setInt("dfs.heartbeat.interval", 5);
+            configuration.setInt("mapred.job.tracker.handler.count", 2);
+            configuration.setInt("tasktracker.http.threads", 4);
+            configuration.setInt("mapred.tasktracker.map.tasks.maximum", 1);
+            configuration.setInt("mapred.tasktracker.reduce.tasks.maximum", 1);
+            quietStorage(configuration);
+        }
+    };
+
+    private static final long MB = 1024L * 1024L;
+
+    public abstract int getDataNodes();
+
+    public abstract int getTaskTrackers();
+
+    /**
+     * Applies the thread pool, slot and heartbeat settings of this profile to <code>configuration</code>.
+     */
+    public abstract void configure(final Configuration configuration);
+
+    private static void quietStorage(final Configuration configuration) {
+        configuration.setInt("dfs.datanode.scan.period.hours", -1);
+        configuration.setLong("dfs.blockreport.intervalMsec", 6L * 60 * 60 * 1000);
+    }
+
+    private static int cores() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * A single {@link MiniCluster} per JVM, started on the first {@link #acquire()} and stopped by a shutdown hook.
+ *
+ * Test classes hold a reference while they run, so a suite pays for cluster startup once rather than once per class.
+ * The cluster deliberately outlives its last reference, since the next test class will usually want it again.
+ */
+public final class SharedMiniCluster {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMiniCluster.class);
+
+    private static MiniCluster.Builder builder = MiniCluster.builder();
+    private static MiniCluster miniCluster;
+    private static int references = 0;
+    private static boolean shutdownHookAdded = false;
+
+    private SharedMiniCluster() {
+    }
+
+    /**
+     * Sets how the shared cluster is built. Only has an effect before the first {@link #acquire()}.
+     */
+    public static synchronized void configure(final MiniCluster.Builder builder) {
+        if (miniCluster != null) {
+            LOG.warn("Shared MiniCluster is already running, ignoring new configuration");
+            return;
+        }
+        SharedMiniCluster.builder = builder;
+    }
+
+    /**
+     * @return the shared cluster, starting it if this is the first reference
+     */
+    public static synchronized MiniCluster acquire() throws IOException {
+        if (miniCluster == null) {
+            final MiniCluster cluster = builder.build();
+            boolean started = false;
+            try {
+                cluster.start();
+                started = true;
+            } finally {
+                if (!started) {
+                    // Leave nothing running, so that the next acquire() starts from scratch
+                    cluster.stop();
+                }
+            }
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopCluster();
+                    }
+                }, "shared-minicluster-shutdown"));
+                shutdownHookAdded = true;
+            }
+            miniCluster = cluster;
+        }
+        references++;
+        return miniCluster;
+    }
+
+    public static synchronized void release() {
+        if (references == 0) {
+            throw new IllegalStateException("Shared MiniCluster released more often than acquired");
+        }
+        references--;
+    }
+
+    public static synchronized int getReferences() {
+        return references;
+    }
+
+    /**
+     * Stops the shared cluster; a later {@link #acquire()} starts a new one.
+     *
+     * @throws IllegalStateException if a test still holds a reference
+     */
+    public static synchronized void shutdown() {
+        if (references > 0) {
+            throw new IllegalStateException(references + " references to the shared MiniCluster are still held");
+        }
+        stopCluster();
+    }
+
+    private static synchronized void stopCluster() {
+        if (miniCluster == null) {
+            return;
+        }
+        miniCluster.stop();
+        miniCluster = null;
+        references = 0;
+    }
+}
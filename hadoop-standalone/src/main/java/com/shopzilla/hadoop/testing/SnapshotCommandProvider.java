@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing;
+
+import com.google.common.collect.ImmutableMap;
+import com.shopzilla.hadoop.repl.REPL;
+import com.shopzilla.hadoop.repl.SessionState;
+import com.shopzilla.hadoop.repl.commands.Call;
+import com.shopzilla.hadoop.repl.commands.Command;
+import com.shopzilla.hadoop.repl.commands.CommandInvocation;
+import com.shopzilla.hadoop.repl.commands.CommandProvider;
+import com.shopzilla.hadoop.testing.hdfs.DFSCluster;
+import jline.console.completer.FileNameCompleter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static com.shopzilla.hadoop.repl.commands.Call.call;
+
+/**
+ * Commands that act on the local storage of a {@link DFSCluster} running in this JVM.
+ */
+public class SnapshotCommandProvider implements CommandProvider {
+
+    private final DFSCluster dfsCluster;
+
+    public SnapshotCommandProvider(final DFSCluster dfsCluster) {
+        this.dfsCluster = dfsCluster;
+    }
+
+    @Override
+    public Map<Call, Command> apply(final SessionState sessionState) {
+        return ImmutableMap.<Call, Command>builder()
+            .put(call("snapshot", new FileNameCompleter()), new Command() {
+                @Override
+                public void execute(final CommandInvocation call, final SessionState sessionState) throws REPL.ExitSignal {
+                    if (call.args().length != 1) {
+                        sessionState.outputUsage(this);
+                        return;
+                    }
+                    sessionState.output("Saving a snapshot of the DFS storage to [%s]", call.args()[0]);
+                    final long start = System.currentTimeMillis();
+                    try {
+                        dfsCluster.snapshot(new File(call.args()[0]));
+                        sessionState.output("Saved in %d ms", System.currentTimeMillis() - start);
+                    } catch (final IOException ex) {
+                        sessionState.error(ex);
+                    }
+                }
+
+                @Override
+                public Usage usage(final SessionState sessionState) {
+                    return new Usage(
+                        "snapshot",
+                        "Copies the NameNode image and DataNode blocks straight from local storage, for ./hadoop-standalone --restore to boot from",
+                        "<snapshot-directory>"
+                    );
+                }
+            })
+            .build();
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Function;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a stream into lines by scanning a large {@link ByteBuffer} for <code>'\n'</code>, handing each
+ * line to the callback as a {@link ByteSlice} instead of decoding it into a new String.
+ *
+ * A trailing <code>'\r'</code> is stripped, matching {@link java.io.BufferedReader#readLine()}. Lines
+ * longer than the buffer cause it to grow.
+ *
+ * The buffer is allocated on first use and kept, grown or not, for every later call, so one reader can work
+ * through many files without allocating. That makes a reader unsafe to share between threads.
+ */
+public class ByteLineReader {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final int bufferSize;
+    private final boolean direct;
+    private ByteBuffer buffer;
+
+    public ByteLineReader() {
+        this(DEFAULT_BUFFER_SIZE, true);
+    }
+
+    public ByteLineReader(final int bufferSize, final boolean direct) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * @return the number of lines passed to <code>lineProcessor</code>
+     */
+    public long readLines(final InputStream in, final Function<ByteSlice, Void> lineProcessor) throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(in);
+        final ByteSlice slice = new ByteSlice();
+        if (buffer == null) {
+            buffer = allocate(bufferSize);
+        }
+        buffer.clear();
+        long lines = 0;
+        boolean eof = false;
+        while (!eof) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+
+            int start = buffer.position();
+            final int limit = buffer.limit();
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    emit(buffer, start, i, slice, lineProcessor);
+                    lines++;
+                    start = i + 1;
+                }
+            }
+
+            if (eof) {
+                if (start < limit) {
+                    emit(buffer, start, limit, slice, lineProcessor);
+                    lines++;
+                }
+            } else if (start == 0 && limit == buffer.capacity()) {
+                // A single line fills the whole buffer
+                final ByteBuffer larger = allocate(buffer.capacity() * 2);
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.position(start);
+                buffer.compact();
+            }
+        }
+        return lines;
+    }
+
+    private void emit(final ByteBuffer buffer, final int start, final int end, final ByteSlice slice, final Function<ByteSlice, Void> lineProcessor) {
+        final int length = (end > start && buffer.get(end - 1) == '\r') ? end - start - 1 : end - start;
+        slice.set(buffer, start, length);
+        lineProcessor.apply(slice);
+    }
+
+    private ByteBuffer allocate(final int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
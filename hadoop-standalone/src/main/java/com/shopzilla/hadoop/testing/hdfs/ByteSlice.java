@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable view over one line held in a {@link ByteLineReader} buffer, without the line terminator.
+ *
+ * The view is only valid for the duration of the callback it was passed to; the same instance is
+ * re-pointed at the next line afterwards. Use {@link #toByteArray()} or {@link #decode(Charset)} to keep a copy.
+ */
+public final class ByteSlice {
+
+    private ByteBuffer source;
+    private ByteBuffer view;
+    private int offset;
+    private int length;
+
+    void set(final ByteBuffer source, final int offset, final int length) {
+        if (this.source != source) {
+            this.source = source;
+            this.view = source.asReadOnlyBuffer();
+        }
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(final int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside slice of length " + length);
+        }
+        return source.get(offset + index);
+    }
+
+    public int indexOf(final byte b, final int fromIndex) {
+        for (int i = Math.max(fromIndex, 0); i < length; i++) {
+            if (source.get(offset + i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean startsWith(final byte[] prefix) {
+        if (prefix.length > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (source.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a read-only buffer positioned on this line; it is reused for every line
+     */
+    public ByteBuffer buffer() {
+        view.clear();
+        view.position(offset);
+        view.limit(offset + length);
+        return view;
+    }
+
+    public void copyTo(final byte[] destination, final int destinationOffset) {
+        buffer().get(destination, destinationOffset, length);
+    }
+
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[length];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    public String decode(final Charset charset) {
+        return charset.decode(buffer()).toString();
+    }
+
+    @Override
+    public String toString() {
+        return decode(Charsets.UTF_8);
+    }
+}
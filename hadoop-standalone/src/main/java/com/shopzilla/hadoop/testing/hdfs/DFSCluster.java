@@ -19,7 +19,15 @@
 
 package com.shopzilla.hadoop.testing.hdfs;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.shopzilla.hadoop.testing.AsyncDeleter;
+import com.shopzilla.hadoop.testing.DeferredHttpServer;
+import com.shopzilla.hadoop.testing.MBeans;
+import com.shopzilla.hadoop.testing.RamStorage;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
 import org.apache.hadoop.conf.Configuration;
@@ -27,32 +35,90 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.FSConstants;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.management.ObjectName;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Jeremy Lucas
  * @since 9/5/12
  */
-public class DFSCluster {
+public class DFSCluster implements DFSClusterMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DFSCluster.class);
+
+    /**
+     * MiniDFSCluster resolves its storage from this system property when it is constructed.
+     */
+    private static final String STORAGE_PROPERTY = "test.build.data";
+    private static final String IMPORT_FINGERPRINT = "import.fingerprint";
+
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_SAFE_MODE_TIMEOUT_MILLIS = 60000;
 
     private final Configuration configuration;
     private final File localRoot;
     private final int numberOfDataNodes;
+    private final int importThreads;
+    private final File persistentStorage;
+    private final File snapshot;
+    private final int processingThreads;
+    private final int processingPrefetch;
+    private final int readBufferSize;
+    private final boolean directReadBuffer;
+    private final int traversalPrefetchThreads;
+    private final AtomicLong traversalRpcCount = new AtomicLong();
+    private final AtomicLong processedLines = new AtomicLong();
+    private final AtomicLong processedBytes = new AtomicLong();
+    private final AtomicLong processingNanos = new AtomicLong();
+    private final RamStorage ramStorage;
+    private final long shutdownTimeoutMillis;
+    private final long safeModeTimeoutMillis;
+    private final File baseDirectory;
+    private final boolean headless;
 
     private MiniDFSCluster miniDFSCluster;
-    private File projectDirectory;
-    private File buildDirectory;
+    private File ramStorageDirectory;
+    private File storageDirectory;
+    private volatile HDFSImporter.Statistics importStatistics;
+    private volatile long startupMillis;
+    private volatile long shutdownMillis;
+    private ObjectName mbeanName;
+    private DeferredHttpServer nameNodeHttpServer;
+    private final List<DeferredHttpServer> dataNodeHttpServers = Lists.newArrayList();
 
     public static class Builder {
         private Configuration configuration = new Configuration();
         private File localRoot;
         private int numberOfDataNodes = 4;
+        private int importThreads = Runtime.getRuntime().availableProcessors();
+        private File persistentStorage;
+        private File snapshot;
+        private int processingThreads = Runtime.getRuntime().availableProcessors();
+        private int processingPrefetch = 2 * Runtime.getRuntime().availableProcessors();
+        private int readBufferSize = ByteLineReader.DEFAULT_BUFFER_SIZE;
+        private boolean directReadBuffer = true;
+        private int traversalPrefetchThreads = 2;
+        private RamStorage ramStorage;
+        private long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+        private long safeModeTimeoutMillis = DEFAULT_SAFE_MODE_TIMEOUT_MILLIS;
+        private File baseDirectory;
+        private boolean headless = false;
 
         public Builder usingConfiguration(final Configuration configuration) {
             this.configuration = configuration;
@@ -69,8 +135,109 @@ public class DFSCluster {
             return this;
         }
 
+        public Builder withImportThreads(final int importThreads) {
+            this.importThreads = importThreads;
+            return this;
+        }
+
+        /**
+         * Sizes the worker pool used by the parallel processing methods, and how many files
+         * the ordered variants may read ahead of the line processor.
+         */
+        public Builder withProcessingThreads(final int processingThreads, final int processingPrefetch) {
+            this.processingThreads = processingThreads;
+            this.processingPrefetch = processingPrefetch;
+            return this;
+        }
+
+        /**
+         * Sets the buffer used by {@link DFSCluster#processBytes} and {@link DFSCluster#processBytesRecursive}.
+         */
+        public Builder withReadBuffer(final int readBufferSize, final boolean directReadBuffer) {
+            this.readBufferSize = readBufferSize;
+            this.directReadBuffer = directReadBuffer;
+            return this;
+        }
+
+        /**
+         * Sets how many threads list sibling directories ahead of a traversal; 0 disables prefetching.
+         */
+        public Builder withTraversalPrefetchThreads(final int traversalPrefetchThreads) {
+            this.traversalPrefetchThreads = traversalPrefetchThreads;
+            return this;
+        }
+
+        /**
+         * Keeps the NameNode and DataNode storage under <code>storageDirectory</code> across restarts.
+         * The namespace is only formatted the first time, the storage is not deleted on {@link DFSCluster#stop()},
+         * and the initial structure is only re-imported when the local tree has changed since the last import.
+         */
+        public Builder withPersistentStorage(final File storageDirectory) {
+            this.persistentStorage = storageDirectory;
+            return this;
+        }
+
+        /**
+         * Boots on a copy of the storage saved by {@link DFSCluster#snapshot(File)} instead of formatting a new
+         * namespace. The copy goes to the persistent storage if one is set, which must not hold DFS storage yet, and
+         * to the base directory otherwise. The number of DataNodes is taken from the snapshot.
+         */
+        public Builder withSnapshot(final File snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        /**
+         * Places the NameNode image and DataNode blocks in <code>ramStorage</code>, capping the block
+         * storage at whatever is left of its capacity. Falls back to disk when the initial structure
+         * would not fit. Ignored when persistent storage is configured.
+         *
+         * Each DataNode also gets a second volume on disk below the base directory. The DataNode writes
+         * blocks to its volumes in turn, so the RAM volume takes about half of them until it reaches the
+         * cap, after which the disk volume takes the rest instead of writes failing.
+         */
+        public Builder withRamStorage(final RamStorage ramStorage) {
+            this.ramStorage = ramStorage;
+            return this;
+        }
+
+        /**
+         * Keeps the NameNode and DataNode storage of this cluster, and nothing else, under <code>baseDirectory</code>.
+         * Defaults to a fresh <code>build/dfs-&lt;uuid&gt;</code> below the working directory, so that several clusters
+         * can run side by side. The directory is deleted on {@link DFSCluster#stop()}.
+         */
+        public Builder withBaseDirectory(final File baseDirectory) {
+            this.baseDirectory = baseDirectory;
+            return this;
+        }
+
+        /**
+         * Takes the NameNode and DataNode web UIs offline as soon as they start, and brings them back on the
+         * first {@link DFSCluster#getHttpAddress()} call. See {@link DeferredHttpServer}.
+         */
+        public Builder withHeadless(final boolean headless) {
+            this.headless = headless;
+            return this;
+        }
+
+        /**
+         * Sets how long {@link DFSCluster#stop()} waits for the NameNode and DataNodes before abandoning them.
+         */
+        public Builder withShutdownTimeout(final long timeout, final TimeUnit unit) {
+            this.shutdownTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets how long a start on existing storage waits for the NameNode to leave safe mode before failing.
+         */
+        public Builder withSafeModeTimeout(final long timeout, final TimeUnit unit) {
+            this.safeModeTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
         public DFSCluster build() {
-            return new DFSCluster(configuration, localRoot, numberOfDataNodes);
+            return new DFSCluster(this);
         }
     }
 
@@ -79,42 +246,379 @@ public class DFSCluster {
     }
 
     public DFSCluster(final Configuration configuration, final File localRoot, final int numberOfDataNodes) {
-        this.configuration = configuration;
-        this.localRoot = localRoot;
-        this.numberOfDataNodes = numberOfDataNodes;
+        this(builder()
+            .usingConfiguration(configuration)
+            .withInitialStructure(localRoot)
+            .withDataNodes(numberOfDataNodes));
+    }
+
+    private DFSCluster(final Builder builder) {
+        this.configuration = builder.configuration;
+        this.localRoot = builder.localRoot;
+        this.snapshot = builder.snapshot;
+        try {
+            this.numberOfDataNodes = snapshot == null ? builder.numberOfDataNodes : StorageSnapshot.getDataNodes(snapshot);
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.importThreads = builder.importThreads;
+        this.persistentStorage = builder.persistentStorage;
+        this.processingThreads = builder.processingThreads;
+        this.processingPrefetch = builder.processingPrefetch;
+        this.readBufferSize = builder.readBufferSize;
+        this.directReadBuffer = builder.directReadBuffer;
+        this.traversalPrefetchThreads = builder.traversalPrefetchThreads;
+        this.ramStorage = builder.ramStorage;
+        this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+        this.safeModeTimeoutMillis = builder.safeModeTimeoutMillis;
+        this.headless = builder.headless;
+        this.baseDirectory = builder.baseDirectory != null
+            ? builder.baseDirectory
+            : new File(new File(System.getProperty("user.dir"), "build"), "dfs-" + UUID.randomUUID());
     }
 
     @PostConstruct
     public DFSCluster start() {
         try {
-            miniDFSCluster = new MiniDFSCluster(configuration, numberOfDataNodes, true, null);
-            buildDirectory = new File(System.getProperty("user.dir"), "build");
-            projectDirectory = buildDirectory.getParentFile();
-            if (localRoot != null) {
-                importHDFSDirectory(new Path(localRoot.getName()), localRoot);
-            }
+            startDaemons();
+            importInitialStructure();
             return this;
         } catch (final IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    public void importHDFSDirectory(final Path hdfsRoot, final File file) throws IOException {
-        final Path path = new Path(hdfsRoot, File.separator + localRoot.toURI().relativize(file.toURI()).getPath());
-        if (file.isDirectory()) {
-            getFileSystem().mkdirs(path);
-            getFileSystem().makeQualified(path);
-            for (final File child : file.listFiles()) {
-                importHDFSDirectory(hdfsRoot, child);
-            }
+    /**
+     * Starts the NameNode and DataNodes without importing the initial structure, returning once the
+     * NameNode accepts RPCs. Follow with {@link #importInitialStructure()}, possibly on another thread.
+     */
+    public DFSCluster startDaemons() throws IOException {
+        final long start = System.currentTimeMillis();
+        AsyncDeleter.sweep(baseDirectory.getAbsoluteFile().getParentFile());
+        if (snapshot != null) {
+            startFromSnapshot();
+        } else if (persistentStorage != null) {
+            startOnPersistentStorage();
+        } else {
+            ramStorageDirectory = reserveRamStorage();
+            startMiniDFSCluster(ramStorageDirectory == null ? baseDirectory : ramStorageDirectory, true);
+        }
+        startupMillis = System.currentTimeMillis() - start;
+        mbeanName = MBeans.register("DFSCluster", this);
+        return this;
+    }
+
+    public void importInitialStructure() throws IOException {
+        if (localRoot == null) {
+            return;
+        }
+        if (persistentStorage == null) {
+            importHDFSDirectory(new Path(localRoot.getName()), localRoot);
+            return;
+        }
+        final File fingerprintFile = new File(persistentStorage, IMPORT_FINGERPRINT);
+        final String fingerprint = HDFSImporter.fingerprint(localRoot);
+        if (fingerprintFile.exists() && fingerprint.equals(Files.toString(fingerprintFile, Charsets.UTF_8))) {
+            LOG.info("Skipping import of {}, stored tree is current", localRoot);
         } else {
-            getFileSystem().copyFromLocalFile(false, true, new Path(file.getAbsolutePath()), path);
-            getFileSystem().makeQualified(path);
+            // Forget the old fingerprint first so that an interrupted import is redone next time
+            FileUtils.deleteQuietly(fingerprintFile);
+            final Path hdfsRoot = new Path(localRoot.getName());
+            // Start from an empty target, so that files deleted from the local tree do not survive in HDFS
+            getFileSystem().delete(hdfsRoot, true);
+            importHDFSDirectory(hdfsRoot, localRoot);
+            Files.write(fingerprint, fingerprintFile, Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return true once every DataNode has registered with the NameNode and it has left safe mode
+     */
+    public boolean isReady() throws IOException {
+        final DistributedFileSystem dfs = (DistributedFileSystem) getFileSystem();
+        return !dfs.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_GET)
+            && dfs.getClient().datanodeReport(FSConstants.DatanodeReportType.LIVE).length >= numberOfDataNodes;
+    }
+
+    private File reserveRamStorage() {
+        if (ramStorage == null) {
+            return null;
         }
+        final int replication = Math.min(configuration.getInt("dfs.replication", 3), numberOfDataNodes);
+        final long required = localRoot == null ? 0 : FileUtils.sizeOf(localRoot) * replication;
+        if (required > ramStorage.getRemaining()) {
+            LOG.warn("Initial structure needs {} bytes but only {} bytes of RAM storage remain, using disk", required, ramStorage.getRemaining());
+            return null;
+        }
+        final long share = ramStorage.getRemaining();
+        final File directory = ramStorage.reserve("dfs", share);
+        if (directory != null && configuration.get("dfs.datanode.du.reserved") == null) {
+            // Every RAM volume sees the whole RAM filesystem; reserve all but its share of the cap. The reservation
+            // applies to the disk volumes too, which leaves them the part of the disk beyond the RAM filesystem's size.
+            final long perVolume = share / numberOfDataNodes;
+            final long reserved = Math.max(0, ramStorage.getTotalSpace() - perVolume);
+            configuration.setLong("dfs.datanode.du.reserved", reserved);
+            File disk = baseDirectory.getAbsoluteFile();
+            while (!disk.exists() && disk.getParentFile() != null) {
+                disk = disk.getParentFile();
+            }
+            if (disk.getTotalSpace() <= reserved) {
+                LOG.warn("The disk under {} is smaller than the RAM storage, DataNodes have no room to fall back to", baseDirectory);
+            }
+        }
+        return directory;
+    }
+
+    private void startMiniDFSCluster(final File storageDirectory, final boolean format) throws IOException {
+        this.storageDirectory = storageDirectory;
+        synchronized (DFSCluster.class) {
+            final String previous = System.getProperty(STORAGE_PROPERTY);
+            System.setProperty(STORAGE_PROPERTY, storageDirectory.getAbsolutePath());
+            try {
+                if (ramStorageDirectory == null) {
+                    miniDFSCluster = new MiniDFSCluster(configuration, numberOfDataNodes, format, null);
+                } else {
+                    startWithDiskFallback();
+                }
+            } finally {
+                if (previous == null) {
+                    System.clearProperty(STORAGE_PROPERTY);
+                } else {
+                    System.setProperty(STORAGE_PROPERTY, previous);
+                }
+            }
+        }
+        if (headless) {
+            nameNodeHttpServer = DeferredHttpServer.suspend(miniDFSCluster.getNameNode(), "httpServer");
+            for (final DataNode dataNode : miniDFSCluster.getDataNodes()) {
+                dataNodeHttpServers.add(DeferredHttpServer.suspend(dataNode, "infoServer"));
+            }
+        }
+    }
+
+    /**
+     * Starts the NameNode on the RAM storage, then gives each DataNode the volume MiniDFSCluster would have put
+     * first, <code>data/data(2i+1)</code>, in RAM and the one it would have put second, <code>data/data(2i+2)</code>,
+     * under the base directory, so that {@link #snapshot(File)} can merge both trees back into one layout.
+     */
+    private void startWithDiskFallback() throws IOException {
+        final int replication = configuration.getInt("dfs.replication", 3);
+        miniDFSCluster = new MiniDFSCluster(0, configuration, 0, true, true, null, null);
+        // MiniDFSCluster lowers the replication to the number of DataNodes it was asked for, none here. The NameNode's
+        // trash emptier has already cached a client with that replication, so drop it for one with the real value.
+        configuration.setInt("dfs.replication", Math.min(replication, numberOfDataNodes));
+        miniDFSCluster.getFileSystem().close();
+        for (int i = 0; i < numberOfDataNodes; i++) {
+            final Configuration dataNodeConfiguration = new Configuration(configuration);
+            dataNodeConfiguration.set("dfs.data.dir",
+                dataVolume(ramStorageDirectory, 2 * i + 1).getAbsolutePath() + "," + dataVolume(baseDirectory, 2 * i + 2).getAbsolutePath());
+            miniDFSCluster.startDataNodes(dataNodeConfiguration, 1, false, null, null);
+        }
+        miniDFSCluster.waitActive();
+    }
+
+    private static File dataVolume(final File storageDirectory, final int index) {
+        return new File(storageDirectory, "dfs/data/data" + index);
+    }
+
+    private void startOnPersistentStorage() throws IOException {
+        final boolean format = !new File(persistentStorage, "dfs/name1/current/VERSION").exists();
+        if (!format && configuration.get("dfs.safemode.extension") == null) {
+            // Every block is already on local disk, so there is nothing to wait for once the DataNodes report in
+            configuration.setInt("dfs.safemode.extension", 0);
+        }
+        startMiniDFSCluster(persistentStorage, format);
+        LOG.info("{} DFS storage in {}", format ? "Formatted" : "Reusing", persistentStorage);
+        if (!format) {
+            waitForSafeModeExit();
+        }
+    }
+
+    private void startFromSnapshot() throws IOException {
+        final File target = persistentStorage != null ? persistentStorage : baseDirectory;
+        if (new File(target, "dfs/name1/current/VERSION").exists()) {
+            throw new IOException(target + " already holds DFS storage, not restoring " + snapshot + " over it");
+        }
+        final long start = System.currentTimeMillis();
+        StorageSnapshot.restore(snapshot, target, isBlockLinkingSafe());
+        if (configuration.get("dfs.safemode.extension") == null) {
+            configuration.setInt("dfs.safemode.extension", 0);
+        }
+        startMiniDFSCluster(target, false);
+        waitForSafeModeExit();
+        LOG.info("Restored {} into {} in {} ms", new Object[] {snapshot, target, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Saves the NameNode image and every DataNode's finalized blocks to <code>target</code>, which must not hold
+     * a snapshot yet, for {@link Builder#withSnapshot(File)} to boot from later.
+     *
+     * The NameNode is held in safe mode throughout, so that no blocks are written or deleted while they are copied,
+     * and checkpoints its namespace first so that the snapshot does not need an edits log replayed.
+     */
+    public void snapshot(final File target) throws IOException {
+        final DistributedFileSystem dfs = (DistributedFileSystem) getFileSystem();
+        final boolean inSafeMode = dfs.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_GET);
+        if (!inSafeMode) {
+            dfs.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_ENTER);
+        }
+        try {
+            final long start = System.currentTimeMillis();
+            dfs.saveNamespace();
+            final List<File> storageDirectories = ramStorageDirectory == null
+                ? ImmutableList.of(storageDirectory)
+                : ImmutableList.of(ramStorageDirectory, baseDirectory);
+            StorageSnapshot.save(storageDirectories, target, numberOfDataNodes, isBlockLinkingSafe());
+            LOG.info("Saved a snapshot of {} to {} in {} ms", new Object[] {storageDirectory, target, System.currentTimeMillis() - start});
+        } finally {
+            if (!inSafeMode) {
+                dfs.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_LEAVE);
+            }
+        }
+    }
+
+    /**
+     * With append support a DataNode reopens finalized block files and writes to them in place, which would change
+     * every hard link to them too.
+     */
+    private boolean isBlockLinkingSafe() {
+        return !configuration.getBoolean("dfs.support.append", false);
+    }
+
+    private void waitForSafeModeExit() throws IOException {
+        final DistributedFileSystem dfs = (DistributedFileSystem) getFileSystem();
+        final long deadline = System.currentTimeMillis() + safeModeTimeoutMillis;
+        try {
+            while (dfs.setSafeMode(FSConstants.SafeModeAction.SAFEMODE_GET)) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException(String.format(
+                        "NameNode did not leave safe mode within %d ms: %d of %d DataNodes are live; check the storage under %s for missing or corrupt blocks",
+                        safeModeTimeoutMillis, dfs.getClient().datanodeReport(FSConstants.DatanodeReportType.LIVE).length,
+                        numberOfDataNodes, storageDirectory));
+                }
+                Thread.sleep(100);
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the NameNode to leave safe mode");
+        }
+    }
+
+    public void importHDFSDirectory(final Path hdfsRoot, final File file) throws IOException {
+        importStatistics = HDFSImporter.builder()
+            .usingFileSystem(getFileSystem())
+            .withThreads(importThreads)
+            .build()
+            .importDirectory(hdfsRoot, localRoot, file);
+        LOG.info(importStatistics.toString());
+    }
+
+    /**
+     * @return statistics for the most recent {@link #importHDFSDirectory} call, or null if nothing has been imported
+     */
+    public HDFSImporter.Statistics getImportStatistics() {
+        return importStatistics;
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public long getShutdownMillis() {
+        return shutdownMillis;
+    }
+
+    @Override
+    public int getImportedFiles() {
+        return importStatistics == null ? 0 : importStatistics.getFiles();
+    }
+
+    @Override
+    public int getImportedDirectories() {
+        return importStatistics == null ? 0 : importStatistics.getDirectories();
+    }
+
+    @Override
+    public long getImportedBytes() {
+        return importStatistics == null ? 0 : importStatistics.getBytes();
     }
 
+    @Override
+    public long getImportMillis() {
+        return importStatistics == null ? 0 : importStatistics.getElapsedMillis();
+    }
+
+    @Override
+    public double getImportBytesPerSecond() {
+        return importStatistics == null ? 0 : importStatistics.getBytesPerSecond();
+    }
+
+    @Override
+    public long getProcessedLines() {
+        return processedLines.get();
+    }
+
+    @Override
+    public long getProcessedBytes() {
+        return processedBytes.get();
+    }
+
+    @Override
+    public long getProcessingMillis() {
+        return processingNanos.get() / 1000000L;
+    }
+
+    @Override
+    public double getProcessedLinesPerSecond() {
+        return perSecond(processedLines.get());
+    }
+
+    @Override
+    public double getProcessedBytesPerSecond() {
+        return perSecond(processedBytes.get());
+    }
+
+    private double perSecond(final double amount) {
+        final long nanos = processingNanos.get();
+        return nanos == 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    @Override
+    public long getRpcCount() {
+        return traversalRpcCount.get();
+    }
+
+    /**
+     * @return the NameNode web UI, which in headless mode is started, along with the DataNode UIs it links to, on the first call.
+     * Deliberately not part of {@link DFSClusterMXBean}, so that JMX consoles polling attributes do not start it.
+     */
     public String getHttpAddress() {
-        return "http://localhost:" + miniDFSCluster.getNameNode().getHttpAddress().getPort();
+        if (nameNodeHttpServer == null) {
+            return "http://localhost:" + miniDFSCluster.getNameNode().getHttpAddress().getPort();
+        }
+        try {
+            for (final DeferredHttpServer dataNodeHttpServer : dataNodeHttpServers) {
+                dataNodeHttpServer.ensureStarted();
+            }
+            return "http://localhost:" + nameNodeHttpServer.ensureStarted();
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public int getHttpPort() {
+        if (nameNodeHttpServer != null) {
+            return nameNodeHttpServer.getPort();
+        }
+        return miniDFSCluster == null ? 0 : miniDFSCluster.getNameNode().getHttpAddress().getPort();
+    }
+
+    @Override
+    public boolean isHttpServerRunning() {
+        return nameNodeHttpServer == null || nameNodeHttpServer.isRunning();
     }
 
     public FileSystem getFileSystem() {
@@ -135,46 +639,71 @@ public class DFSCluster {
     }
 
     public void processPaths(final Path path, final Function<Path, Void> pathProcessor) throws IOException {
-        if (miniDFSCluster.getFileSystem().exists(path)) {
-            final FileStatus[] fileStatuses = miniDFSCluster.getFileSystem().listStatus(path);
-            for (final FileStatus fileStatus : fileStatuses) {
-                if (!fileStatus.getPath().toUri().getPath().startsWith("_")) {
-                    pathProcessor.apply(fileStatus.getPath());
-                }
-            }
-        } else {
+        processPaths(path, TreeWalker.HIDDEN_FILE_FILTER, pathProcessor);
+    }
+
+    public void processPaths(final Path path, final PathFilter filter, final Function<Path, Void> pathProcessor) throws IOException {
+        traversalRpcCount.incrementAndGet();
+        final FileStatus[] fileStatuses = getFileSystem().listStatus(path);
+        if (fileStatuses == null) {
             throw new IOException("Path does not exist: " + path);
         }
+        for (final FileStatus fileStatus : fileStatuses) {
+            if (filter.accept(fileStatus.getPath())) {
+                pathProcessor.apply(fileStatus.getPath());
+            }
+        }
     }
 
     public void processPathsRecursive(final Path path, final Function<Path, Void> pathProcessor) throws IOException {
-        if (miniDFSCluster.getFileSystem().exists(path)) {
-            if (miniDFSCluster.getFileSystem().isFile(path)) {
-                if (!path.toUri().getPath().startsWith("_")) {
-                    pathProcessor.apply(path);
-                }
-            } else {
-                final FileStatus[] fileStatuses = miniDFSCluster.getFileSystem().listStatus(path);
-                for (final FileStatus fileStatus : fileStatuses) {
-                    if (!fileStatus.getPath().toUri().getPath().startsWith("_")) {
-                        processPathsRecursive(fileStatus.getPath(), pathProcessor);
-                    }
-                }
+        processPathsRecursive(path, TreeWalker.HIDDEN_FILE_FILTER, pathProcessor);
+    }
+
+    public void processPathsRecursive(final Path path, final PathFilter filter, final Function<Path, Void> pathProcessor) throws IOException {
+        walk(path, filter, new Function<FileStatus, Void>() {
+            @Override
+            public Void apply(final FileStatus fileStatus) {
+                return pathProcessor.apply(fileStatus.getPath());
             }
-        } else {
-            throw new IOException("Path does not exist: " + path);
+        });
+    }
+
+    /**
+     * Visits every file below <code>path</code> accepted by <code>filter</code>, reusing the {@link FileStatus}
+     * from each directory listing. See {@link TreeWalker}.
+     */
+    public void walk(final Path path, final PathFilter filter, final Function<FileStatus, Void> visitor) throws IOException {
+        final TreeWalker walker = TreeWalker.builder()
+            .usingFileSystem(getFileSystem())
+            .withFilter(filter)
+            .withPrefetch(traversalPrefetchThreads, TreeWalker.DEFAULT_MAX_PREFETCH)
+            .build();
+        try {
+            walker.walk(path, visitor);
+        } finally {
+            traversalRpcCount.addAndGet(walker.getRpcCount());
         }
     }
 
+    /**
+     * @return the number of NameNode calls made by the traversal and processing helpers of this cluster
+     */
+    public long getTraversalRpcCount() {
+        return traversalRpcCount.get();
+    }
+
     public void processData(final Path path, final Function<String, Void> lineProcessor) throws IOException {
+        final long start = System.nanoTime();
+        final Function<String, Void> countingLineProcessor = countingLines(lineProcessor);
         final Function<Path, Void> pathProcessor = new Function<Path, Void>() {
             @Override
             public Void apply(Path path) {
                 try {
+                    traversalRpcCount.incrementAndGet();
                     final FSDataInputStream in = miniDFSCluster.getFileSystem().open(path);
                     final LineIterator lineIterator = new LineIterator(new InputStreamReader(in));
                     while (lineIterator.hasNext()) {
-                        lineProcessor.apply(lineIterator.next());
+                        countingLineProcessor.apply(lineIterator.next());
                     }
                     lineIterator.close();
                     return null;
@@ -183,24 +712,31 @@ public class DFSCluster {
                 }
             }
         };
-        processPaths(path, new Function<Path, Void>() {
-            @Override
-            public Void apply(Path input) {
-                pathProcessor.apply(input);
-                return null;
-            }
-        });
+        try {
+            processPaths(path, new Function<Path, Void>() {
+                @Override
+                public Void apply(Path input) {
+                    pathProcessor.apply(input);
+                    return null;
+                }
+            });
+        } finally {
+            processingNanos.addAndGet(System.nanoTime() - start);
+        }
     }
 
     public void processDataRecursive(final Path path, final Function<String, Void> lineProcessor) throws IOException {
+        final long start = System.nanoTime();
+        final Function<String, Void> countingLineProcessor = countingLines(lineProcessor);
         final Function<Path, Void> pathProcessor = new Function<Path, Void>() {
             @Override
             public Void apply(Path path) {
                 try {
+                    traversalRpcCount.incrementAndGet();
                     final FSDataInputStream in = miniDFSCluster.getFileSystem().open(path);
                     final LineIterator lineIterator = new LineIterator(new InputStreamReader(in));
                     while (lineIterator.hasNext()) {
-                        lineProcessor.apply(lineIterator.next());
+                        countingLineProcessor.apply(lineIterator.next());
                     }
                     lineIterator.close();
                     return null;
@@ -209,32 +745,172 @@ public class DFSCluster {
                 }
             }
         };
+        try {
+            processPathsRecursive(path, new Function<Path, Void>() {
+                @Override
+                public Void apply(Path input) {
+                    pathProcessor.apply(input);
+                    return null;
+                }
+            });
+        } finally {
+            processingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Like {@link #processData}, but passes each line as a reusable {@link ByteSlice} instead of decoding it.
+     */
+    public void processBytes(final Path path, final Function<ByteSlice, Void> lineProcessor) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            processPaths(path, newBytePathProcessor(lineProcessor));
+        } finally {
+            processingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    public void processBytesRecursive(final Path path, final Function<ByteSlice, Void> lineProcessor) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            processPathsRecursive(path, newBytePathProcessor(lineProcessor));
+        } finally {
+            processingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Function<Path, Void> newBytePathProcessor(final Function<ByteSlice, Void> lineProcessor) {
+        // files are processed one at a time, so they can all share the reader and its buffer
+        final ByteLineReader reader = new ByteLineReader(readBufferSize, directReadBuffer);
+        final Function<ByteSlice, Void> countingLineProcessor = new Function<ByteSlice, Void>() {
+            @Override
+            public Void apply(final ByteSlice line) {
+                processedLines.incrementAndGet();
+                processedBytes.addAndGet(line.length());
+                return lineProcessor.apply(line);
+            }
+        };
+        return new Function<Path, Void>() {
+            @Override
+            public Void apply(final Path path) {
+                try {
+                    traversalRpcCount.incrementAndGet();
+                    final FSDataInputStream in = miniDFSCluster.getFileSystem().open(path);
+                    try {
+                        reader.readLines(in, countingLineProcessor);
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                } catch (final IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+    }
+
+    public void processPathsRecursiveParallel(final Path path, final Function<Path, Void> pathProcessor) throws IOException {
+        newParallelDataProcessor().processPaths(listFilesRecursive(path), pathProcessor);
+    }
+
+    /**
+     * Parallel counterpart of {@link #processDataRecursive}. With {@link ParallelDataProcessor.Ordering#UNORDERED}
+     * the line processor is called concurrently from several threads; with
+     * {@link ParallelDataProcessor.Ordering#ORDERED} it sees the lines of each file, in file order, on the calling thread.
+     *
+     * @throws DataProcessingException listing every file that could not be read or processed
+     */
+    public void processDataRecursiveParallel(final Path path, final Function<String, Void> lineProcessor, final ParallelDataProcessor.Ordering ordering) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            final List<Path> paths = listFilesRecursive(path);
+            traversalRpcCount.addAndGet(paths.size());
+            newParallelDataProcessor().processData(paths, countingLines(lineProcessor), ordering);
+        } finally {
+            processingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private Function<String, Void> countingLines(final Function<String, Void> lineProcessor) {
+        return new Function<String, Void>() {
+            @Override
+            public Void apply(final String line) {
+                processedLines.incrementAndGet();
+                processedBytes.addAndGet(line.length());
+                return lineProcessor.apply(line);
+            }
+        };
+    }
+
+    private ParallelDataProcessor newParallelDataProcessor() {
+        return new ParallelDataProcessor(getFileSystem(), processingThreads, processingPrefetch);
+    }
+
+    private List<Path> listFilesRecursive(final Path path) throws IOException {
+        final List<Path> paths = Lists.newArrayList();
         processPathsRecursive(path, new Function<Path, Void>() {
             @Override
-            public Void apply(Path input) {
-                pathProcessor.apply(input);
+            public Void apply(final Path input) {
+                paths.add(input);
                 return null;
             }
         });
+        return paths;
     }
 
     @PreDestroy
     public void stop() {
+        stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the DataNodes and then the NameNode, abandoning whichever is still stopping after <code>timeout</code>,
+     * deletes any RAM storage and hands the on-disk storage to {@link AsyncDeleter}.
+     *
+     * @return false if the daemons did not stop in time
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) {
+        final long start = System.currentTimeMillis();
+        MBeans.unregister(mbeanName);
+        mbeanName = null;
         try {
+            final String[] stopping = {"DataNodes"};
             final Thread shutdownThread = new Thread(new Runnable() {
 
                 @Override
                 public void run() {
                     if (miniDFSCluster != null) {
+                        long start = System.currentTimeMillis();
+                        miniDFSCluster.shutdownDataNodes();
+                        LOG.debug("Stopped DataNodes in {} ms", System.currentTimeMillis() - start);
+                        synchronized (stopping) {
+                            stopping[0] = "NameNode";
+                        }
+                        start = System.currentTimeMillis();
                         miniDFSCluster.shutdown();
+                        LOG.debug("Stopped NameNode in {} ms", System.currentTimeMillis() - start);
                         miniDFSCluster = null;
                     }
                 }
-            });
+            }, "dfs-shutdown");
+            shutdownThread.setDaemon(true);
             shutdownThread.start();
-            shutdownThread.join(10000);
-            FileUtils.deleteQuietly(buildDirectory);
-            FileUtils.deleteQuietly(new File(projectDirectory, "logs"));
+            shutdownThread.join(unit.toMillis(timeout));
+            final boolean stopped = !shutdownThread.isAlive();
+            if (!stopped) {
+                synchronized (stopping) {
+                    LOG.warn("{} did not stop within {} ms, abandoning it", stopping[0], unit.toMillis(timeout));
+                }
+            }
+            if (ramStorageDirectory != null) {
+                // Deleting from RAM is quick, and a background delete would leave the data in memory if the JVM exits first
+                FileUtils.deleteQuietly(ramStorageDirectory);
+            }
+            if (persistentStorage == null) {
+                AsyncDeleter.delete(baseDirectory);
+            }
+            shutdownMillis = System.currentTimeMillis() - start;
+            return stopped;
         } catch (final InterruptedException ex) {
             throw new RuntimeException(ex);
         }
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+package com.shopzilla.hadoop.testing.hdfs;
+
+/**
+ * Management interface of {@link DFSCluster}; timings are in milliseconds.
+ *
+ * The processing figures cover {@link DFSCluster#processData}, {@link DFSCluster#processBytes} and their
+ * recursive and parallel variants. Bytes are counted per line without the line terminator, and are characters
+ * for the <code>String</code> based methods.
+ */
+public interface DFSClusterMXBean {
+
+    long getStartupMillis();
+
+    long getShutdownMillis();
+
+    int getImportedFiles();
+
+    int getImportedDirectories();
+
+    long getImportedBytes();
+
+    long getImportMillis();
+
+    double getImportBytesPerSecond();
+
+    long getProcessedLines();
+
+    long getProcessedBytes();
+
+    long getProcessingMillis();
+
+    double getProcessedLinesPerSecond();
+
+    double getProcessedBytesPerSecond();
+
+    /**
+     * @return NameNode calls made by the traversal and processing helpers
+     */
+    long getRpcCount();
+
+    /**
+     * @return the NameNode web UI port; reading it does not start a headless UI
+     */
+    int getHttpPort();
+
+    boolean isHttpServerRunning();
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Collects every per-path failure from a parallel processing run, so that one bad
+ * file does not hide problems with the others.
+ */
+public class DataProcessingException extends IOException {
+
+    private final Map<Path, Throwable> failures;
+
+    public DataProcessingException(final Map<Path, Throwable> failures) {
+        super(format("Failed to process %d path(s): %s", failures.size(), failures.keySet()),
+            failures.isEmpty() ? null : failures.values().iterator().next());
+        this.failures = ImmutableMap.copyOf(failures);
+    }
+
+    public Map<Path, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.String.format;
+
+/**
+ * Copies a local directory tree into HDFS using a bounded pool of upload workers.
+ *
+ * All directories are created before any file is written. Large files are then
+ * uploaded one per task, largest first, so they spread across the workers, while
+ * small files are grouped into batches to keep per-task overhead down.
+ */
+public class HDFSImporter {
+
+    public static final long DEFAULT_LARGE_FILE_THRESHOLD = 8L * 1024 * 1024;
+    public static final long DEFAULT_BATCH_BYTES = 8L * 1024 * 1024;
+    public static final int DEFAULT_BATCH_FILES = 256;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileSystem fileSystem;
+    private final int threads;
+    private final long largeFileThreshold;
+    private final long batchBytes;
+    private final int batchFiles;
+
+    public static class Builder {
+        private FileSystem fileSystem;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private long largeFileThreshold = DEFAULT_LARGE_FILE_THRESHOLD;
+        private long batchBytes = DEFAULT_BATCH_BYTES;
+        private int batchFiles = DEFAULT_BATCH_FILES;
+
+        public Builder usingFileSystem(final FileSystem fileSystem) {
+            this.fileSystem = fileSystem;
+            return this;
+        }
+
+        public Builder withThreads(final int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder withLargeFileThreshold(final long largeFileThreshold) {
+            this.largeFileThreshold = largeFileThreshold;
+            return this;
+        }
+
+        public Builder withBatchLimits(final int batchFiles, final long batchBytes) {
+            this.batchFiles = batchFiles;
+            this.batchBytes = batchBytes;
+            return this;
+        }
+
+        public HDFSImporter build() {
+            return new HDFSImporter(fileSystem, threads, largeFileThreshold, batchBytes, batchFiles);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public HDFSImporter(final FileSystem fileSystem, final int threads, final long largeFileThreshold, final long batchBytes, final int batchFiles) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Import requires at least one worker thread");
+        }
+        this.fileSystem = fileSystem;
+        this.threads = threads;
+        this.largeFileThreshold = largeFileThreshold;
+        this.batchBytes = batchBytes;
+        this.batchFiles = batchFiles;
+    }
+
+    public Statistics importDirectory(final Path hdfsRoot, final File localRoot) throws IOException {
+        return importDirectory(hdfsRoot, localRoot, localRoot);
+    }
+
+    /**
+     * Imports <code>file</code> (and everything below it), placing each entry at its
+     * path relative to <code>localRoot</code> resolved against <code>hdfsRoot</code>.
+     */
+    public Statistics importDirectory(final Path hdfsRoot, final File localRoot, final File file) throws IOException {
+        final long start = System.nanoTime();
+        final List<Path> leafDirectories = Lists.newArrayList();
+        final List<Upload> uploads = Lists.newArrayList();
+        int directories = 0;
+
+        final LinkedList<File> pending = Lists.newLinkedList();
+        pending.add(file);
+        while (!pending.isEmpty()) {
+            final File current = pending.removeFirst();
+            final Path path = new Path(hdfsRoot, File.separator + localRoot.toURI().relativize(current.toURI()).getPath());
+            if (current.isDirectory()) {
+                directories++;
+                final File[] children = current.listFiles();
+                if (children == null) {
+                    throw new IOException("Unable to list directory: " + current);
+                }
+                boolean leaf = true;
+                for (final File child : children) {
+                    leaf &= !child.isDirectory();
+                    pending.add(child);
+                }
+                if (leaf) {
+                    leafDirectories.add(path);
+                }
+            } else {
+                uploads.add(new Upload(current, path, current.length()));
+            }
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("hdfs-import-%d")
+            .setDaemon(true)
+            .build());
+        try {
+            // mkdirs creates any missing parents, so only the leaves need an RPC
+            final List<Callable<Long>> mkdirs = Lists.newArrayList();
+            for (final Path directory : leafDirectories) {
+                mkdirs.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        if (!fileSystem.mkdirs(directory)) {
+                            throw new IOException("Unable to create directory: " + directory);
+                        }
+                        return 0L;
+                    }
+                });
+            }
+            runAll(executor, mkdirs);
+
+            final List<Callable<Long>> batches = Lists.newArrayList();
+            for (final List<Upload> batch : plan(uploads)) {
+                batches.add(new Batch(batch));
+            }
+            final long bytes = runAll(executor, batches);
+            return new Statistics(uploads.size(), directories, bytes, System.nanoTime() - start);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes a digest of the relative paths, lengths and modification times below <code>localRoot</code>,
+     * which changes whenever a file is added, removed or rewritten.
+     */
+    public static String fingerprint(final File localRoot) throws IOException {
+        final Hasher hasher = Hashing.md5().newHasher();
+        final LinkedList<File> pending = Lists.newLinkedList();
+        pending.add(localRoot);
+        while (!pending.isEmpty()) {
+            final File current = pending.removeFirst();
+            hasher.putString(localRoot.toURI().relativize(current.toURI()).getPath(), Charsets.UTF_8);
+            if (current.isDirectory()) {
+                final File[] children = current.listFiles();
+                if (children == null) {
+                    throw new IOException("Unable to list directory: " + current);
+                }
+                Arrays.sort(children);
+                pending.addAll(Arrays.asList(children));
+            } else {
+                hasher.putLong(current.length()).putLong(current.lastModified());
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Groups <code>uploads</code> into the batches run by each task: one per large file, largest first, followed by
+     * the small files packed up to the batch limits.
+     */
+    List<List<Upload>> plan(final List<Upload> uploads) {
+        Collections.sort(uploads, new Comparator<Upload>() {
+            @Override
+            public int compare(final Upload a, final Upload b) {
+                return a.length < b.length ? 1 : (a.length == b.length ? 0 : -1);
+            }
+        });
+
+        final List<List<Upload>> tasks = Lists.newArrayList();
+        List<Upload> batch = Lists.newArrayList();
+        long currentBatchBytes = 0;
+        for (final Upload upload : uploads) {
+            if (upload.length >= largeFileThreshold) {
+                tasks.add(Collections.singletonList(upload));
+            } else {
+                batch.add(upload);
+                currentBatchBytes += upload.length;
+                if (batch.size() >= batchFiles || currentBatchBytes >= batchBytes) {
+                    tasks.add(batch);
+                    batch = Lists.newArrayList();
+                    currentBatchBytes = 0;
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batch);
+        }
+        return tasks;
+    }
+
+    private long runAll(final ExecutorService executor, final List<Callable<Long>> tasks) throws IOException {
+        final CompletionService<Long> completionService = new ExecutorCompletionService<Long>(executor);
+        for (final Callable<Long> task : tasks) {
+            completionService.submit(task);
+        }
+        long total = 0;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                total += completionService.take().get();
+            }
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while importing");
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        return total;
+    }
+
+    private class Batch implements Callable<Long> {
+        private final List<Upload> uploads;
+
+        private Batch(final List<Upload> uploads) {
+            this.uploads = uploads;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            long bytes = 0;
+            for (final Upload upload : uploads) {
+                bytes += upload.copy(fileSystem, buffer);
+            }
+            return bytes;
+        }
+    }
+
+    static class Upload {
+        private final File source;
+        private final Path destination;
+        private final long length;
+
+        Upload(final File source, final Path destination, final long length) {
+            this.source = source;
+            this.destination = destination;
+            this.length = length;
+        }
+
+        Path getDestination() {
+            return destination;
+        }
+
+        private long copy(final FileSystem fileSystem, final byte[] buffer) throws IOException {
+            final InputStream in = new FileInputStream(source);
+            try {
+                final FSDataOutputStream out = fileSystem.create(destination, true);
+                try {
+                    long copied = 0;
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                        copied += read;
+                    }
+                    return copied;
+                } finally {
+                    out.close();
+                }
+            } finally {
+                IOUtils.closeStream(in);
+            }
+        }
+    }
+
+    public static class Statistics {
+        private final int files;
+        private final int directories;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        public Statistics(final int files, final int directories, final long bytes, final long elapsedNanos) {
+            this.files = files;
+            this.directories = directories;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getDirectories() {
+            return directories;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1000000L;
+        }
+
+        public double getFilesPerSecond() {
+            return perSecond(files);
+        }
+
+        public double getBytesPerSecond() {
+            return perSecond(bytes);
+        }
+
+        private double perSecond(final double amount) {
+            return elapsedNanos == 0 ? 0 : amount * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return format("Imported %d files (%d bytes) into %d directories in %d ms: %.1f files/sec, %.1f bytes/sec",
+                files, bytes, directories, getElapsedMillis(), getFilesPerSecond(), getBytesPerSecond());
+        }
+    }
+}
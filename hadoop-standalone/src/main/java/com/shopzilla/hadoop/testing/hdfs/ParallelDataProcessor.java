@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.LineIterator;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs path and line processors over a list of HDFS files on a fixed pool of workers.
+ *
+ * In {@link Ordering#UNORDERED} mode every file is handed to its own task and the line
+ * processor is invoked concurrently, so it must be thread-safe. In {@link Ordering#ORDERED}
+ * mode the line processor is only called from the calling thread, in file order, while
+ * the pool reads ahead up to <code>prefetch</code> files. Read-ahead lines are handed over
+ * through a queue of at most {@link #PREFETCH_LINES} lines per file, so memory use does not
+ * grow with file size.
+ *
+ * Failures are recorded per path and reported together in a {@link DataProcessingException}
+ * once every file has been attempted.
+ */
+public class ParallelDataProcessor {
+
+    public static final int PREFETCH_LINES = 1024;
+
+    public enum Ordering {
+        ORDERED,
+        UNORDERED
+    }
+
+    // Compared by identity, so that an empty line in a file is never mistaken for the end marker
+    @SuppressWarnings("RedundantStringConstructorCall")
+    private static final String END_OF_FILE = new String("");
+
+    private final FileSystem fileSystem;
+    private final int threads;
+    private final int prefetch;
+
+    public ParallelDataProcessor(final FileSystem fileSystem, final int threads, final int prefetch) {
+        if (threads < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("Parallel processing requires at least one thread and one prefetched file");
+        }
+        this.fileSystem = fileSystem;
+        this.threads = threads;
+        this.prefetch = prefetch;
+    }
+
+    public void processPaths(final List<Path> paths, final Function<Path, Void> pathProcessor) throws DataProcessingException {
+        final Map<Path, Throwable> failures = Maps.newConcurrentMap();
+        final ExecutorService executor = newExecutor();
+        try {
+            final List<Future<?>> futures = Lists.newArrayListWithCapacity(paths.size());
+            for (final Path path : paths) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pathProcessor.apply(path);
+                        } catch (final Throwable t) {
+                            failures.put(path, t);
+                        }
+                    }
+                }));
+            }
+            awaitAll(paths, futures, failures);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            throw new DataProcessingException(failures);
+        }
+    }
+
+    public void processData(final List<Path> paths, final Function<String, Void> lineProcessor, final Ordering ordering) throws DataProcessingException {
+        if (ordering == Ordering.UNORDERED) {
+            processPaths(paths, new Function<Path, Void>() {
+                @Override
+                public Void apply(final Path path) {
+                    try {
+                        readLines(path, lineProcessor);
+                        return null;
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+        } else {
+            processDataInOrder(paths, lineProcessor);
+        }
+    }
+
+    private void processDataInOrder(final List<Path> paths, final Function<String, Void> lineProcessor) throws DataProcessingException {
+        final Map<Path, Throwable> failures = Maps.newLinkedHashMap();
+        final ExecutorService executor = newExecutor();
+        try {
+            final List<LineStream> streams = Lists.newArrayListWithCapacity(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                while (streams.size() < Math.min(paths.size(), i + prefetch)) {
+                    final LineStream stream = new LineStream(paths.get(streams.size()));
+                    stream.future = executor.submit(stream);
+                    streams.add(stream);
+                }
+                final Path path = paths.get(i);
+                final LineStream stream = streams.get(i);
+                streams.set(i, null);
+                try {
+                    for (String line = stream.lines.take(); line != END_OF_FILE; line = stream.lines.take()) {
+                        lineProcessor.apply(line);
+                    }
+                    if (stream.failure != null) {
+                        failures.put(path, stream.failure);
+                    }
+                } catch (final InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    failures.put(path, ex);
+                    break;
+                } catch (final Throwable t) {
+                    // Release the reader, which may be blocked on a full queue and holding a worker
+                    stream.future.cancel(true);
+                    failures.put(path, t);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            throw new DataProcessingException(failures);
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setNameFormat("hdfs-process-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Waits for every task. If the calling thread is interrupted, the interrupt flag is restored and
+     * every path still outstanding is recorded as failed with the {@link InterruptedException}.
+     */
+    private void awaitAll(final List<Path> paths, final List<Future<?>> futures, final Map<Path, Throwable> failures) {
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < futures.size(); j++) {
+                    if (!futures.get(j).isDone() && !failures.containsKey(paths.get(j))) {
+                        failures.put(paths.get(j), ex);
+                    }
+                }
+                return;
+            } catch (final ExecutionException ex) {
+                // Failures are recorded by the tasks themselves
+            }
+        }
+    }
+
+    private void readLines(final Path path, final Function<String, Void> lineProcessor) throws IOException {
+        final LineIterator lineIterator = new LineIterator(new InputStreamReader(fileSystem.open(path)));
+        try {
+            while (lineIterator.hasNext()) {
+                lineProcessor.apply(lineIterator.next());
+            }
+        } finally {
+            lineIterator.close();
+        }
+    }
+
+    /**
+     * Reads one file into a bounded queue, ending with {@link #END_OF_FILE}. A read failure is
+     * published before the end marker, so the consumer sees it once the marker is taken.
+     */
+    private class LineStream implements Runnable {
+        private final Path path;
+        private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(PREFETCH_LINES);
+        private volatile Throwable failure;
+        private Future<?> future;
+
+        private LineStream(final Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public void run() {
+            try {
+                readLines(path, new Function<String, Void>() {
+                    @Override
+                    public Void apply(final String line) {
+                        try {
+                            lines.put(line);
+                        } catch (final InterruptedException ex) {
+                            throw new CancellationException();
+                        }
+                        return null;
+                    }
+                });
+            } catch (final CancellationException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final Throwable t) {
+                failure = t;
+            }
+            try {
+                lines.put(END_OF_FILE);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Copies the on-disk storage of a {@link DFSCluster}, the NameNode image and edits and the DataNode block
+ * directories, to or from a snapshot directory.
+ *
+ * Finalized block files (<code>blk_*</code>) never change once written, so they are hard-linked where the
+ * filesystem allows and copied otherwise; everything else, such as the image, edits and VERSION files, is copied.
+ * Blocks still being written are left out. Hard links need Java 7, which is looked up reflectively so that
+ * older runtimes fall back to copying.
+ */
+public final class StorageSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StorageSnapshot.class);
+
+    public static final String PROPERTIES = "snapshot.properties";
+
+    private static final Method TO_PATH;
+    private static final Method CREATE_LINK;
+
+    static {
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            final Class<?> path = Class.forName("java.nio.file.Path");
+            toPath = File.class.getMethod("toPath");
+            createLink = Class.forName("java.nio.file.Files").getMethod("createLink", path, path);
+        } catch (final Exception ex) {
+            LOG.debug("Hard links are not available, snapshots will copy block files");
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private StorageSnapshot() {
+    }
+
+    /**
+     * Copies the <code>dfs</code> directory below <code>storageDirectory</code> to <code>snapshot</code>, recording
+     * the number of DataNodes it holds storage for. Block files are only linked if <code>linkBlocks</code> is set.
+     */
+    public static void save(final File storageDirectory, final File snapshot, final int dataNodes, final boolean linkBlocks) throws IOException {
+        save(ImmutableList.of(storageDirectory), snapshot, dataNodes, linkBlocks);
+    }
+
+    /**
+     * Like {@link #save(File, File, int, boolean)}, for storage split across several directories. Their
+     * <code>dfs</code> trees are merged into the snapshot, so they must not hold the same files.
+     */
+    public static void save(final List<File> storageDirectories, final File snapshot, final int dataNodes, final boolean linkBlocks) throws IOException {
+        if (new File(snapshot, PROPERTIES).exists()) {
+            throw new IOException("A snapshot already exists in " + snapshot);
+        }
+        for (final File storageDirectory : storageDirectories) {
+            final File dfs = new File(storageDirectory, "dfs");
+            if (dfs.isDirectory()) {
+                copy(dfs, new File(snapshot, "dfs"), linkBlocks);
+            }
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("dataNodes", String.valueOf(dataNodes));
+        properties.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        final Writer writer = Files.newWriter(new File(snapshot, PROPERTIES), Charsets.UTF_8);
+        try {
+            properties.store(writer, "DFSCluster storage snapshot");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Copies <code>snapshot</code> into <code>storageDirectory</code>, ready for a {@link DFSCluster} to start on
+     * without formatting. The snapshot itself is left untouched, so it can be restored again.
+     */
+    public static void restore(final File snapshot, final File storageDirectory, final boolean linkBlocks) throws IOException {
+        copy(new File(snapshot, "dfs"), new File(storageDirectory, "dfs"), linkBlocks);
+    }
+
+    /**
+     * @return the number of DataNodes <code>snapshot</code> holds storage for
+     */
+    public static int getDataNodes(final File snapshot) throws IOException {
+        final File file = new File(snapshot, PROPERTIES);
+        if (!file.isFile()) {
+            throw new IOException(snapshot + " is not a DFS snapshot");
+        }
+        final Properties properties = new Properties();
+        final Reader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            properties.load(reader);
+        } finally {
+            reader.close();
+        }
+        return Integer.parseInt(properties.getProperty("dataNodes"));
+    }
+
+    private static void copy(final File source, final File target, final boolean linkBlocks) throws IOException {
+        final long start = System.currentTimeMillis();
+        int linked = 0;
+        int copied = 0;
+        final LinkedList<File> pending = Lists.newLinkedList();
+        pending.add(source);
+        while (!pending.isEmpty()) {
+            final File current = pending.removeFirst();
+            final File destination = new File(target, source.toURI().relativize(current.toURI()).getPath());
+            if (current.isDirectory()) {
+                if (!destination.isDirectory() && !destination.mkdirs()) {
+                    throw new IOException("Unable to create directory: " + destination);
+                }
+                final File[] children = current.listFiles();
+                if (children == null) {
+                    throw new IOException("Unable to list directory: " + current);
+                }
+                for (final File child : children) {
+                    if (child.isDirectory() && (child.getName().equals("tmp") || child.getName().equals("blocksBeingWritten"))) {
+                        // partial blocks; the DataNode recreates these directories empty
+                        continue;
+                    }
+                    if (!child.getName().equals("in_use.lock")) {
+                        pending.add(child);
+                    }
+                }
+            } else if (linkBlocks && current.getName().startsWith("blk_") && link(current, destination)) {
+                linked++;
+            } else {
+                Files.copy(current, destination);
+                copied++;
+            }
+        }
+        LOG.info("Copied {} to {} in {} ms: {} files linked, {} copied",
+            new Object[] {source, target, System.currentTimeMillis() - start, linked, copied});
+    }
+
+    private static boolean link(final File existing, final File link) {
+        if (CREATE_LINK == null) {
+            return false;
+        }
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+            return true;
+        } catch (final InvocationTargetException ex) {
+            // e.g. the snapshot is on another filesystem
+            LOG.debug("Unable to link {}, copying it: {}", existing, ex.getCause().toString());
+            return false;
+        } catch (final IllegalAccessException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Depth-first HDFS traversal driven by an explicit work queue rather than recursion.
+ *
+ * Each directory costs exactly one <code>listStatus</code> call and files cost nothing beyond
+ * their parent's listing, since the {@link FileStatus} returned there is passed straight to the
+ * visitor. While one directory is being descended, the listings of its sibling directories are
+ * fetched in the background. Entries are visited in the same order as a recursive walk.
+ */
+public class TreeWalker {
+
+    /**
+     * Skips entries whose name starts with an underscore or a dot, such as <code>_SUCCESS</code>, <code>_logs</code>
+     * and the <code>.crc</code> files written next to local copies.
+     */
+    public static final PathFilter HIDDEN_FILE_FILTER = new PathFilter() {
+        @Override
+        public boolean accept(final Path path) {
+            final String name = path.getName();
+            return !name.startsWith("_") && !name.startsWith(".");
+        }
+    };
+
+    public static final int DEFAULT_MAX_PREFETCH = 64;
+
+    private final FileSystem fileSystem;
+    private final PathFilter filter;
+    private final int prefetchThreads;
+    private final int maxPrefetch;
+    private final AtomicLong rpcCount = new AtomicLong();
+
+    public static class Builder {
+        private FileSystem fileSystem;
+        private PathFilter filter = HIDDEN_FILE_FILTER;
+        private int prefetchThreads = 2;
+        private int maxPrefetch = DEFAULT_MAX_PREFETCH;
+
+        public Builder usingFileSystem(final FileSystem fileSystem) {
+            this.fileSystem = fileSystem;
+            return this;
+        }
+
+        public Builder withFilter(final PathFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * @param prefetchThreads threads listing sibling directories ahead of the walk; 0 disables prefetching
+         * @param maxPrefetch upper bound on listings fetched but not yet consumed
+         */
+        public Builder withPrefetch(final int prefetchThreads, final int maxPrefetch) {
+            this.prefetchThreads = prefetchThreads;
+            this.maxPrefetch = maxPrefetch;
+            return this;
+        }
+
+        public TreeWalker build() {
+            return new TreeWalker(fileSystem, filter, prefetchThreads, maxPrefetch);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public TreeWalker(final FileSystem fileSystem, final PathFilter filter, final int prefetchThreads, final int maxPrefetch) {
+        this.fileSystem = fileSystem;
+        this.filter = filter;
+        this.prefetchThreads = prefetchThreads;
+        this.maxPrefetch = maxPrefetch;
+    }
+
+    /**
+     * Passes every file at or below <code>root</code> that the filter accepts to <code>visitor</code>.
+     * The filter is applied to every entry below the root, and to the root itself when it is a file.
+     */
+    public void walk(final Path root, final Function<FileStatus, Void> visitor) throws IOException {
+        final FileStatus rootStatus;
+        try {
+            rpcCount.incrementAndGet();
+            rootStatus = fileSystem.getFileStatus(root);
+        } catch (final FileNotFoundException ex) {
+            throw new IOException("Path does not exist: " + root);
+        }
+        if (!rootStatus.isDir()) {
+            if (filter.accept(rootStatus.getPath())) {
+                visitor.apply(rootStatus);
+            }
+            return;
+        }
+
+        final ExecutorService executor = prefetchThreads > 0
+            ? Executors.newFixedThreadPool(prefetchThreads, new ThreadFactoryBuilder()
+                .setNameFormat("hdfs-walk-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build())
+            : null;
+        try {
+            final Map<Path, Future<FileStatus[]>> prefetched = Maps.newHashMap();
+            final Deque<FileStatus> pending = new ArrayDeque<FileStatus>();
+            pending.push(rootStatus);
+            while (!pending.isEmpty()) {
+                final FileStatus status = pending.pop();
+                if (!status.isDir()) {
+                    visitor.apply(status);
+                    continue;
+                }
+
+                final List<FileStatus> accepted = Lists.newArrayList();
+                for (final FileStatus child : list(status.getPath(), prefetched.remove(status.getPath()))) {
+                    if (filter.accept(child.getPath())) {
+                        accepted.add(child);
+                    }
+                }
+                for (int i = accepted.size() - 1; i >= 0; i--) {
+                    pending.push(accepted.get(i));
+                }
+
+                if (executor != null) {
+                    // The first subdirectory is listed next anyway; fetch its siblings in the meantime
+                    boolean first = true;
+                    for (final FileStatus child : accepted) {
+                        if (child.isDir()) {
+                            if (!first && prefetched.size() < maxPrefetch) {
+                                prefetched.put(child.getPath(), executor.submit(new Listing(child.getPath())));
+                            }
+                            first = false;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return the number of NameNode calls made by this walker so far
+     */
+    public long getRpcCount() {
+        return rpcCount.get();
+    }
+
+    private FileStatus[] list(final Path path, final Future<FileStatus[]> prefetched) throws IOException {
+        if (prefetched == null) {
+            return new Listing(path).call();
+        }
+        try {
+            return prefetched.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while listing " + path);
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private class Listing implements Callable<FileStatus[]> {
+        private final Path path;
+
+        private Listing(final Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public FileStatus[] call() throws IOException {
+            rpcCount.incrementAndGet();
+            final FileStatus[] children = fileSystem.listStatus(path);
+            if (children == null) {
+                throw new IOException("Path does not exist: " + path);
+            }
+            return children;
+        }
+    }
+}
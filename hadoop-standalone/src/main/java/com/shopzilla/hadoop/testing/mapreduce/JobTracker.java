@@ -19,25 +19,53 @@
 
 package com.shopzilla.hadoop.testing.mapreduce;
 
+import com.shopzilla.hadoop.testing.DeferredHttpServer;
+import com.shopzilla.hadoop.testing.MBeans;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MiniMRCluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jeremy Lucas
  * @since 9/5/12
  */
-public class JobTracker {
+public class JobTracker implements JobTrackerMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobTracker.class);
+
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 10000;
 
     private final String dfsNameNode;
     private final int numTaskTrackers;
+    private final File localDirectory;
+    private final long shutdownTimeoutMillis;
+    private final Configuration configuration;
+    private final boolean headless;
+    private DeferredHttpServer httpServer;
     private MiniMRCluster miniMrCluster;
+    private JobClient jobClient;
+    private volatile long startupMillis;
+    private volatile long shutdownMillis;
+    private ObjectName mbeanName;
 
     public static class Builder {
         private String dfsNameNode;
         private int numTaskTrackers = 4;
+        private File localDirectory;
+        private long shutdownTimeoutMillis = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+        private Configuration configuration;
+        private boolean headless = false;
 
         public Builder withNameNode(final String dfsNameNode) {
             this.dfsNameNode = dfsNameNode;
@@ -49,8 +77,44 @@ public class JobTracker {
             return this;
         }
 
+        /**
+         * Keeps the TaskTracker local directories, job history and other MapReduce scratch space under
+         * <code>localDirectory</code> instead of the JVM-wide <code>hadoop.tmp.dir</code> and <code>hadoop.log.dir</code>.
+         */
+        public Builder withLocalDirectory(final File localDirectory) {
+            this.localDirectory = localDirectory;
+            return this;
+        }
+
+        /**
+         * Sets how long {@link JobTracker#stop()} waits for the JobTracker and TaskTrackers before abandoning them.
+         */
+        public Builder withShutdownTimeout(final long timeout, final TimeUnit unit) {
+            this.shutdownTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Passes every property set on <code>configuration</code> to the JobTracker and TaskTrackers. Use a
+         * <code>new Configuration(false)</code> so that only the overrides, not Hadoop's defaults, are copied.
+         */
+        public Builder usingConfiguration(final Configuration configuration) {
+            this.configuration = configuration;
+            return this;
+        }
+
+        /**
+         * Takes the JobTracker web UI offline as soon as it starts, and brings it back on the first
+         * {@link JobTracker#getHttpAddress()} call. TaskTracker HTTP servers stay up, since they serve map output
+         * to reducers. See {@link DeferredHttpServer}.
+         */
+        public Builder withHeadless(final boolean headless) {
+            this.headless = headless;
+            return this;
+        }
+
         public JobTracker build() {
-            return new JobTracker(dfsNameNode, numTaskTrackers);
+            return new JobTracker(this);
         }
     }
 
@@ -59,30 +123,152 @@ public class JobTracker {
     }
 
     public JobTracker(final String dfsNameNode, final int numTaskTrackers) {
-        this.dfsNameNode = dfsNameNode;
-        this.numTaskTrackers = numTaskTrackers;
+        this(dfsNameNode, numTaskTrackers, null);
+    }
+
+    public JobTracker(final String dfsNameNode, final int numTaskTrackers, final File localDirectory) {
+        this(dfsNameNode, numTaskTrackers, localDirectory, DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    public JobTracker(final String dfsNameNode, final int numTaskTrackers, final File localDirectory, final long shutdownTimeoutMillis) {
+        this(builder()
+            .withNameNode(dfsNameNode)
+            .withTastkTrackers(numTaskTrackers)
+            .withLocalDirectory(localDirectory)
+            .withShutdownTimeout(shutdownTimeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    private JobTracker(final Builder builder) {
+        this.dfsNameNode = builder.dfsNameNode;
+        this.numTaskTrackers = builder.numTaskTrackers;
+        this.localDirectory = builder.localDirectory;
+        this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+        this.configuration = builder.configuration;
+        this.headless = builder.headless;
     }
 
     @PostConstruct
     public JobTracker start() {
+        final long start = System.currentTimeMillis();
         try {
-            miniMrCluster = new MiniMRCluster(numTaskTrackers, dfsNameNode, 1);
+            final JobConf jobConf = new JobConf();
+            if (configuration != null) {
+                for (final Map.Entry<String, String> property : configuration) {
+                    jobConf.set(property.getKey(), property.getValue());
+                }
+            }
+            if (localDirectory != null) {
+                jobConf.set("hadoop.tmp.dir", new File(localDirectory, "tmp").getAbsolutePath());
+                jobConf.set("mapred.local.dir", new File(localDirectory, "local").getAbsolutePath());
+                jobConf.set("hadoop.job.history.location", new File(localDirectory, "history").toURI().toString());
+            }
+            jobConf.set("mapred.job.tracker.http.address", "0.0.0.0:0");
+            jobConf.set("mapred.task.tracker.http.address", "0.0.0.0:0");
+            miniMrCluster = new MiniMRCluster(numTaskTrackers, dfsNameNode, 1, null, null, jobConf);
+            if (headless) {
+                httpServer = DeferredHttpServer.suspend(miniMrCluster.getJobTrackerRunner().getJobTracker(), "infoServer");
+            }
+            startupMillis = System.currentTimeMillis() - start;
+            mbeanName = MBeans.register("JobTracker", this);
             return this;
         } catch (final IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * @return true once every TaskTracker has sent the JobTracker a heartbeat
+     */
+    public synchronized boolean isReady() throws IOException {
+        if (jobClient == null) {
+            jobClient = new JobClient(miniMrCluster.createJobConf());
+        }
+        return jobClient.getClusterStatus().getTaskTrackers() >= numTaskTrackers;
+    }
+
+    /**
+     * @return true while any submitted job has not yet completed
+     */
+    public boolean hasRunningJobs() {
+        return miniMrCluster != null && miniMrCluster.getJobTrackerRunner().getJobTracker().jobsToComplete().length > 0;
+    }
+
+    @Override
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    @Override
+    public long getShutdownMillis() {
+        return shutdownMillis;
+    }
+
+    @Override
+    public int getTaskTrackers() {
+        return miniMrCluster == null ? 0 : miniMrCluster.getJobTrackerRunner().getJobTracker().getClusterStatus().getTaskTrackers();
+    }
+
+    @Override
+    public int getRunningJobs() {
+        return miniMrCluster == null ? 0 : miniMrCluster.getJobTrackerRunner().getJobTracker().jobsToComplete().length;
+    }
+
     public MiniMRCluster getMiniMrCluster() {
         return miniMrCluster;
     }
 
+    /**
+     * @return the JobTracker web UI, which in headless mode is started on the first call. Deliberately not part of
+     * {@link JobTrackerMXBean}, so that JMX consoles polling attributes do not start it.
+     */
     public String getHttpAddress() {
-        return "http://localhost:" + miniMrCluster.getJobTrackerRunner().getJobTracker().getInfoPort();
+        if (httpServer == null) {
+            return "http://localhost:" + miniMrCluster.getJobTrackerRunner().getJobTracker().getInfoPort();
+        }
+        try {
+            return "http://localhost:" + httpServer.ensureStarted();
+        } catch (final IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public int getHttpPort() {
+        if (httpServer != null) {
+            return httpServer.getPort();
+        }
+        return miniMrCluster == null ? 0 : miniMrCluster.getJobTrackerRunner().getJobTracker().getInfoPort();
+    }
+
+    @Override
+    public boolean isHttpServerRunning() {
+        return httpServer == null || httpServer.isRunning();
     }
 
     @PreDestroy
     public void stop() {
+        stop(shutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the TaskTrackers and the JobTracker, abandoning them if they are still stopping after <code>timeout</code>.
+     *
+     * @return false if they did not stop in time
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) {
+        final long start = System.currentTimeMillis();
+        MBeans.unregister(mbeanName);
+        mbeanName = null;
+        synchronized (this) {
+            if (jobClient != null) {
+                try {
+                    jobClient.close();
+                } catch (final IOException ex) {
+                    LOG.warn("Unable to close the JobClient", ex);
+                }
+                jobClient = null;
+            }
+        }
         try {
             final Thread shutdownThread = new Thread(new Runnable() {
 
@@ -90,16 +276,25 @@ public class JobTracker {
                 public void run() {
                     try {
                         if (miniMrCluster != null) {
+                            final long start = System.currentTimeMillis();
                             miniMrCluster.shutdown();
                             miniMrCluster = null;
+                            LOG.debug("Stopped JobTracker and TaskTrackers in {} ms", System.currentTimeMillis() - start);
                         }
                     } catch (final Exception ex) {
                         ex.printStackTrace();
                     }
                 }
-            });
+            }, "mapreduce-shutdown");
+            shutdownThread.setDaemon(true);
             shutdownThread.start();
-            shutdownThread.join(10000);
+            shutdownThread.join(unit.toMillis(timeout));
+            shutdownMillis = System.currentTimeMillis() - start;
+            if (shutdownThread.isAlive()) {
+                LOG.warn("JobTracker and TaskTrackers did not stop within {} ms, abandoning them", unit.toMillis(timeout));
+                return false;
+            }
+            return true;
         }
         catch (final InterruptedException ex) {
             throw new RuntimeException(ex);
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.mapreduce;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for a {@link JobTracker} that is only started when something actually uses MapReduce.
+ *
+ * A local port is reserved up front and advertised as <code>mapred.job.tracker</code>. The first connection to
+ * it, or the first {@link #getJobTracker()} call, starts the real JobTracker on its own port; connections to the
+ * reserved port are then relayed to it, so IPC clients never notice the difference beyond the startup delay.
+ * With an idle timeout, the MapReduce side is stopped again once no job has been running and no client has
+ * talked to it for that long, and is restarted by the next connection.
+ */
+public class LazyJobTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LazyJobTracker.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final JobTracker.Builder jobTrackerBuilder;
+    private final long idleTimeoutMillis;
+    private final long startupTimeoutMillis;
+    private final Set<Socket> relayedSockets = Sets.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService idleMonitor;
+    private JobTracker jobTracker;
+    private String jobTrackerAddress;
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile long shutdownMillis;
+
+    public static class Builder {
+        private JobTracker.Builder jobTrackerBuilder = JobTracker.builder();
+        private long idleTimeoutMillis = 0;
+        private long startupTimeoutMillis = 120000;
+
+        /**
+         * Sets how the JobTracker is built each time it is started.
+         */
+        public Builder usingJobTracker(final JobTracker.Builder jobTrackerBuilder) {
+            this.jobTrackerBuilder = jobTrackerBuilder;
+            return this;
+        }
+
+        /**
+         * Stops the JobTracker after <code>timeout</code> without running jobs or client traffic; 0 keeps it running.
+         */
+        public Builder withIdleTimeout(final long timeout, final TimeUnit unit) {
+            this.idleTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Sets how long a start on demand waits for every TaskTracker to report in.
+         */
+        public Builder withStartupTimeout(final long timeout, final TimeUnit unit) {
+            this.startupTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        public LazyJobTracker build() {
+            return new LazyJobTracker(jobTrackerBuilder, idleTimeoutMillis, startupTimeoutMillis);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public LazyJobTracker(final JobTracker.Builder jobTrackerBuilder, final long idleTimeoutMillis, final long startupTimeoutMillis) {
+        this.jobTrackerBuilder = jobTrackerBuilder;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.startupTimeoutMillis = startupTimeoutMillis;
+    }
+
+    /**
+     * Reserves the advertised port; does not start any MapReduce daemon.
+     */
+    public LazyJobTracker start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "lazy-jobtracker-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        if (idleTimeoutMillis > 0) {
+            idleMonitor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("lazy-jobtracker-idle-monitor")
+                .setDaemon(true)
+                .build());
+            final long period = Math.max(1000, idleTimeoutMillis / 4);
+            idleMonitor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    stopIfIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * @return the <code>host:port</code> to use as <code>mapred.job.tracker</code>
+     */
+    public String getAddress() {
+        return "localhost:" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the running JobTracker, starting it and waiting for its TaskTrackers first if necessary
+     */
+    public synchronized JobTracker getJobTracker() throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (jobTracker == null) {
+            final long start = System.currentTimeMillis();
+            final JobTracker started = jobTrackerBuilder.build().start();
+            try {
+                while (!started.isReady()) {
+                    if (System.currentTimeMillis() - start > startupTimeoutMillis) {
+                        started.stop();
+                        throw new IOException("TaskTrackers did not report in within " + startupTimeoutMillis + " ms");
+                    }
+                    Thread.sleep(100);
+                }
+            } catch (final InterruptedException ex) {
+                started.stop();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the TaskTrackers to report in");
+            }
+            jobTracker = started;
+            jobTrackerAddress = jobTracker.getMiniMrCluster().createJobConf().get("mapred.job.tracker");
+            LOG.info("Started JobTracker on demand in {} ms", System.currentTimeMillis() - start);
+        }
+        return jobTracker;
+    }
+
+    /**
+     * @return the JobTracker if it is currently running, without starting it
+     */
+    public synchronized JobTracker peekJobTracker() {
+        return jobTracker;
+    }
+
+    public synchronized boolean hasRunningJobs() {
+        return jobTracker != null && jobTracker.hasRunningJobs();
+    }
+
+    public long getShutdownMillis() {
+        return shutdownMillis;
+    }
+
+    /**
+     * Releases the advertised port and stops the JobTracker if it is running.
+     *
+     * @return false if the JobTracker did not stop within <code>timeout</code>
+     */
+    public boolean stop(final long timeout, final TimeUnit unit) {
+        final long start = System.currentTimeMillis();
+        if (idleMonitor != null) {
+            // Let an idle stop that is already under way finish, so the JobTracker is not left half stopped
+            idleMonitor.shutdown();
+            try {
+                idleMonitor.awaitTermination(timeout, unit);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            serverSocket.close();
+        } catch (final IOException ex) {
+            LOG.debug("Error releasing the reserved JobTracker port", ex);
+        }
+        final JobTracker running = detachJobTracker();
+        final boolean stopped = running == null || running.stop(timeout, unit);
+        shutdownMillis = System.currentTimeMillis() - start;
+        return stopped;
+    }
+
+    /**
+     * Closes the relayed connections and forgets the running JobTracker, leaving the caller to stop it without
+     * holding this object's lock.
+     */
+    private synchronized JobTracker detachJobTracker() {
+        for (final Socket socket : relayedSockets) {
+            IOUtils.closeSocket(socket);
+        }
+        relayedSockets.clear();
+        final JobTracker detached = jobTracker;
+        jobTracker = null;
+        jobTrackerAddress = null;
+        return detached;
+    }
+
+    private void stopIfIdle() {
+        final JobTracker idle;
+        synchronized (this) {
+            if (jobTracker == null || jobTracker.hasRunningJobs() || System.currentTimeMillis() - lastActivity <= idleTimeoutMillis) {
+                return;
+            }
+            LOG.info("No MapReduce activity for {} ms, stopping the JobTracker until it is needed again", idleTimeoutMillis);
+            idle = detachJobTracker();
+        }
+        // Uses the shutdown timeout the JobTracker was built with
+        idle.stop();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket client = serverSocket.accept();
+                final Thread relay = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        relay(client);
+                    }
+                }, "lazy-jobtracker-relay");
+                relay.setDaemon(true);
+                relay.start();
+            } catch (final IOException ex) {
+                if (!serverSocket.isClosed()) {
+                    LOG.warn("Error accepting MapReduce client connection", ex);
+                }
+            }
+        }
+    }
+
+    private void relay(final Socket client) {
+        final Socket server;
+        try {
+            synchronized (this) {
+                getJobTracker();
+                final String[] hostAndPort = jobTrackerAddress.split(":");
+                server = new Socket(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+                relayedSockets.add(client);
+                relayedSockets.add(server);
+            }
+        } catch (final IOException ex) {
+            LOG.error("Unable to start the JobTracker on demand", ex);
+            IOUtils.closeSocket(client);
+            return;
+        }
+        final Thread upstream = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipe(client, server);
+            }
+        }, "lazy-jobtracker-relay");
+        upstream.setDaemon(true);
+        upstream.start();
+        pipe(server, client);
+    }
+
+    private void pipe(final Socket from, final Socket to) {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            final InputStream in = from.getInputStream();
+            final OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                lastActivity = System.currentTimeMillis();
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (final IOException ex) {
+            LOG.debug("MapReduce client connection closed", ex);
+        } finally {
+            IOUtils.closeSocket(from);
+            IOUtils.closeSocket(to);
+            relayedSockets.remove(from);
+            relayedSockets.remove(to);
+        }
+    }
+}
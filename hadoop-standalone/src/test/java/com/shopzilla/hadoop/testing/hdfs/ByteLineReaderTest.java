@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ByteLineReaderTest {
+
+    private List<String> read(final ByteLineReader reader, final String input) throws Exception {
+        final List<String> lines = Lists.newArrayList();
+        final long count = reader.readLines(new ByteArrayInputStream(input.getBytes(Charsets.UTF_8)), new Function<ByteSlice, Void>() {
+            @Override
+            public Void apply(final ByteSlice slice) {
+                lines.add(slice.decode(Charsets.UTF_8));
+                return null;
+            }
+        });
+        assertEquals(lines.size(), count);
+        return lines;
+    }
+
+    @Test
+    public void testLinesAcrossBufferBoundaries() throws Exception {
+        assertEquals(ImmutableList.of("abc", "de", "", "fghij", "k"), read(new ByteLineReader(4, false), "abc\nde\n\nfghij\nk"));
+        assertEquals(ImmutableList.of("abc", "de", "", "fghij", "k"), read(new ByteLineReader(4, true), "abc\nde\n\nfghij\nk"));
+    }
+
+    @Test
+    public void testReaderIsReusedAfterGrowing() throws Exception {
+        final ByteLineReader reader = new ByteLineReader(4, true);
+        assertEquals(ImmutableList.of("abcdefghij", "x"), read(reader, "abcdefghij\nx"));
+        assertEquals(ImmutableList.of("ab", "cd"), read(reader, "ab\ncd\n"));
+        assertTrue(read(reader, "").isEmpty());
+    }
+
+    @Test
+    public void testCarriageReturnsAndTrailingNewline() throws Exception {
+        assertEquals(ImmutableList.of("a", "b"), read(new ByteLineReader(16, false), "a\r\nb\r\n"));
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        assertTrue(read(new ByteLineReader(), "").isEmpty());
+    }
+
+    @Test
+    public void testSliceAccessors() throws Exception {
+        new ByteLineReader(8, true).readLines(new ByteArrayInputStream("key\tvalue".getBytes(Charsets.UTF_8)), new Function<ByteSlice, Void>() {
+            @Override
+            public Void apply(final ByteSlice slice) {
+                assertEquals(9, slice.length());
+                assertEquals(3, slice.indexOf((byte) '\t', 0));
+                assertTrue(slice.startsWith("key".getBytes(Charsets.UTF_8)));
+                assertEquals('v', slice.byteAt(4));
+                assertEquals("key\tvalue", new String(slice.toByteArray(), Charsets.UTF_8));
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class HDFSImporterTest {
+
+    private File root;
+    private FileSystem fileSystem;
+    private Map<Path, ByteArrayOutputStream> written;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDir();
+        written = Maps.newConcurrentMap();
+        fileSystem = mock(FileSystem.class);
+        when(fileSystem.mkdirs(any(Path.class))).thenReturn(true);
+        when(fileSystem.create(any(Path.class), anyBoolean())).thenAnswer(new Answer<FSDataOutputStream>() {
+            @Override
+            public FSDataOutputStream answer(final InvocationOnMock invocation) throws Exception {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                written.put((Path) invocation.getArguments()[0], out);
+                return new FSDataOutputStream(out, null);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(root);
+    }
+
+    private File write(final String name, final String contents) throws Exception {
+        final File file = new File(root, name);
+        Files.createParentDirs(file);
+        Files.write(contents, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static HDFSImporter.Upload upload(final String path, final long length) {
+        return new HDFSImporter.Upload(new File(path), new Path(path), length);
+    }
+
+    private static List<List<String>> destinations(final List<List<HDFSImporter.Upload>> batches) {
+        final List<List<String>> destinations = Lists.newArrayList();
+        for (final List<HDFSImporter.Upload> batch : batches) {
+            final List<String> paths = Lists.newArrayList();
+            for (final HDFSImporter.Upload upload : batch) {
+                paths.add(upload.getDestination().toString());
+            }
+            destinations.add(paths);
+        }
+        return destinations;
+    }
+
+    @Test
+    public void testPlanUploadsLargeFilesAloneAndBatchesTheRest() throws Exception {
+        final HDFSImporter importer = HDFSImporter.builder()
+            .usingFileSystem(fileSystem)
+            .withLargeFileThreshold(100)
+            .withBatchLimits(3, 50)
+            .build();
+
+        final List<List<HDFSImporter.Upload>> batches = importer.plan(Lists.newArrayList(
+            upload("/s1", 20), upload("/big", 500), upload("/s2", 20), upload("/tiny", 5),
+            upload("/s3", 20), upload("/edge", 100), upload("/s4", 20), upload("/m", 40)));
+
+        assertEquals(ImmutableList.of(
+            ImmutableList.of("/big"),
+            ImmutableList.of("/edge"),
+            ImmutableList.of("/m", "/s1"),
+            ImmutableList.of("/s2", "/s3", "/s4"),
+            ImmutableList.of("/tiny")), destinations(batches));
+    }
+
+    @Test
+    public void testCreatesOnlyLeafDirectories() throws Exception {
+        write("a/b/one.txt", "one");
+        write("a/two.txt", "two!!");
+        write("d.txt", "");
+        assertTrue(new File(root, "c/e").mkdirs());
+
+        HDFSImporter.builder().usingFileSystem(fileSystem).withThreads(2).build().importDirectory(new Path("/"), root);
+
+        verify(fileSystem).mkdirs(new Path("/a/b"));
+        verify(fileSystem).mkdirs(new Path("/c/e"));
+        verify(fileSystem, times(2)).mkdirs(any(Path.class));
+        assertEquals(Sets.newHashSet(new Path("/a/b/one.txt"), new Path("/a/two.txt"), new Path("/d.txt")), written.keySet());
+        assertEquals("two!!", new String(written.get(new Path("/a/two.txt")).toByteArray(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        write("a/b/one.txt", "one");
+        write("a/two.txt", "two!!");
+        write("d.txt", "");
+
+        final HDFSImporter.Statistics statistics = HDFSImporter.builder()
+            .usingFileSystem(fileSystem)
+            .withThreads(2)
+            .withBatchLimits(1, 1)
+            .build()
+            .importDirectory(new Path("/"), root);
+
+        assertEquals(3, statistics.getFiles());
+        // the root, a and a/b
+        assertEquals(3, statistics.getDirectories());
+        assertEquals(8, statistics.getBytes());
+    }
+
+    @Test
+    public void testFingerprintChangesWhenTreeChanges() throws Exception {
+        final File file = write("a/one.txt", "one");
+        final String original = HDFSImporter.fingerprint(root);
+        assertEquals(original, HDFSImporter.fingerprint(root));
+
+        write("a/two.txt", "two");
+        final String added = HDFSImporter.fingerprint(root);
+        assertFalse(original.equals(added));
+
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+        assertFalse(added.equals(HDFSImporter.fingerprint(root)));
+    }
+}
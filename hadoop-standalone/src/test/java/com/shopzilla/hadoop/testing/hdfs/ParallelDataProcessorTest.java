@@ -0,0 +1,170 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelDataProcessorTest {
+
+    private File root;
+    private FileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDir();
+        fileSystem = FileSystem.getLocal(new Configuration());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(root);
+    }
+
+    private Path write(final String name, final List<String> lines) throws Exception {
+        final File file = new File(root, name);
+        Files.write(Joiner.on('\n').join(lines) + '\n', file, Charsets.UTF_8);
+        return new Path(file.getAbsolutePath());
+    }
+
+    private List<String> numbered(final String prefix, final int count) {
+        final List<String> lines = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            lines.add(i % 7 == 0 ? "" : prefix + i);
+        }
+        return lines;
+    }
+
+    @Test
+    public void testOrderedStreamsFilesLargerThanTheQueue() throws Exception {
+        final List<String> expected = Lists.newArrayList();
+        final List<Path> paths = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            final List<String> lines = numbered("f" + i + "-", ParallelDataProcessor.PREFETCH_LINES * 3 + i);
+            paths.add(write("part-" + i, lines));
+            expected.addAll(lines);
+        }
+        // A single worker must not deadlock while later files fill their queues
+        for (final int threads : new int[] {1, 4}) {
+            final List<String> seen = Lists.newArrayList();
+            new ParallelDataProcessor(fileSystem, threads, 3).processData(paths, new Function<String, Void>() {
+                @Override
+                public Void apply(final String line) {
+                    seen.add(line);
+                    return null;
+                }
+            }, ParallelDataProcessor.Ordering.ORDERED);
+            assertEquals(expected, seen);
+        }
+    }
+
+    @Test
+    public void testOrderedRecordsFailuresAndKeepsGoing() throws Exception {
+        final Path bad = write("bad", numbered("bad-", ParallelDataProcessor.PREFETCH_LINES * 2));
+        final Path missing = new Path(new File(root, "missing").getAbsolutePath());
+        final Path good = write("good", ImmutableList.of("a", "b"));
+        final List<String> seen = Lists.newArrayList();
+        try {
+            new ParallelDataProcessor(fileSystem, 1, 2).processData(ImmutableList.of(bad, missing, good), new Function<String, Void>() {
+                @Override
+                public Void apply(final String line) {
+                    if (line.startsWith("bad-")) {
+                        throw new IllegalStateException(line);
+                    }
+                    seen.add(line);
+                    return null;
+                }
+            }, ParallelDataProcessor.Ordering.ORDERED);
+            fail("Expected a DataProcessingException");
+        } catch (final DataProcessingException ex) {
+            assertEquals(ImmutableList.of(bad, missing), ImmutableList.copyOf(ex.getFailures().keySet()));
+            assertTrue(ex.getFailures().get(bad) instanceof IllegalStateException);
+        }
+        assertEquals(ImmutableList.of("", "a", "b"), seen);
+    }
+
+    @Test
+    public void testUnorderedSeesEveryLine() throws Exception {
+        final List<Path> paths = Lists.newArrayList();
+        final List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            final List<String> lines = numbered("u" + i + "-", 100);
+            paths.add(write("u-" + i, lines));
+            expected.addAll(lines);
+        }
+        final List<String> seen = Collections.synchronizedList(Lists.<String>newArrayList());
+        new ParallelDataProcessor(fileSystem, 3, 1).processData(paths, new Function<String, Void>() {
+            @Override
+            public Void apply(final String line) {
+                seen.add(line);
+                return null;
+            }
+        }, ParallelDataProcessor.Ordering.UNORDERED);
+        Collections.sort(expected);
+        final List<String> sorted = Lists.newArrayList(seen);
+        Collections.sort(sorted);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    public void testInterruptIsPropagated() throws Exception {
+        final List<Path> paths = ImmutableList.of(write("slow-0", ImmutableList.of("a")), write("slow-1", ImmutableList.of("b")));
+        Thread.currentThread().interrupt();
+        try {
+            new ParallelDataProcessor(fileSystem, 1, 1).processPaths(paths, new Function<Path, Void>() {
+                @Override
+                public Void apply(final Path path) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (final InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                }
+            });
+            fail("Expected a DataProcessingException");
+        } catch (final DataProcessingException ex) {
+            assertEquals(ImmutableSet.copyOf(paths), ex.getFailures().keySet());
+            assertTrue(ex.getCause() instanceof InterruptedException);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2012 Shopzilla.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *  http://tech.shopzilla.com
+ *
+ */
+
+package com.shopzilla.hadoop.testing.hdfs;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class TreeWalkerTest {
+
+    private static FileStatus status(final String path, final boolean directory) {
+        return new FileStatus(0, directory, 1, 1024, 0, new Path(path));
+    }
+
+    /**
+     * @return a mock FileSystem holding <code>statuses</code> below a root directory <code>/</code>; every directory
+     * with no listed children is empty
+     */
+    private static FileSystem fileSystem(final List<FileStatus> statuses) throws IOException {
+        final Map<Path, FileStatus> byPath = Maps.newHashMap();
+        final ListMultimap<Path, FileStatus> children = ArrayListMultimap.create();
+        byPath.put(new Path("/"), status("/", true));
+        for (final FileStatus status : statuses) {
+            byPath.put(status.getPath(), status);
+            children.put(status.getPath().getParent(), status);
+        }
+        final FileSystem fs = mock(FileSystem.class);
+        when(fs.getFileStatus(any(Path.class))).thenAnswer(new Answer<FileStatus>() {
+            @Override
+            public FileStatus answer(final InvocationOnMock invocation) {
+                return byPath.get((Path) invocation.getArguments()[0]);
+            }
+        });
+        when(fs.listStatus(any(Path.class))).thenAnswer(new Answer<FileStatus[]>() {
+            @Override
+            public FileStatus[] answer(final InvocationOnMock invocation) {
+                return children.get((Path) invocation.getArguments()[0]).toArray(new FileStatus[0]);
+            }
+        });
+        return fs;
+    }
+
+    private static List<String> walk(final TreeWalker walker, final Path root) throws IOException {
+        final List<String> visited = Lists.newArrayList();
+        walker.walk(root, new Function<FileStatus, Void>() {
+            @Override
+            public Void apply(final FileStatus status) {
+                visited.add(status.getPath().toUri().getPath());
+                return null;
+            }
+        });
+        return visited;
+    }
+
+    @Test
+    public void testListsEachDirectoryOnce() throws Exception {
+        final FileSystem fs = fileSystem(Lists.newArrayList(
+            status("/a", true),
+            status("/a/part-00000", false),
+            status("/a/b", true),
+            status("/a/b/part-00000", false),
+            status("/c", true),
+            status("/c/part-00000", false),
+            status("/d.txt", false)));
+        final TreeWalker walker = TreeWalker.builder().usingFileSystem(fs).build();
+
+        assertEquals(Lists.newArrayList("/a/part-00000", "/a/b/part-00000", "/c/part-00000", "/d.txt"),
+            walk(walker, new Path("/")));
+
+        for (final String directory : new String[] {"/", "/a", "/a/b", "/c"}) {
+            verify(fs, times(1)).listStatus(new Path(directory));
+        }
+        verify(fs, times(4)).listStatus(any(Path.class));
+        verify(fs, never()).exists(any(Path.class));
+        verify(fs, never()).isFile(any(Path.class));
+        assertEquals(5, walker.getRpcCount());
+    }
+
+    @Test
+    public void testHiddenFileFilterSkipsUnderscoreAndDotEntries() throws Exception {
+        final FileSystem fs = fileSystem(Lists.newArrayList(
+            status("/out", true),
+            status("/out/_SUCCESS", false),
+            status("/out/_logs", true),
+            status("/out/_logs/history", false),
+            status("/out/.part-00000.crc", false),
+            status("/out/.staging", true),
+            status("/out/.staging/job.xml", false),
+            status("/out/part-00000", false)));
+
+        assertEquals(Lists.newArrayList("/out/part-00000"),
+            walk(TreeWalker.builder().usingFileSystem(fs).withPrefetch(0, 0).build(), new Path("/")));
+        verify(fs, never()).listStatus(new Path("/out/_logs"));
+        verify(fs, never()).listStatus(new Path("/out/.staging"));
+    }
+
+    @Test
+    public void testWalksDeepTreeWithoutRecursion() throws Exception {
+        final int depth = 10000;
+        final List<FileStatus> statuses = Lists.newArrayList();
+        final StringBuilder path = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            path.append("/d");
+            statuses.add(status(path.toString(), true));
+        }
+        statuses.add(status(path + "/part-00000", false));
+        final TreeWalker walker = TreeWalker.builder().usingFileSystem(fileSystem(statuses)).withPrefetch(0, 0).build();
+
+        assertEquals(Lists.newArrayList(path + "/part-00000"), walk(walker, new Path("/")));
+        assertEquals(depth + 2, walker.getRpcCount());
+    }
+}